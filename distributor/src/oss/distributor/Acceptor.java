@@ -0,0 +1,139 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Accepts client connections on a listening socket and hands them to
+ * the TargetSelector.  Distributor runs one or more of these.  Where
+ * the platform supports SO_REUSEPORT each Acceptor gets its own
+ * listening socket bound to the same address and port, and the kernel
+ * spreads incoming connections (and the accept queue) across them.
+ * Otherwise the Acceptors share a single listening socket.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.logging.Level;
+
+class Acceptor implements Runnable
+{
+	String serviceName;
+	int index;
+	ServerSocketChannel server;
+	TargetSelector targetSelector;
+	LazyLogger logger;
+	Thread thread;
+
+	protected Acceptor(
+		Distributor distributor, int index, ServerSocketChannel server)
+	{
+		serviceName = distributor.getName();
+		this.index = index;
+		this.server = server;
+		targetSelector = distributor.getTargetSelector();
+		logger = distributor.getLazyLogger();
+
+		thread = new Thread(this, toString());
+	}
+
+	protected void start()
+	{
+		thread.start();
+	}
+
+	protected void join() throws InterruptedException
+	{
+		thread.join();
+	}
+
+	/*
+	 * Returns true if listening sockets on this platform can use
+	 * SO_REUSEPORT to share an address and port.
+	 */
+	protected static boolean reusePortSupported()
+	{
+		try
+		{
+			ServerSocketChannel test = ServerSocketChannel.open();
+			boolean supported = test.supportedOptions().contains(
+				StandardSocketOptions.SO_REUSEPORT);
+			test.close();
+			return supported;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * Open a listening socket bound to the given address and port.
+	 * If reusePort is true the socket is set up so that other sockets
+	 * may bind to the same address and port.
+	 */
+	protected static ServerSocketChannel openServerSocket(
+		InetAddress bindAddress, int port, int backlog, boolean reusePort)
+		throws IOException
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		if (reusePort)
+		{
+			server.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+		}
+		server.socket().bind(new InetSocketAddress(bindAddress, port), backlog);
+		return server;
+	}
+
+	public void run()
+	{
+		SocketChannel client;
+
+		try
+		{
+			while (true)
+			{
+				client = server.accept();
+
+				logger.log(Level.FINE, "Accepted connection from {0}", client);
+
+				// Hand the client off to another thread which will
+				// select a target for them.  This frees us up to go
+				// back to listening for new connections.
+				targetSelector.addNewClient(client);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.warning("Error with server socket: " + e.getMessage());
+		}
+	}
+
+	public String toString()
+	{
+		return getClass().getName() + " " + serviceName + " " + index;
+	}
+}
@@ -0,0 +1,716 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A table mapping client IP addresses to targets, with the time each
+ * mapping was last used, for the hash algorithm.  A busy Distributor
+ * can see millions of client addresses, so rather than a HashMap full
+ * of InetAddress, Long and Map.Entry objects this keeps everything in a
+ * few arrays of primitives:  two longs holding the address (IPv4
+ * addresses are stored as IPv4-mapped IPv6 addresses), an int index
+ * into a list of targets, and an int time in seconds.  That is 24 bytes
+ * per slot, around a tenth of what the HashMaps used.
+ * 
+ * The table uses open addressing with linear probing and grows by
+ * doubling until it reaches the configured memory limit.  Once it is
+ * that big and full, a new mapping replaces the least recently used of
+ * the few entries nearest to where it will go.
+ * 
+ * Expired entries are removed a few slots at a time, both each time a
+ * mapping is stored and by expireSome(), which a background thread
+ * calls to work through the whole table in small steps.  No step holds
+ * the lock for long, so lookups are never stuck behind a sweep of the
+ * whole table.
+ * 
+ * The table can be saved to a file and loaded back, so that clients
+ * keep going to the same targets when Distributor is restarted.  The
+ * file holds a header, then the entries, then the addresses and ports
+ * of the targets the entries refer to:
+ * 
+ *   int magic, int version, long time written (milliseconds),
+ *   int entry count, int target count
+ *   entry count times:  long address high, long address low,
+ *     short target index, int time last used (seconds since 1970)
+ *   target count times:  byte address length, address, int port
+ * 
+ * The file is written a chunk of the table at a time, as with expiry,
+ * and is read via a memory mapping, which lets a few million entries
+ * load in well under a second.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+class AffinityTable
+{
+	// Bytes of memory used by each slot in the table
+	static final int SLOT_SIZE = 24;
+	static final int INITIAL_CAPACITY = 1024;
+	// How many slots to check for expired entries each time a mapping
+	// is stored
+	static final int EXPIRE_PER_PUT = 2;
+	// How many entries near a new entry's home slot we'll consider
+	// replacing when the table is full
+	static final int MAX_EVICTION_PROBE = 16;
+
+	// Slot i's address is in keys[2*i] and keys[2*i+1], its target in
+	// targetIndexes[i] (or EMPTY if the slot is free), and the time it
+	// was last used, in seconds since baseTime, in times[i].
+	long[] keys;
+	int[] targetIndexes;
+	int[] times;
+	int capacity;
+	int maxCapacity;
+	int size;
+	static final int EMPTY = -1;
+	// Incremented each time the table grows, so that a snapshot in
+	// progress can tell that the slots have moved
+	int growCount;
+
+	static final int SNAPSHOT_MAGIC = 0x44415431;  // "DAT1"
+	static final int SNAPSHOT_VERSION = 1;
+	static final int SNAPSHOT_HEADER_SIZE = 24;
+	static final int SNAPSHOT_ENTRY_SIZE = 22;
+	// How many slots are copied to a snapshot at a time
+	static final int SNAPSHOT_STEP = 1024;
+
+	long baseTime;
+	long timeout;
+	// Where the next expiry step starts
+	int expireCursor;
+	// Entries removed before they expired to make room for new ones
+	long evictedCount;
+
+	// Targets are stored as indexes into targetList to save space
+	List targetList;
+	Map targetIndexMap;
+
+	/*
+	 * timeout is how long a mapping lasts after it was last used, in
+	 * milliseconds.  memoryLimit is in bytes.
+	 */
+	AffinityTable(long timeout, long memoryLimit)
+	{
+		this.timeout = timeout;
+		baseTime = System.currentTimeMillis();
+
+		// Largest power of two number of slots that fits in the limit
+		maxCapacity = INITIAL_CAPACITY;
+		while (maxCapacity < (1 << 30) &&
+			(long) maxCapacity * 2 * SLOT_SIZE <= memoryLimit)
+		{
+			maxCapacity *= 2;
+		}
+
+		allocate(INITIAL_CAPACITY);
+		targetList = new ArrayList();
+		targetIndexMap = new HashMap();
+	}
+
+	private void allocate(int newCapacity)
+	{
+		capacity = newCapacity;
+		keys = new long[2 * capacity];
+		targetIndexes = new int[capacity];
+		times = new int[capacity];
+		Arrays.fill(targetIndexes, EMPTY);
+		size = 0;
+		expireCursor = 0;
+	}
+
+	/*
+	 * The most entries we allow before growing, 3/4 of the slots
+	 */
+	private int threshold()
+	{
+		return capacity - (capacity >> 2);
+	}
+
+	private int now()
+	{
+		return (int) ((System.currentTimeMillis() - baseTime) / 1000);
+	}
+
+	private boolean isExpired(int slot, int now)
+	{
+		return ((long) (now - times[slot])) * 1000 > timeout;
+	}
+
+	/*
+	 * The high 64 bits of an address as IPv6
+	 */
+	static long keyHigh(byte[] addr)
+	{
+		if (addr.length == 4)
+		{
+			return 0;
+		}
+		return bytesToLong(addr, 0);
+	}
+
+	/*
+	 * The low 64 bits of an address as IPv6
+	 */
+	static long keyLow(byte[] addr)
+	{
+		if (addr.length == 4)
+		{
+			return 0xffff00000000L | (bytesToLong(addr, 0) >>> 32);
+		}
+		return bytesToLong(addr, 8);
+	}
+
+	private static long bytesToLong(byte[] b, int offset)
+	{
+		long l = 0;
+		int end = Math.min(offset + 8, b.length);
+
+		for (int i=offset ; i<end ; i++)
+		{
+			l = (l << 8) | (b[i] & 0xff);
+		}
+		// Left align if we ran out of bytes (IPv4)
+		return l << (8 * (offset + 8 - end));
+	}
+
+	private int homeSlot(long high, long low)
+	{
+		long h = high * 0x9e3779b97f4a7c15L + low;
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+
+		return (int) h & (capacity - 1);
+	}
+
+	/*
+	 * Find the slot holding the given address, or -1
+	 */
+	private int findSlot(long high, long low)
+	{
+		int slot = homeSlot(high, low);
+
+		while (targetIndexes[slot] != EMPTY)
+		{
+			if (keys[2 * slot] == high && keys[2 * slot + 1] == low)
+			{
+				return slot;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+
+		return -1;
+	}
+
+	/*
+	 * Return the target the given address is mapped to, or null if it
+	 * isn't mapped or the mapping has expired.
+	 */
+	public synchronized Target get(InetAddress addr)
+	{
+		byte[] bytes = addr.getAddress();
+		int slot = findSlot(keyHigh(bytes), keyLow(bytes));
+
+		if (slot == -1 || isExpired(slot, now()))
+		{
+			return null;
+		}
+
+		return (Target) targetList.get(targetIndexes[slot]);
+	}
+
+	/*
+	 * Map the given address to the given target, as of now
+	 */
+	public synchronized void put(InetAddress addr, Target target)
+	{
+		byte[] bytes = addr.getAddress();
+
+		expireSlots(EXPIRE_PER_PUT);
+		store(keyHigh(bytes), keyLow(bytes),
+			getTargetIndex(target), now());
+	}
+
+	private int getTargetIndex(Target target)
+	{
+		Integer index = (Integer) targetIndexMap.get(target);
+
+		if (index == null)
+		{
+			index = Integer.valueOf(targetList.size());
+			targetList.add(target);
+			targetIndexMap.put(target, index);
+		}
+
+		return index.intValue();
+	}
+
+	private void store(long high, long low, int targetIndex, int time)
+	{
+		int slot = findSlot(high, low);
+
+		if (slot != -1)
+		{
+			targetIndexes[slot] = targetIndex;
+			times[slot] = time;
+			return;
+		}
+
+		if (size >= threshold())
+		{
+			if (capacity < maxCapacity)
+			{
+				grow();
+			}
+			else
+			{
+				evictNear(homeSlot(high, low));
+			}
+		}
+
+		slot = homeSlot(high, low);
+		while (targetIndexes[slot] != EMPTY)
+		{
+			slot = (slot + 1) & (capacity - 1);
+		}
+
+		keys[2 * slot] = high;
+		keys[2 * slot + 1] = low;
+		targetIndexes[slot] = targetIndex;
+		times[slot] = time;
+		size++;
+	}
+
+	/*
+	 * Make room in a full table by removing the least recently used of
+	 * the first few entries at or after the given slot
+	 */
+	private void evictNear(int slot)
+	{
+		int oldest = -1;
+		int seen = 0;
+
+		while (seen < MAX_EVICTION_PROBE)
+		{
+			if (targetIndexes[slot] != EMPTY)
+			{
+				if (oldest == -1 || times[slot] - times[oldest] < 0)
+				{
+					oldest = slot;
+				}
+				seen++;
+			}
+			slot = (slot + 1) & (capacity - 1);
+		}
+
+		evictedCount++;
+		delete(oldest);
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = keys;
+		int[] oldTargetIndexes = targetIndexes;
+		int[] oldTimes = times;
+		int oldCapacity = capacity;
+
+		allocate(capacity * 2);
+		growCount++;
+		for (int i=0 ; i<oldCapacity ; i++)
+		{
+			if (oldTargetIndexes[i] != EMPTY)
+			{
+				store(oldKeys[2 * i], oldKeys[2 * i + 1],
+					oldTargetIndexes[i], oldTimes[i]);
+			}
+		}
+	}
+
+	/*
+	 * Empty the given slot, moving any entries after it back so that
+	 * they can still be found without leaving tombstones behind.
+	 */
+	private void delete(int slot)
+	{
+		int next = slot;
+		int home;
+
+		while (true)
+		{
+			next = (next + 1) & (capacity - 1);
+			if (targetIndexes[next] == EMPTY)
+			{
+				break;
+			}
+
+			// The entry in next can move to slot unless its home slot
+			// is cyclically between slot (exclusive) and next
+			home = homeSlot(keys[2 * next], keys[2 * next + 1]);
+			if (((next - home) & (capacity - 1)) >=
+				((next - slot) & (capacity - 1)))
+			{
+				keys[2 * slot] = keys[2 * next];
+				keys[2 * slot + 1] = keys[2 * next + 1];
+				targetIndexes[slot] = targetIndexes[next];
+				times[slot] = times[next];
+				slot = next;
+			}
+		}
+
+		targetIndexes[slot] = EMPTY;
+		size--;
+	}
+
+	/*
+	 * Check count slots for expired entries, picking up where the last
+	 * call left off
+	 */
+	private void expireSlots(int count)
+	{
+		int now = now();
+		int checked = 0;
+
+		while (checked < count)
+		{
+			if (expireCursor >= capacity)
+			{
+				expireCursor = 0;
+			}
+			if (targetIndexes[expireCursor] != EMPTY &&
+				isExpired(expireCursor, now))
+			{
+				// An entry from further on may have moved into this
+				// slot, so check it again
+				delete(expireCursor);
+			}
+			else
+			{
+				expireCursor++;
+				checked++;
+			}
+		}
+	}
+
+	/*
+	 * Check the given number of slots for expired entries, carrying on
+	 * from where the last check left off.  Calling this enough times to
+	 * cover getCapacity() slots checks the whole table.
+	 */
+	public synchronized void expireSome(int count)
+	{
+		expireSlots(count);
+	}
+
+	/*
+	 * Save the table's unexpired entries to the given file.  The entries
+	 * are written to a temporary file which then replaces the given file,
+	 * so a crash part way through leaves the previous snapshot intact.
+	 * If the snapshot can't be written the temporary file is removed.
+	 * Returns the number of entries written.
+	 */
+	public int writeSnapshot(File file) throws IOException
+	{
+		File tmpFile = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		FileChannel channel = out.getChannel();
+		ByteBuffer buffer =
+			ByteBuffer.allocate(SNAPSHOT_STEP * SNAPSHOT_ENTRY_SIZE);
+		List targets;
+		int entryCount = 0;
+		int slot = 0;
+		int startGrowCount;
+		int now;
+		long lastUsed;
+		boolean done = false;
+		boolean written = false;
+
+		try
+		{
+			synchronized (this)
+			{
+				startGrowCount = growCount;
+			}
+
+			channel.position(SNAPSHOT_HEADER_SIZE);
+			while (! done)
+			{
+				buffer.clear();
+				synchronized (this)
+				{
+					if (growCount != startGrowCount)
+					{
+						// The entries have all moved, start over
+						startGrowCount = growCount;
+						channel.truncate(SNAPSHOT_HEADER_SIZE);
+						channel.position(SNAPSHOT_HEADER_SIZE);
+						entryCount = 0;
+						slot = 0;
+					}
+
+					now = now();
+					for (int i=0 ; i<SNAPSHOT_STEP && slot<capacity ; i++)
+					{
+						if (targetIndexes[slot] != EMPTY &&
+							targetIndexes[slot] <= 0xffff &&
+							! isExpired(slot, now))
+						{
+							lastUsed = baseTime / 1000 + times[slot];
+							buffer.putLong(keys[2 * slot]);
+							buffer.putLong(keys[2 * slot + 1]);
+							buffer.putShort((short) targetIndexes[slot]);
+							buffer.putInt((int) lastUsed);
+							entryCount++;
+						}
+						slot++;
+					}
+					done = slot >= capacity;
+				}
+
+				buffer.flip();
+				writeFully(channel, buffer);
+			}
+
+			synchronized (this)
+			{
+				targets = new ArrayList(targetList);
+			}
+			for (int i=0 ; i<targets.size() ; i++)
+			{
+				Target target = (Target) targets.get(i);
+				byte[] addr = target.getInetAddress().getAddress();
+				buffer.clear();
+				buffer.put((byte) addr.length);
+				buffer.put(addr);
+				buffer.putInt(target.getPort());
+				buffer.flip();
+				writeFully(channel, buffer);
+			}
+
+			buffer.clear();
+			buffer.putInt(SNAPSHOT_MAGIC);
+			buffer.putInt(SNAPSHOT_VERSION);
+			buffer.putLong(System.currentTimeMillis());
+			buffer.putInt(entryCount);
+			buffer.putInt(targets.size());
+			buffer.flip();
+			channel.position(0);
+			writeFully(channel, buffer);
+
+			channel.force(true);
+			written = true;
+		}
+		finally
+		{
+			try
+			{
+				out.close();
+			}
+			finally
+			{
+				// Don't leave a partial snapshot lying around
+				if (! written)
+				{
+					tmpFile.delete();
+				}
+			}
+		}
+
+		if (! tmpFile.renameTo(file))
+		{
+			tmpFile.delete();
+			throw new IOException(
+				"Unable to rename " + tmpFile + " to " + file);
+		}
+
+		return entryCount;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+		throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/*
+	 * Load the entries from a snapshot written by writeSnapshot().
+	 * Entries for targets that aren't in the given list of Targets, and
+	 * entries which have expired, are skipped.  Returns the number of
+	 * entries loaded.
+	 */
+	public int readSnapshot(File file, List targets) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		FileChannel channel = in.getChannel();
+		MappedByteBuffer map;
+		int entryCount;
+		int targetCount;
+		int[] targetMap;
+		int loaded = 0;
+		long nowMillis = System.currentTimeMillis();
+		long lastUsed;
+		long high;
+		long low;
+		int targetIndex;
+
+		try
+		{
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.remaining() < SNAPSHOT_HEADER_SIZE ||
+				map.getInt() != SNAPSHOT_MAGIC)
+			{
+				throw new IOException(file + " is not a snapshot file");
+			}
+			if (map.getInt() != SNAPSHOT_VERSION)
+			{
+				throw new IOException(
+					file + " is from an incompatible version");
+			}
+			map.getLong();  // Time written, for information only
+			entryCount = map.getInt();
+			targetCount = map.getInt();
+			if (entryCount < 0 || targetCount < 0 ||
+				(long) entryCount * SNAPSHOT_ENTRY_SIZE >
+					map.remaining())
+			{
+				throw new IOException(file + " is corrupt");
+			}
+
+			// Match the targets in the file up with our targets
+			targetMap = new int[targetCount];
+			map.position(
+				SNAPSHOT_HEADER_SIZE + entryCount * SNAPSHOT_ENTRY_SIZE);
+			synchronized (this)
+			{
+				for (int i=0 ; i<targetCount ; i++)
+				{
+					byte[] addr = new byte[map.get() & 0xff];
+					map.get(addr);
+					int port = map.getInt();
+
+					targetMap[i] = EMPTY;
+					Iterator iter = targets.iterator();
+					while (iter.hasNext())
+					{
+						Target target = (Target) iter.next();
+						if (Arrays.equals(
+								target.getInetAddress().getAddress(), addr) &&
+							target.getPort() == port)
+						{
+							targetMap[i] = getTargetIndex(target);
+							break;
+						}
+					}
+				}
+
+				map.position(SNAPSHOT_HEADER_SIZE);
+				ensureCapacity(size + entryCount);
+				for (int i=0 ; i<entryCount ; i++)
+				{
+					high = map.getLong();
+					low = map.getLong();
+					targetIndex = map.getShort() & 0xffff;
+					lastUsed = (map.getInt() & 0xffffffffL) * 1000;
+
+					if (targetIndex >= targetCount ||
+						targetMap[targetIndex] == EMPTY ||
+						nowMillis - lastUsed > timeout)
+					{
+						continue;
+					}
+
+					store(high, low, targetMap[targetIndex],
+						(int) Math.floorDiv(lastUsed - baseTime, 1000L));
+					loaded++;
+				}
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException(file + " is truncated");
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return loaded;
+	}
+
+	/*
+	 * Grow the table, up to its limit, so it can hold count entries
+	 * without growing again
+	 */
+	private void ensureCapacity(int count)
+	{
+		while (threshold() < count && capacity < maxCapacity)
+		{
+			grow();
+		}
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	/*
+	 * Number of slots, used or not
+	 */
+	public synchronized int getCapacity()
+	{
+		return capacity;
+	}
+
+	public synchronized long getMemoryUsage()
+	{
+		return (long) capacity * SLOT_SIZE;
+	}
+
+	public synchronized long getMemoryLimit()
+	{
+		return (long) maxCapacity * SLOT_SIZE;
+	}
+
+	public synchronized long getEvictedCount()
+	{
+		return evictedCount;
+	}
+}
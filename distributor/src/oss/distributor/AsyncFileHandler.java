@@ -0,0 +1,345 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A log Handler which writes to a file from its own thread.  The
+ * standard FileHandler writes on whichever thread does the logging, so
+ * a slow or stalled disk would stall the selector loops in DataMover and
+ * the distribution algorithms.  Here publish() just formats the record
+ * and drops it into a bounded ring buffer, and a single writer thread
+ * empties the ring and writes the messages out in batches.
+ * 
+ * If the ring fills up the handler either makes the logging thread wait
+ * for room or discards the message, depending on how it is configured.
+ * Discarded messages are counted and the count is written to the log
+ * once the writer catches up.
+ * 
+ * The log file can be re-opened (i.e. after it has been rotated) with
+ * reopen(), which just asks the writer thread to do it so the caller
+ * never waits on the file system.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.ErrorManager;
+
+class AsyncFileHandler extends Handler implements Runnable
+{
+	String filename;
+	boolean blockWhenFull;
+
+	// The ring.  Each slot has a sequence number which tells producers
+	// and the writer whether the slot is free for the given position or
+	// holds a message waiting to be written.  Producers claim positions
+	// by advancing tail with a CAS, only the writer thread advances head.
+	int capacity;
+	int mask;
+	AtomicReferenceArray messages;
+	AtomicLongArray sequences;
+	AtomicLong tail;
+	long head;
+
+	AtomicLong droppedCount;
+	long reportedDroppedCount;
+
+	Thread thread;
+	volatile boolean writerWaiting;
+	volatile boolean reopenRequested;
+	volatile boolean closed;
+	Writer writer;
+
+	// The most messages we'll write before flushing
+	static final int BATCH_SIZE = 256;
+	// How long the writer thread sleeps when there's nothing to do
+	static final long IDLE_WAIT = 100 * 1000 * 1000;  // nanoseconds
+
+	protected AsyncFileHandler(
+		String filename, int queueSize, boolean blockWhenFull)
+		throws IOException
+	{
+		this.filename = filename;
+		this.blockWhenFull = blockWhenFull;
+
+		// Round the size of the ring up to a power of two so that we
+		// can use a mask instead of a modulus
+		capacity = 1;
+		while (capacity < queueSize)
+		{
+			capacity <<= 1;
+		}
+		mask = capacity - 1;
+
+		messages = new AtomicReferenceArray(capacity);
+		sequences = new AtomicLongArray(capacity);
+		for (int i=0 ; i<capacity ; i++)
+		{
+			sequences.set(i, i);
+		}
+		tail = new AtomicLong(0);
+		head = 0;
+
+		droppedCount = new AtomicLong(0);
+		reportedDroppedCount = 0;
+
+		writerWaiting = false;
+		reopenRequested = false;
+		closed = false;
+
+		openFile();
+
+		thread = new Thread(this, getClass().getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Open the log file for appending.  Called at construction time and
+	 * thereafter only from the writer thread.
+	 */
+	private void openFile() throws IOException
+	{
+		writer = new BufferedWriter(
+			new OutputStreamWriter(new FileOutputStream(filename, true)));
+	}
+
+	public void publish(LogRecord record)
+	{
+		if (closed || ! isLoggable(record))
+		{
+			return;
+		}
+
+		String message;
+		try
+		{
+			message = getFormatter().format(record);
+		}
+		catch (Exception e)
+		{
+			reportError(null, e, ErrorManager.FORMAT_FAILURE);
+			return;
+		}
+
+		long position;
+		int index;
+		long sequence;
+		while (true)
+		{
+			position = tail.get();
+			index = (int) position & mask;
+			sequence = sequences.get(index);
+			if (sequence == position)
+			{
+				// The slot is free, try to claim it
+				if (tail.compareAndSet(position, position + 1))
+				{
+					break;
+				}
+			}
+			else if (sequence < position)
+			{
+				// The ring is full
+				if (! blockWhenFull)
+				{
+					droppedCount.incrementAndGet();
+					return;
+				}
+				wakeWriter();
+				Thread.yield();
+			}
+			// Otherwise another thread claimed this position first,
+			// go around and try the next one
+		}
+
+		messages.set(index, message);
+		// Publish the message to the writer
+		sequences.set(index, position + 1);
+
+		wakeWriter();
+	}
+
+	private void wakeWriter()
+	{
+		if (writerWaiting)
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/*
+	 * Ask the writer thread to close and re-open the log file.  Returns
+	 * immediately.
+	 */
+	protected void reopen()
+	{
+		reopenRequested = true;
+		LockSupport.unpark(thread);
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			if (reopenRequested)
+			{
+				reopenRequested = false;
+				try
+				{
+					writer.close();
+					openFile();
+				}
+				catch (IOException e)
+				{
+					reportError("Error re-opening " + filename,
+						e, ErrorManager.OPEN_FAILURE);
+				}
+			}
+
+			if (writeBatch() == 0)
+			{
+				if (closed)
+				{
+					return;
+				}
+
+				// Nothing to do.  Let producers know they need to wake
+				// us, then check once more before going to sleep in
+				// case something arrived in the meantime.
+				writerWaiting = true;
+				if (! messageAvailable() && ! reopenRequested && ! closed)
+				{
+					LockSupport.parkNanos(IDLE_WAIT);
+				}
+				writerWaiting = false;
+			}
+		}
+	}
+
+	private boolean messageAvailable()
+	{
+		return sequences.get((int) head & mask) == head + 1;
+	}
+
+	/*
+	 * Write out up to BATCH_SIZE waiting messages and flush.  Returns
+	 * the number of messages written.
+	 */
+	private int writeBatch()
+	{
+		int count = 0;
+		int index;
+		String message;
+
+		try
+		{
+			long dropped = droppedCount.get();
+			if (dropped != reportedDroppedCount)
+			{
+				writer.write("AsyncFileHandler:  " +
+					(dropped - reportedDroppedCount) +
+					" log messages discarded because the queue was full\n");
+				reportedDroppedCount = dropped;
+				writer.flush();
+			}
+
+			while (count < BATCH_SIZE && messageAvailable())
+			{
+				index = (int) head & mask;
+				message = (String) messages.get(index);
+				messages.set(index, null);
+				// Hand the slot back to the producers for use on the
+				// next trip around the ring
+				sequences.set(index, head + capacity);
+				head++;
+
+				writer.write(message);
+				count++;
+			}
+
+			if (count > 0)
+			{
+				writer.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			reportError(null, e, ErrorManager.WRITE_FAILURE);
+		}
+
+		return count;
+	}
+
+	/*
+	 * Messages are flushed by the writer thread after each batch, so
+	 * there's nothing for us to do here.
+	 */
+	public void flush()
+	{
+	}
+
+	/*
+	 * Stop accepting messages, wait for the writer thread to write out
+	 * whatever is queued, and close the file.
+	 */
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+		}
+
+		try
+		{
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			reportError(null, e, ErrorManager.CLOSE_FAILURE);
+		}
+	}
+
+	protected long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	public String toString()
+	{
+		return getClass().getName() + " for " + filename;
+	}
+}
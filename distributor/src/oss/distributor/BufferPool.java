@@ -0,0 +1,165 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A pool of direct ByteBuffers in a few fixed size classes.  DataMovers
+ * borrow buffers from the pool to hold data that couldn't immediately
+ * be written to its destination, and give them back once that data has
+ * been written or the connection is closed.  This saves allocating a
+ * fresh buffer for every stalled write, and since the buffers are
+ * direct the JDK doesn't have to copy the data into a temporary direct
+ * buffer each time it retries the write.
+ * 
+ * The total amount of memory held by the pool is capped.  Once the cap
+ * is reached, requests are satisfied with ordinary heap buffers which
+ * are simply left for the garbage collector when they are returned.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+class BufferPool
+{
+	// The size classes, smallest first.  The largest matches
+	// DataMover.BUFFER_SIZE since that's the most a single read can
+	// leave behind.
+	static final int[] SIZE_CLASSES = {
+		4 * 1024, 16 * 1024, 64 * 1024, 128 * 1024 };
+
+	long limit;  // Maximum number of bytes the pool will allocate
+	long allocated;  // Number of bytes the pool has allocated
+	LinkedList[] freeBuffers;  // One list of free buffers per size class
+	long[] buffersInUse;
+	long overflowCount;  // Requests that the pool couldn't satisfy
+
+	protected BufferPool(long limit)
+	{
+		this.limit = limit;
+		allocated = 0;
+		overflowCount = 0;
+
+		freeBuffers = new LinkedList[SIZE_CLASSES.length];
+		buffersInUse = new long[SIZE_CLASSES.length];
+		for (int i=0 ; i<SIZE_CLASSES.length ; i++)
+		{
+			freeBuffers[i] = new LinkedList();
+			buffersInUse[i] = 0;
+		}
+	}
+
+	/*
+	 * Return the index of the smallest size class which can hold size
+	 * bytes, or -1 if size is larger than the largest size class.
+	 */
+	private static int sizeClassFor(int size)
+	{
+		for (int i=0 ; i<SIZE_CLASSES.length ; i++)
+		{
+			if (size <= SIZE_CLASSES[i])
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Get a cleared buffer with room for at least size bytes.  The
+	 * caller should give it back via putBuffer() when done with it.
+	 */
+	protected synchronized ByteBuffer getBuffer(int size)
+	{
+		ByteBuffer buffer;
+		int sizeClass = sizeClassFor(size);
+
+		if (sizeClass == -1)
+		{
+			overflowCount++;
+			return ByteBuffer.allocate(size);
+		}
+
+		if (freeBuffers[sizeClass].size() > 0)
+		{
+			buffer = (ByteBuffer) freeBuffers[sizeClass].removeFirst();
+		}
+		else if (allocated + SIZE_CLASSES[sizeClass] <= limit)
+		{
+			buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+			allocated += SIZE_CLASSES[sizeClass];
+		}
+		else
+		{
+			// The pool is at its limit
+			overflowCount++;
+			return ByteBuffer.allocate(size);
+		}
+
+		buffersInUse[sizeClass]++;
+		buffer.clear();
+		return buffer;
+	}
+
+	/*
+	 * Give a buffer obtained from getBuffer() back to the pool.
+	 */
+	protected synchronized void putBuffer(ByteBuffer buffer)
+	{
+		// Heap buffers handed out when the pool was at its limit are
+		// left for the garbage collector
+		if (! buffer.isDirect())
+		{
+			return;
+		}
+
+		int sizeClass = sizeClassFor(buffer.capacity());
+		if (sizeClass == -1 || SIZE_CLASSES[sizeClass] != buffer.capacity())
+		{
+			return;
+		}
+
+		buffersInUse[sizeClass]--;
+		freeBuffers[sizeClass].addFirst(buffer);
+	}
+
+	public String toString()
+	{
+		return getClass().getName();
+	}
+
+	protected synchronized String getMemoryStats(String indent)
+	{
+		String stats;
+
+		stats = indent + allocated + " of " + limit + " bytes allocated\n";
+		for (int i=0 ; i<SIZE_CLASSES.length ; i++)
+		{
+			stats += indent + SIZE_CLASSES[i] + " byte buffers:  " +
+				buffersInUse[i] + " in use, " +
+				freeBuffers[i].size() + " entries in free List\n";
+		}
+		stats += indent + overflowCount + " requests exceeded the pool";
+
+		return stats;
+	}
+}
@@ -3,6 +3,12 @@
  * $Id$
  *****************************************************************************
  * Performs simple TCP connection service test
+ * 
+ * The connections are made without blocking, from a single thread with
+ * its own Selector, so one thread can have connections to any number
+ * of targets in progress at once.  Each connection is given until the
+ * test timeout to complete, after which it is abandoned and the test
+ * counts as failed.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -26,15 +32,23 @@
 
 package oss.distributor;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.logging.Logger;
 import org.w3c.dom.Element;
 
-class ConnectServiceTest implements Runnable
+class ConnectServiceTest implements NonBlockingHealthCheck, Runnable
 {
+	// The resolution of the connection deadlines
+	static final long WHEEL_TICK = 10;  // ms
+	static final int WHEEL_SLOTS = 1024;
+
 	Distributor distributor;
 	Logger logger;
 
@@ -42,6 +56,14 @@ class ConnectServiceTest implements Runnable
 	int timeout;  // How long do we wait for the test to complete before
 	              // deciding that it has failed?
 
+	Selector selector;
+	// Probes handed to us by the scheduler but not yet started
+	MpscQueue newProbes;
+	// The deadlines for the probes in progress, only touched by our
+	// thread
+	TimingWheel deadlines;
+	List drained;
+	List expired;
 	Thread thread;
 
 	/*
@@ -79,119 +101,166 @@ class ConnectServiceTest implements Runnable
 		}
 		logger.config("Test timeout:  " + timeout);
 
+		try
+		{
+			selector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			logger.severe("Error creating selector: " + e.getMessage());
+			System.exit(1);
+		}
+		newProbes = new MpscQueue();
+		deadlines = new TimingWheel(WHEEL_TICK, WHEEL_SLOTS);
+		drained = new ArrayList();
+		expired = new ArrayList();
+
 		thread = new Thread(this, getClass().getName());
+		thread.setDaemon(true);
 		thread.start();
+
+		distributor.getHealthCheckScheduler().addTest(
+			this, distributor, frequency, timeout);
+	}
+
+	public void startCheck(Target target,
+		HealthCheckScheduler.CheckResult result)
+	{
+		if (newProbes.offer(new Probe(target, result)))
+		{
+			selector.wakeup();
+		}
 	}
 
 	public void run()
 	{
-		List targets;
-		Iterator i;
-		Target target;
-		boolean result;
+		Iterator iter;
+		SelectionKey key;
+		Probe probe;
 
 		while (true)
 		{
-			targets = distributor.getTargets();
-
-			// distributor.getTargets() constructs a new List, puts
-			// all of the Targets into it, and returns it.  As such, we
-			// don't have to worry about holding everything else up by
-			// synchronizing on the list for a long time (the testing
-			// could take many seconds).  In fact, we really don't have
-			// to synchronize at all since we're the only ones with a
-			// reference to that list, but we do anyway for consistency.
-			synchronized (targets)
+			newProbes.drain(drained);
+			iter = drained.iterator();
+			while (iter.hasNext())
 			{
-				i = targets.iterator();
-				while (i.hasNext())
+				startProbe((Probe) iter.next());
+			}
+			drained.clear();
+
+			try
+			{
+				selector.select(deadlines.getSelectTimeout());
+			}
+			catch (IOException e)
+			{
+				logger.warning("Error when selecting for ready channel: " +
+					e.getMessage());
+				try { Thread.sleep(500); } catch (InterruptedException ie) {}
+				continue;
+			}
+
+			iter = selector.selectedKeys().iterator();
+			while (iter.hasNext())
+			{
+				key = (SelectionKey) iter.next();
+				iter.remove();
+
+				if (! key.isValid())
 				{
-					try
-					{
-						target = (Target) i.next();
-						ConnectBackgroundTest connectTest =
-							new ConnectBackgroundTest(target);
-						synchronized (connectTest)
-						{
-							connectTest.startTest();
-							connectTest.wait(timeout);
-						}
-						if (connectTest.getResult() ==
-							BackgroundTest.RESULT_SUCCESS)
-						{
-							result = true;
-						}
-						else
-						{
-							result = false;
-
-							if (connectTest.getResult() ==
-								BackgroundTest.RESULT_NOTFINISHED)
-							{
-								logger.warning("Test timed out");
-							}
-						}
-
-						if (result && ! target.isEnabled())
-						{
-							// I was tempted to log this at info but
-							// if someone has their log level set to
-							// warning then they'd only see the disable
-							// messages and not the enable messages.
-							logger.warning("Enabling: " + target);
-							target.enable();
-						}
-						else if (! result && target.isEnabled())
-						{
-							logger.warning("Disabling: " + target);
-							target.disable();
-						}
-					}
-					catch (InterruptedException e)
+					continue;
+				}
+
+				probe = (Probe) key.attachment();
+				try
+				{
+					if (probe.channel.finishConnect())
 					{
-						logger.warning("Service test interrupted");
+						deadlines.cancel(probe.deadline);
+						finishProbe(probe, true);
 					}
 				}
+				catch (IOException e)
+				{
+					logger.warning("Error communicating with server: " +
+						e.getMessage());
+					deadlines.cancel(probe.deadline);
+					finishProbe(probe, false);
+				}
 			}
 
-			try
+			deadlines.expireTimeouts(expired);
+			iter = expired.iterator();
+			while (iter.hasNext())
 			{
-				Thread.sleep(frequency);
-			} catch (InterruptedException e) {}
+				probe = (Probe) iter.next();
+				logger.fine("Connection timed out: " + probe.target);
+				finishProbe(probe, false);
+			}
+			expired.clear();
 		}
 	}
 
-	class ConnectBackgroundTest extends BackgroundTest
+	/*
+	 * Open a non-blocking connection to the probe's target and register
+	 * it with the selector
+	 */
+	private void startProbe(Probe probe)
 	{
-		protected ConnectBackgroundTest(Target target)
+		try
+		{
+			probe.channel = SocketChannel.open();
+			probe.channel.configureBlocking(false);
+			if (probe.channel.connect(
+				new InetSocketAddress(
+					probe.target.getInetAddress(),
+					probe.target.getPort())))
+			{
+				// Connected immediately, which can happen for local
+				// targets
+				finishProbe(probe, true);
+				return;
+			}
+			probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+			probe.deadline = deadlines.schedule(probe, timeout);
+		}
+		catch (IOException e)
 		{
-			super(target);
+			logger.warning("Error communicating with server: " +
+				e.getMessage());
+			finishProbe(probe, false);
 		}
+	}
 
-		public void test()
+	/*
+	 * Close the probe's connection and report the result
+	 */
+	private void finishProbe(Probe probe, boolean success)
+	{
+		if (probe.channel != null)
 		{
 			try
 			{
-				Socket sock = new Socket(
-					target.getInetAddress(),
-					target.getPort());
+				// Closing the channel cancels its key
+				probe.channel.close();
+			}
+			catch (IOException e) {}
+		}
 
-				sock.close();
+		probe.result.finished(success);
+	}
 
-				success = true;
-				finished = true;
-				synchronized (this)
-				{
-					notify();
-				}
-			}
-			catch (IOException e)
-			{
-				logger.warning("Error communicating with server: " +
-					e.getMessage());
-				return;
-			}
+	static class Probe
+	{
+		Target target;
+		HealthCheckScheduler.CheckResult result;
+		SocketChannel channel;
+		TimingWheel.Timeout deadline;
+
+		Probe(Target target, HealthCheckScheduler.CheckResult result)
+		{
+			this.target = target;
+			this.result = result;
 		}
 	}
 }
-
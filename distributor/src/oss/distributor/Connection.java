@@ -28,6 +28,7 @@
 package oss.distributor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 
@@ -38,7 +39,58 @@ public class Connection
 	SocketChannel server;
 	// The Target that 'server' is a connection to
 	Target target;
-	boolean terminated;
+	// The DataMover carrying this connection's traffic, and the
+	// service the connection belongs to, assigned when the connection
+	// is handed to the Target
+	DataMover dataMover;
+	Distributor distributor;
+	// Set when we cut the connection off ourselves.  Volatile as it is
+	// read by the DataMover thread which does the closing.
+	volatile boolean terminated;
+
+	// The rest of this state is used by the DataMover carrying this
+	// connection.  The Connection is attached to both selection keys
+	// so the DataMover can find everything it needs about a ready
+	// channel without any lookups.
+	SelectionKey clientKey;
+	SelectionKey serverKey;
+	// Data read from one side which the other side hasn't yet accepted
+	ByteBuffer clientToServerDelayed;
+	ByteBuffer serverToClientDelayed;
+	// Used instead of the delayed buffers for a direction the
+	// DataMover relays with splice(2), see SpliceRelay.  The pipe the
+	// data passes through ({read end, write end}, null if the direction
+	// isn't spliced) and the number of bytes waiting in it.
+	int[] clientToServerPipe;
+	int[] serverToClientPipe;
+	int clientToServerPiped;
+	int serverToClientPiped;
+	// The channels' file descriptors, for splice(2)
+	int clientFD;
+	int serverFD;
+	// Only updated by the DataMover thread, so reads from other threads
+	// are approximate
+	long clientToServerByteCount;
+	long serverToClientByteCount;
+	// The distribution algorithms which want to review the data going
+	// in each direction, usually empty
+	DistributionAlgorithm[] clientToServerReviewers;
+	DistributionAlgorithm[] serverToClientReviewers;
+	// Used by the DataMover to enforce the idle and half close
+	// timeouts.  The times are from System.currentTimeMillis(),
+	// halfCloseTime is zero until one side of the connection sends EOF.
+	TimingWheel.Timeout idleTimeout;
+	long clientActivityTime;
+	long serverActivityTime;
+	long halfCloseTime;
+	// Set by the DataMover if the server side of the connection failed,
+	// see Target.recordOutcome()
+	boolean serverFailed;
+	// True while a DataMover is making the connection to the target
+	// itself, see DataMover.connect(), and when it started doing so
+	// (from System.nanoTime())
+	boolean connecting;
+	long connectStartTime;
 
 	public Connection(
 		SocketChannel client, SocketChannel server, Target target)
@@ -48,6 +100,8 @@ public class Connection
 		this.target = target;
 
 		terminated = false;
+		connecting = false;
+		serverFailed = false;
 	}
 
 	public SocketChannel getClient()
@@ -65,13 +119,32 @@ public class Connection
 		return target;
 	}
 
+	protected void setDataMover(DataMover dataMover)
+	{
+		this.dataMover = dataMover;
+	}
+
 	public void terminate()
 	{
+		// Set first, so that the DataMover knows not to count this as
+		// a failure when it removes the connection from the Target
+		terminated = true;
+
 		// Let DataMover do the closing so that it can clean up the
 		// infomation it stores about the connection
-		target.getDataMover().closeConnection(client, server);
-
-		terminated = true;
+		if (dataMover != null)
+		{
+			dataMover.terminateConnection(this);
+		}
+		else
+		{
+			try
+			{
+				client.close();
+				server.close();
+			}
+			catch (IOException e) {}
+		}
 	}
 
 	public boolean isTerminated()
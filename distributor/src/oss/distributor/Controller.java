@@ -2,7 +2,10 @@
  *****************************************************************************
  * $Id$
  *****************************************************************************
- * This class allows runtime control of the load balancer
+ * This class allows runtime control of the load balancer.  When
+ * Distributor is running more than one service, most commands apply
+ * to the service selected with the 'service' command, initially the
+ * first one in the config file.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -34,6 +37,7 @@ import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
+import java.util.logging.Handler;
 import java.text.ParseException;
 
 /*
@@ -44,17 +48,17 @@ import java.text.ParseException;
 
 class Controller implements Runnable
 {
-	Distributor distributor;
+	List services;
 	Logger logger;
 	int port;
 	List conns;
 	Thread thread;
 	ServerSocket controllerServer;
 
-	protected Controller(Distributor distributor, int port)
+	protected Controller(List services, int port)
 	{
-		this.distributor = distributor;
-		logger = distributor.getLogger();
+		this.services = services;
+		logger = ((Distributor) services.get(0)).getLogger();
 		this.port = port;
 
 		// Use a linked list so we can remove dead connections in the
@@ -87,7 +91,7 @@ class Controller implements Runnable
 				Socket socket = controllerServer.accept();
 				logger.fine("Control connection from " + socket);
 				ControllerConnection conn =
-					new ControllerConnection(socket, distributor);
+					new ControllerConnection(socket, services);
 				conns.add(conn);
 			}
 			catch (IOException e)
@@ -149,6 +153,8 @@ class Controller implements Runnable
 class ControllerConnection implements Runnable
 {
 	Socket socket;
+	List services;
+	// The service that commands apply to
 	Distributor distributor;
 	Logger logger;
 	BufferedReader in;
@@ -157,10 +163,11 @@ class ControllerConnection implements Runnable
 	boolean closed = false;
 
 	protected ControllerConnection(
-		Socket socket, Distributor distributor) throws IOException
+		Socket socket, List services) throws IOException
 	{
 		this.socket = socket;
-		this.distributor = distributor;
+		this.services = services;
+		distributor = (Distributor) services.get(0);
 		logger = distributor.getLogger();
 
 		// Good thing we don't care about speed...
@@ -256,10 +263,26 @@ class ControllerConnection implements Runnable
 				{
 					enableTarget(st);
 				}
+				else if (command.equals("weight"))
+				{
+					setTargetWeight(st);
+				}
 				else if (command.equals("loglevel"))
 				{
 					setLogLevel(st);
 				}
+				else if (command.equals("reopenlog"))
+				{
+					reopenLog(st);
+				}
+				else if (command.equals("services"))
+				{
+					listServices(st);
+				}
+				else if (command.equals("service"))
+				{
+					selectService(st);
+				}
 				else if (command.equals("help"))
 				{
 					help(st);
@@ -300,7 +323,11 @@ class ControllerConnection implements Runnable
 		out.println("removegroup");
 		out.println("disable");
 		out.println("enable");
+		out.println("weight");
 		out.println("loglevel");
+		out.println("reopenlog");
+		out.println("services");
+		out.println("service");
 		out.println("help");
 		out.println("quit");
 	}
@@ -378,7 +405,16 @@ class ControllerConnection implements Runnable
 			}
 		}
 		out.println("");
-		
+
+		// Display the memory statistics for the shared DataMovers
+		out.println(distributor.getDataMoverPool() + ":");
+		out.println(distributor.getDataMoverPool().getMemoryStats("  "));
+		out.println("");
+
+		// Display the memory statistics for the buffer pool
+		out.println(distributor.getBufferPool() + ":");
+		out.println(distributor.getBufferPool().getMemoryStats("  "));
+		out.println("");
 
 		// Display the memory statistics for each of the targets
 		List targetGroups = distributor.getTargetGroups();
@@ -480,7 +516,7 @@ class ControllerConnection implements Runnable
 			newTarget = new Target(
 				distributor, addr, port,
 				distributor.getConnectionFailureLimit(),
-				distributor.getTerminate(), distributor.getHalfClose());
+				distributor.getTerminate());
 		}
 		catch (UnknownHostException e)
 		{
@@ -511,6 +547,7 @@ class ControllerConnection implements Runnable
 				{
 					List targets = (List) iter.next();
 					targets.add(newTarget);
+					distributor.targetsChanged();
 					out.println("New target added");
 					break;
 				}
@@ -591,6 +628,7 @@ class ControllerConnection implements Runnable
 		}
 		if (targetFound)
 		{
+			distributor.targetsChanged();
 			target.terminateAll();
 			out.println("Target removed");
 		}
@@ -630,6 +668,7 @@ class ControllerConnection implements Runnable
 			}
 
 			targetGroups.add(tgIndex, new LinkedList());
+			distributor.targetsChanged();
 			out.println("New target group added at position " + tgIndex);
 		}
 	}
@@ -667,6 +706,7 @@ class ControllerConnection implements Runnable
 
 			targets = (List) targetGroups.remove(tgIndex);
 		}
+		distributor.targetsChanged();
 
 		// Shutdown the connections to each target in the target group
 		synchronized (targets)
@@ -835,6 +875,86 @@ class ControllerConnection implements Runnable
 		}
 	}
 
+	/*
+	 * Change the weight of a target.  The new weight is picked up by the
+	 * distribution algorithms the next time they look at the target,
+	 * existing connections are not affected.
+	 */
+	protected void setTargetWeight(StringTokenizer st)
+	{
+		if (st.countTokens() != 4)
+		{
+			out.println(
+				"Usage: weight <target group> <hostname> <port> <weight>");
+			return;
+		}
+
+		int tgIndex;
+		InetAddress addr;
+		int port;
+		int weight;
+		try
+		{
+			tgIndex = Integer.parseInt(st.nextToken());
+			addr = InetAddress.getByName(st.nextToken());
+			port = Integer.parseInt(st.nextToken());
+			weight = Integer.parseInt(st.nextToken());
+		}
+		catch (UnknownHostException e)
+		{
+			out.println("Host not found:  " + e.getMessage());
+			return;
+		}
+		catch (NumberFormatException e)
+		{
+			out.println("Target group, port and weight must be integers");
+			return;
+		}
+
+		if (weight < 0)
+		{
+			out.println("Weight must not be negative");
+			return;
+		}
+
+		List targetGroups = distributor.getTargetGroups();
+
+		List targets = null;
+		synchronized (targetGroups)
+		{
+			if (tgIndex < 0 || tgIndex >= targetGroups.size())
+			{
+				out.println("Invalid target group");
+				return;
+			}
+
+			targets = (List) targetGroups.get(tgIndex);
+		}
+
+		boolean targetFound = false;
+		synchronized (targets)
+		{
+			Iterator targetIter = targets.iterator();
+			Target target;
+			while (targetIter.hasNext())
+			{
+				target = (Target) targetIter.next();
+				if (target.getInetAddress().equals(addr) &&
+					target.getPort() == port)
+				{
+					target.setWeight(weight);
+					targetFound = true;
+					out.println("Target weight set");
+					break;
+				}
+			}
+		}
+		if (!targetFound)
+		{
+			out.println("No matching target found");
+		}
+	}
+
 	protected void setLogLevel(StringTokenizer st)
 	{
 		if (st.countTokens() != 1)
@@ -857,6 +977,77 @@ class ControllerConnection implements Runnable
 		}
 
 		logger.setLevel(newLevel);
+		distributor.getLazyLogger().updateThreshold();
+	}
+
+	/*
+	 * Re-open the log files, i.e. after they have been rotated.  The
+	 * actual work is done by each handler's writer thread, so this
+	 * returns right away.
+	 */
+	protected void reopenLog(StringTokenizer st)
+	{
+		Handler[] handlers = logger.getHandlers();
+		int count = 0;
+		for (int i=0 ; i<handlers.length ; i++)
+		{
+			if (handlers[i] instanceof AsyncFileHandler)
+			{
+				((AsyncFileHandler) handlers[i]).reopen();
+				count++;
+			}
+		}
+		out.println("Re-opening " + count + " log file(s)");
+	}
+
+	/*
+	 * List the services this Distributor is running, marking the one
+	 * that other commands currently apply to.
+	 */
+	protected void listServices(StringTokenizer st)
+	{
+		Distributor service;
+		Iterator iter = services.iterator();
+		while (iter.hasNext())
+		{
+			service = (Distributor) iter.next();
+			if (service == distributor)
+			{
+				out.print("* ");
+			}
+			else
+			{
+				out.print("  ");
+			}
+			out.println(service.getName());
+		}
+	}
+
+	/*
+	 * Pick the service that other commands apply to.
+	 */
+	protected void selectService(StringTokenizer st)
+	{
+		if (st.countTokens() != 1)
+		{
+			out.println("Usage: service <name>");
+			return;
+		}
+
+		String name = st.nextToken();
+		Distributor service;
+		Iterator iter = services.iterator();
+		while (iter.hasNext())
+		{
+			service = (Distributor) iter.next();
+			if (service.getName().equals(name))
+			{
+				distributor = service;
+				return;
+			}
+		}
+
+		out.println("No such service");
 	}
 
 	protected boolean isClosed()
@@ -3,7 +3,8 @@
  * $Id$
  *****************************************************************************
  * This class passes data back and forth from clients and servers for
- * established connections through the load balancer.
+ * established connections through the load balancer.  A fixed number of
+ * DataMovers (see DataMoverPool) are shared by all of the Targets.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -29,44 +30,69 @@ package oss.distributor;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CancelledKeyException;
 import java.util.List;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.logging.Logger;
+import java.util.logging.Level;
 
 class DataMover implements Runnable
 {
-	Target target;
-	boolean halfClose;
+	int index;  // Our position in the DataMoverPool
 	Selector selector;
-	Logger logger;
-	List distributionAlgorithms;
-	Map clients;
-	Map servers;
-	List newConnections;
-	List channelsToReactivate;
-	DelayedMover delayedMover;
-	long clientToServerByteCount;
-	long serverToClientByteCount;
+	LazyLogger logger;
+	BufferPool bufferPool;
+	// The buffer that data is read into, borrowed from bufferPool
+	ByteBuffer readBuffer;
+	// Relays the directions of a connection that no distribution
+	// algorithm reviews with splice(2), null to always use readBuffer
+	SpliceRelay spliceRelay;
+	// Work handed to us by other threads
+	MpscQueue newConnections;
+	MpscQueue newConnects;
+	MpscQueue connectionsToClose;
+	// Reused for draining those queues
+	List drained;
 	Thread thread;
 
+	// Each connection has at most one timeout on the wheel, for
+	// whichever of its deadlines comes first.  Activity on the
+	// connection doesn't touch the wheel, it just updates the activity
+	// times in the Connection.  When the timeout expires we check
+	// whether the connection really is past one of its deadlines, and
+	// if not put it back on the wheel for the remaining time.
+	TimingWheel idleTimeouts;
+	List expiredConnections;
+	// The time as of the last select, close enough for tracking
+	// activity and much cheaper than asking for the time on every read
+	long now;
+
 	final int BUFFER_SIZE = 128 * 1024;
+	// Delayed data smaller than this is copied into a smaller buffer
+	// even in relay only mode, so that a slow destination doesn't tie
+	// up a whole BUFFER_SIZE buffer for a few bytes
+	final int RELAY_COPY_THRESHOLD = 16 * 1024;
+	// Resolution of the idle and half close timeouts in milliseconds,
+	// and the number of slots in the timing wheel
+	static final long IDLE_TIMEOUT_TICK = 100;
+	static final int IDLE_TIMEOUT_SLOTS = 1024;
 
 	protected DataMover(
-		Distributor distributor, Target target, boolean halfClose)
+		int index, BufferPool bufferPool, SpliceRelay spliceRelay,
+		LazyLogger logger)
 	{
-		logger = distributor.getLogger();
-		distributionAlgorithms = distributor.getDistributionAlgorithms();
-		this.target = target;
-		this.halfClose = halfClose;
+		this.index = index;
+		this.bufferPool = bufferPool;
+		this.spliceRelay = spliceRelay;
+		this.logger = logger;
+		idleTimeouts = new TimingWheel(IDLE_TIMEOUT_TICK, IDLE_TIMEOUT_SLOTS);
+		expiredConnections = new ArrayList();
+		now = System.currentTimeMillis();
 
 		try
 		{
@@ -78,15 +104,10 @@ class DataMover implements Runnable
 			System.exit(1);
 		}
 
-		clients = new HashMap();
-		servers = new HashMap();
-		newConnections = new LinkedList();
-		channelsToReactivate = new LinkedList();
-
-		delayedMover = new DelayedMover();
-
-		clientToServerByteCount = 0;
-		serverToClientByteCount = 0;
+		newConnections = new MpscQueue();
+		newConnects = new MpscQueue();
+		connectionsToClose = new MpscQueue();
+		drained = new ArrayList();
 
 		// Create a thread for ourselves and start it
 		thread = new Thread(this, toString());
@@ -95,21 +116,20 @@ class DataMover implements Runnable
 
 	/*
 	 * Completed connections established by a distribution algorithm are
-	 * handed to the corresponding Target, which it turn registers them
-	 * with us via this method.
+	 * handed to the corresponding Target, which in turn picks a
+	 * DataMover from the pool and registers them with it via this
+	 * method.
 	 */
 	protected void addConnection(Connection conn)
 	{
-		// Add connection to a list that will be processed later by
-		// calling processNewConnections()
-		synchronized (newConnections)
+		// Add connection to a queue that will be processed later by
+		// calling processNewConnections(), and wakeup the select so
+		// that the queue gets processed.  If the queue wasn't empty the
+		// select has already been woken.
+		if (newConnections.offer(conn))
 		{
-			newConnections.add(conn);
+			selector.wakeup();
 		}
-
-		// Wakeup the select so that the new connection list gets
-		// processed
-		selector.wakeup();
 	}
 
 	/*
@@ -125,135 +145,298 @@ class DataMover implements Runnable
 		SocketChannel server;
 		boolean didSomething = false;
 
-		synchronized (newConnections)
+		newConnections.drain(drained);
+		iter = drained.iterator();
+		while(iter.hasNext())
 		{
-			iter = newConnections.iterator();
-			while(iter.hasNext())
+			conn = (Connection) iter.next();
+
+			client = conn.getClient();
+			server = conn.getServer();
+
+			try
+			{
+				logger.finest("Setting channels to non-blocking mode");
+				client.configureBlocking(false);
+				server.configureBlocking(false);
+
+				// The Connection is attached to both keys so that
+				// everything we need to know about a ready channel
+				// comes straight from its key
+				logger.finest("Registering channels with selector");
+				conn.clientKey =
+					client.register(selector, SelectionKey.OP_READ, conn);
+				conn.serverKey =
+					server.register(selector, SelectionKey.OP_READ, conn);
+				openPipes(conn);
+
+				conn.clientActivityTime = now;
+				conn.serverActivityTime = now;
+				scheduleTimeout(conn);
+			}
+			catch (IOException e)
 			{
-				conn = (Connection) iter.next();
-				iter.remove();
+				logger.warning(
+					"Error setting channels to non-blocking mode: " +
+					e.getMessage());
+				closeConnection(conn);
+			}
 
-				client = conn.getClient();
-				server = conn.getServer();
+			didSomething = true;
+		}
+		drained.clear();
 
-				try
-				{
-					logger.finest("Setting channels to non-blocking mode");
-					client.configureBlocking(false);
-					server.configureBlocking(false);
+		return didSomething;
+	}
+
+	/*
+	 * Used by TargetSelector when it has picked a target for a client
+	 * on the thread that accepted the client.  Rather than handing the
+	 * client to a distribution algorithm's thread to make the
+	 * connection, and then being handed the finished connection, we
+	 * make the connection to the target ourselves.  conn has the client
+	 * and target filled in, and the caller has already counted it with
+	 * Target.connectionStarted().  The server channel is opened by
+	 * processNewConnects().
+	 */
+	protected void connect(Connection conn)
+	{
+		if (newConnects.offer(conn))
+		{
+			selector.wakeup();
+		}
+	}
+
+	/*
+	 * Start connecting to the target for connections queued up by
+	 * calls to connect().  The selector tells us when each connection
+	 * completes, and the connection timeout is kept on the same timing
+	 * wheel as the idle timeouts.
+	 *
+	 * Returns true if it did something (i.e. the queue wasn't empty).
+	 */
+	private boolean processNewConnects()
+	{
+		Iterator iter;
+		Connection conn;
+		boolean didSomething = false;
+
+		newConnects.drain(drained);
+		iter = drained.iterator();
+		while (iter.hasNext())
+		{
+			conn = (Connection) iter.next();
 
-					clients.put(client, server);
-					servers.put(server, client);
+			// TargetSelector has already called connectionStarted()
+			conn.connecting = true;
+			conn.connectStartTime = System.nanoTime();
+			// serverActivityTime holds the time the connect was
+			// started until the connection completes
+			conn.serverActivityTime = now;
 
-					logger.finest("Registering channels with selector");
-					client.register(selector, SelectionKey.OP_READ);
-					server.register(selector, SelectionKey.OP_READ);
+			try
+			{
+				conn.server = SocketChannel.open();
+				conn.server.configureBlocking(false);
+				conn.serverKey = conn.server.register(
+					selector, SelectionKey.OP_CONNECT, conn);
+				if (conn.server.connect(
+					new InetSocketAddress(
+						conn.target.getInetAddress(),
+						conn.target.getPort())))
+				{
+					// Connections to the local machine can
+					// complete immediately
+					completeConnect(conn);
 				}
-				catch (IOException e)
+				else
 				{
-					logger.warning(
-						"Error setting channels to non-blocking mode: " +
-						e.getMessage());
-					try
-					{
-						logger.fine("Closing channels");
-						client.close();
-						server.close();
-					}
-					catch (IOException ioe)
-					{
-						logger.warning("Error closing channels: " +
-							ioe.getMessage());
-					}
+					scheduleTimeout(conn);
 				}
-
-				didSomething = true;
 			}
+			catch (IOException e)
+			{
+				logger.warning(
+					"Error initiating connection to target: " +
+					e.getMessage());
+				failConnect(conn);
+			}
+
+			didSomething = true;
 		}
+		drained.clear();
 
 		return didSomething;
 	}
 
 	/*
-	 * In the moveData() method, if we have a destination channel which
-	 * we aren't immediately able to write data to, we de-activate the
-	 * corresponding source channel from the selector until DelayedMover
-	 * is able to transmit all of that delayed data.  This method is
-	 * used by DelayedMover to tell us that all of the data from a
-	 * channel has been sent to its destination, and thus that we can
-	 * re-activate the channel with the selector and read more data from
-	 * it.
+	 * Called when the selector reports that the connection to the
+	 * target for conn has completed (successfully or not).
+	 */
+	private void finishConnect(Connection conn)
+	{
+		try
+		{
+			if (conn.server.finishConnect())
+			{
+				logger.log(Level.FINE,
+					"Connection from {0} to {1} complete",
+					conn.client, conn.server);
+				completeConnect(conn);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.log(Level.FINE,
+				"Error finishing connection to {0}: {1}",
+				conn.target, e.getMessage());
+			failConnect(conn);
+		}
+	}
+
+	/*
+	 * Do what TargetSelector would have done with a connection that a
+	 * distribution algorithm finished, and start moving its data.
+	 */
+	private void completeConnect(Connection conn)
+	{
+		Iterator iter;
+
+		conn.connecting = false;
+		conn.target.recordConnectTime(
+			System.nanoTime() - conn.connectStartTime);
+
+		// Let each distribution algorithm know that a successful
+		// connection has occurred
+		iter = conn.distributor.getDistributionAlgorithms().iterator();
+		while (iter.hasNext())
+		{
+			((DistributionAlgorithm) iter.next()).connectionNotify(conn);
+		}
+
+		conn.target.registerConnection(conn, this);
+
+		try
+		{
+			conn.serverKey.interestOps(SelectionKey.OP_READ);
+			conn.clientKey =
+				conn.client.register(selector, SelectionKey.OP_READ, conn);
+			openPipes(conn);
+
+			conn.clientActivityTime = now;
+			conn.serverActivityTime = now;
+			scheduleTimeout(conn);
+		}
+		catch (IOException e)
+		{
+			logger.warning(
+				"Error registering channels with selector: " +
+				e.getMessage());
+			closeConnection(conn);
+		}
+	}
+
+	/*
+	 * The connection to the target failed or timed out.  Give the
+	 * client to TargetSelector so that it goes through the
+	 * distribution algorithms the usual way.
 	 */
-	protected void addToReactivateList(SocketChannel channel)
+	private void failConnect(Connection conn)
 	{
-		// Add channel to a list that will be processed later by
-		// calling processReactivateList()
-		synchronized (channelsToReactivate)
+		conn.connecting = false;
+		conn.target.connectionFailed();
+
+		if (conn.idleTimeout != null)
 		{
-			channelsToReactivate.add(channel);
+			idleTimeouts.cancel(conn.idleTimeout);
+			conn.idleTimeout = null;
+		}
+		if (conn.serverKey != null)
+		{
+			conn.serverKey.cancel();
+		}
+		if (conn.server != null)
+		{
+			try
+			{
+				conn.server.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Error closing channel: " + e.getMessage());
+			}
 		}
 
-		// Wakeup the select so that the list gets processed
-		selector.wakeup();
+		conn.distributor.getTargetSelector().addUnconnectedClient(
+			conn.client);
+	}
+
+	/*
+	 * Used by Connection.terminate() to have us close a connection.
+	 * The connection's buffers are only ever touched by our thread, so
+	 * rather than closing it in the caller's thread we queue it up to
+	 * be closed by processConnectionsToClose().
+	 */
+	protected void terminateConnection(Connection conn)
+	{
+		// Wakeup the select so that the queue gets processed
+		if (connectionsToClose.offer(conn))
+		{
+			selector.wakeup();
+		}
 	}
 
 	/*
-	 * Process channels queued up by calls to addToReactivateList()
+	 * Close connections queued up by calls to terminateConnection()
 	 *
 	 * Returns true if it did something (i.e. the queue wasn't empty).
 	 */
-	private boolean processReactivateList()
+	private boolean processConnectionsToClose()
 	{
 		Iterator iter;
-		SocketChannel channel;
-		SelectionKey key;
+		Connection conn;
 		boolean didSomething = false;
 
-		synchronized (channelsToReactivate)
+		connectionsToClose.drain(drained);
+		iter = drained.iterator();
+		while(iter.hasNext())
 		{
-			iter = channelsToReactivate.iterator();
-			while(iter.hasNext())
-			{
-				channel = (SocketChannel) iter.next();
-				iter.remove();
+			conn = (Connection) iter.next();
 
-				key = channel.keyFor(selector);
-
-				try
-				{
-					// Add OP_READ back to the interest bits
-					key.interestOps(
-						key.interestOps() | SelectionKey.OP_READ);
-				}
-				catch (CancelledKeyException e)
-				{
-					// The channel has been closed or something similar,
-					// nothing we can do about it.
-				}
+			closeConnection(conn);
 
-				didSomething = true;
-			}
+			didSomething = true;
 		}
+		drained.clear();
 
 		return didSomething;
 	}
 
 	public void run()
 	{
-		ByteBuffer buffer;
 		boolean pncReturn;
-		boolean prlReturn;
+		boolean pnctReturn;
+		boolean pctcReturn;
 		int selectFailureOrZeroCount = 0;
 		int selectReturn;
+		long selectTimeout;
 		Iterator keyIter;
 		SelectionKey key;
 		SocketChannel src;
 		SocketChannel dst;
+		// The channel being read or written, so that an error can be
+		// blamed on the right side of the connection
+		SocketChannel active = null;
+		Connection conn;
 		boolean clientToServer;
 		boolean readMore;
 		int numberOfBytes;
+		// For a spliced direction, the source's file descriptor and the
+		// pipe to read into
+		int srcFD;
+		int[] pipe;
 
-		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		readBuffer = bufferPool.getBuffer(BUFFER_SIZE);
 
 		WHILETRUE:  while(true)
 		{
@@ -263,14 +446,20 @@ class DataMover implements Runnable
 			pncReturn = processNewConnections();
 
 			//
-			// Re-activate channels with the selector
+			// Start connecting to targets for new clients
 			//
-			prlReturn = processReactivateList();
+			pnctReturn = processNewConnects();
 
-			// Reset the failure counter if processNewConnections() or
-			// processReactivateList() did something, as that would
+			//
+			// Close any connections that were terminated
+			//
+			pctcReturn = processConnectionsToClose();
+
+			// Reset the failure counter if processNewConnections(),
+			// processNewConnects() or processConnectionsToClose() did
+			// something, as that would
 			// explain why select would return with zero ready channels.
-			if (pncReturn || prlReturn)
+			if (pncReturn || pnctReturn || pctcReturn)
 			{
 				selectFailureOrZeroCount = 0;
 			}
@@ -292,9 +481,13 @@ class DataMover implements Runnable
 			selectReturn = 0;
 			try
 			{
-				selectReturn = selector.select();
+				selectTimeout = idleTimeouts.getSelectTimeout();
+				selectReturn = selector.select(selectTimeout);
+				now = System.currentTimeMillis();
 
-				if (selectReturn > 0)
+				// Returning with nothing ready is expected if the
+				// select timed out
+				if (selectReturn > 0 || selectTimeout > 0)
 				{
 					selectFailureOrZeroCount = 0;
 				}
@@ -315,42 +508,66 @@ class DataMover implements Runnable
 				continue WHILETRUE;
 			}
 
-			logger.finest(
-				"select reports " + selectReturn + " channels ready to read");
+			logger.log(Level.FINEST,
+				"select reports {0} channels ready", selectReturn);
 
 			// Work through the list of channels that have data to read
+			// or delayed data waiting to be written to them
 			keyIter = selector.selectedKeys().iterator();
 			KEYITER:  while (keyIter.hasNext())
 			{
 				key = (SelectionKey) keyIter.next();
 				keyIter.remove();
 
+				// The key may have been canceled by the closing of
+				// a connection earlier in this pass
+				if (! key.isValid())
+				{
+					continue KEYITER;
+				}
+
 				// Figure out which direction this data is going and
 				// get the SocketChannel that is the other half of
 				// the connection.
-				src = (SocketChannel) key.channel();
-				if (clients.containsKey(src))
+				conn = (Connection) key.attachment();
+				if (conn.connecting)
 				{
-					clientToServer = true;
-					dst = (SocketChannel) clients.get(src);
+					finishConnect(conn);
+					continue KEYITER;
 				}
-				else if (servers.containsKey(src))
+				if (key == conn.clientKey)
 				{
-					clientToServer = false;
-					dst = (SocketChannel) servers.get(src);
+					clientToServer = true;
+					src = conn.client;
+					dst = conn.server;
+					srcFD = conn.clientFD;
+					pipe = conn.clientToServerPipe;
 				}
 				else
 				{
-					// We've been dropped from the maps, which means the
-					// connection has already been closed.  Nothing to
-					// do except cancel our key (just to be safe) and
-					// move on to the next ready key.
-					key.cancel();
-					continue KEYITER;
+					clientToServer = false;
+					src = conn.server;
+					dst = conn.client;
+					srcFD = conn.serverFD;
+					pipe = conn.serverToClientPipe;
 				}
 
 				try
 				{
+					// If this channel was the destination for data we
+					// couldn't immediately write, try to finish that
+					// off first.
+					if (key.isWritable())
+					{
+						active = src;
+						writeDelayedData(conn, ! clientToServer);
+					}
+
+					if (! key.isReadable())
+					{
+						continue KEYITER;
+					}
+
 					// Loop as long as the source has data to read
 					// and we can write it to the destination.
 					do  // while (readMore)
@@ -359,22 +576,68 @@ class DataMover implements Runnable
 						readMore = false;
 
 						// Try to read data
-						buffer.clear();
-						numberOfBytes = src.read(buffer);
-						logger.finest(
-							"Read " + numberOfBytes + " bytes from " + src);
+						active = src;
+						numberOfBytes = 0;
+						if (pipe != null)
+						{
+							try
+							{
+								numberOfBytes = spliceRelay.splice(
+									srcFD, pipe[1], BUFFER_SIZE);
+							}
+							catch (SpliceRelay.SpliceFailedException e)
+							{
+								// The pipe is empty while we're
+								// reading, so just carry on copying
+								stopSplicing(conn, clientToServer, 0, e);
+								pipe = null;
+							}
+						}
+						if (pipe == null)
+						{
+							readBuffer.clear();
+							numberOfBytes = src.read(readBuffer);
+						}
+						logger.log(Level.FINEST,
+							"Read {0} bytes from {1}", numberOfBytes, src);
 
 						if (numberOfBytes > 0)  // Data was read
 						{
-							if (moveData(
-								buffer, src, dst, clientToServer, key))
+							if (clientToServer)
 							{
-								readMore = true;
+								conn.clientActivityTime = now;
+							}
+							else
+							{
+								conn.serverActivityTime = now;
+							}
+
+							active = dst;
+							if (pipe != null)
+							{
+								readMore = movePipedData(
+									conn, clientToServer, numberOfBytes);
+							}
+							else
+							{
+								readMore =
+									moveData(readBuffer, conn, clientToServer);
 							}
 						}
 						else if (numberOfBytes == -1)  // EOF
 						{
-							handleEOF(key, src, dst, clientToServer);
+							// A server which hangs up on a client
+							// without sending anything is as good as
+							// down, i.e. it has run out of workers.
+							// halfCloseTime is still zero if the
+							// client hasn't hung up first.
+							if (! clientToServer &&
+								conn.serverToClientByteCount == 0 &&
+								conn.halfCloseTime == 0)
+							{
+								conn.serverFailed = true;
+							}
+							handleEOF(conn, src, dst, clientToServer);
 						}
 					} while (readMore);
 				}
@@ -383,576 +646,751 @@ class DataMover implements Runnable
 					logger.warning(
 						"Error moving data between channels: " +
 						e.getMessage());
-					closeConnection(src, dst, clientToServer);
+					if (active == conn.server)
+					{
+						conn.serverFailed = true;
+					}
+					closeConnection(conn);
 				}
 			}
+
+			//
+			// Close any connections that have been idle too long
+			//
+			processExpiredTimeouts();
+		}
+	}
+
+	/*
+	 * Returns the number of milliseconds until the earliest of conn's
+	 * idle and half close deadlines (zero or negative if that has
+	 * passed), or Long.MAX_VALUE if none of the timeouts apply.  The
+	 * timeouts are those of the service the connection belongs to.
+	 * For a connection that we're still connecting to its target, the
+	 * only deadline is the connection timeout.
+	 */
+	private long timeUntilDeadline(Connection conn)
+	{
+		if (conn.connecting)
+		{
+			return conn.serverActivityTime +
+				conn.distributor.getConnectionTimeout() - now;
+		}
+
+		long remaining = Long.MAX_VALUE;
+		int clientIdleTimeout = conn.distributor.getClientIdleTimeout();
+		int serverIdleTimeout = conn.distributor.getServerIdleTimeout();
+		int halfCloseTimeout = conn.distributor.getHalfCloseTimeout();
+
+		if (clientIdleTimeout > 0)
+		{
+			remaining = Math.min(remaining,
+				conn.clientActivityTime + clientIdleTimeout - now);
+		}
+		if (serverIdleTimeout > 0)
+		{
+			remaining = Math.min(remaining,
+				conn.serverActivityTime + serverIdleTimeout - now);
+		}
+		if (halfCloseTimeout > 0 && conn.halfCloseTime > 0)
+		{
+			remaining = Math.min(remaining,
+				conn.halfCloseTime + halfCloseTimeout - now);
+		}
+
+		return remaining;
+	}
+
+	/*
+	 * Put conn on the timing wheel for its next deadline, replacing any
+	 * timeout it already has there.
+	 */
+	private void scheduleTimeout(Connection conn)
+	{
+		if (conn.idleTimeout != null)
+		{
+			idleTimeouts.cancel(conn.idleTimeout);
+			conn.idleTimeout = null;
+		}
+
+		long remaining = timeUntilDeadline(conn);
+		if (remaining != Long.MAX_VALUE)
+		{
+			conn.idleTimeout =
+				idleTimeouts.schedule(conn, Math.max(remaining, 0));
+		}
+	}
+
+	/*
+	 * Close the connections whose timeouts have expired, unless there
+	 * has been activity since the timeout was scheduled, in which case
+	 * the connection goes back on the wheel.
+	 */
+	private void processExpiredTimeouts()
+	{
+		Iterator iter;
+		Connection conn;
+
+		idleTimeouts.expireTimeouts(expiredConnections);
+
+		iter = expiredConnections.iterator();
+		while (iter.hasNext())
+		{
+			conn = (Connection) iter.next();
+			conn.idleTimeout = null;
+
+			if (conn.connecting && timeUntilDeadline(conn) <= 0)
+			{
+				logger.log(Level.FINER,
+					"Pending connection from {0} to {1} timed out",
+					conn.client, conn.target);
+				failConnect(conn);
+			}
+			else if (timeUntilDeadline(conn) <= 0)
+			{
+				logger.log(Level.FINE, "Closing idle {0}", conn);
+				closeConnection(conn);
+			}
+			else
+			{
+				scheduleTimeout(conn);
+			}
 		}
+		expiredConnections.clear();
 	}
 
 	/*
-	 * Give the distribution algorithms a chance to review the data in
-	 * buffer, then attempt to send it to dst.
+	 * Give the distribution algorithms which asked to see this
+	 * direction of the connection's traffic a chance to review the data
+	 * in buffer, then attempt to send it to the other side of the
+	 * connection.  When no algorithm wants to see the data we're in
+	 * "relay only" mode for this direction.
 	 *
 	 * Returns true is all of the data in buffer is successfully
-	 * transmitted to dst, false if some/all of it is delayed.
+	 * transmitted, false if some/all of it is delayed.
 	 */
 	private boolean moveData(
-		ByteBuffer buffer,
-		SocketChannel src, SocketChannel dst,
-		boolean clientToServer, SelectionKey sourceKey) throws IOException
+		ByteBuffer buffer, Connection conn, boolean clientToServer)
+		throws IOException
 	{
-		Iterator iter;
-		DistributionAlgorithm algo;
+		DistributionAlgorithm[] reviewers;
 		ByteBuffer reviewedBuffer;
+		SocketChannel src;
+		SocketChannel dst;
+		SelectionKey sourceKey;
+		SelectionKey destKey;
 
 		buffer.flip();
 
 		if (clientToServer)
 		{
-			clientToServerByteCount += buffer.remaining();
+			src = conn.client;
+			dst = conn.server;
+			sourceKey = conn.clientKey;
+			destKey = conn.serverKey;
+			reviewers = conn.clientToServerReviewers;
+			conn.clientToServerByteCount += buffer.remaining();
 		}
 		else
 		{
-			serverToClientByteCount += buffer.remaining();
+			src = conn.server;
+			dst = conn.client;
+			sourceKey = conn.serverKey;
+			destKey = conn.clientKey;
+			reviewers = conn.serverToClientReviewers;
+			conn.serverToClientByteCount += buffer.remaining();
 		}
 
-		// Give each of the distribution algorithms a
-		// chance to inspect/modify the data stream
-		iter = distributionAlgorithms.iterator();
+		// Give each of the interested distribution algorithms a
+		// chance to inspect/modify the data stream.  In the common
+		// case nobody is interested and reviewers is empty.
 		reviewedBuffer = buffer;
-		while (iter.hasNext())
+		for (int i=0 ; i<reviewers.length ; i++)
 		{
-			algo = (DistributionAlgorithm) iter.next();
 			if (clientToServer)
 			{
-				reviewedBuffer =
-					algo.reviewClientToServerData(src, dst, reviewedBuffer);
+				reviewedBuffer = reviewers[i].reviewClientToServerData(
+					src, dst, reviewedBuffer);
 			}
 			else
 			{
-				reviewedBuffer =
-					algo.reviewServerToClientData(src, dst, reviewedBuffer);
+				reviewedBuffer = reviewers[i].reviewServerToClientData(
+					src, dst, reviewedBuffer);
 			}
 		}
 
 		// Make an effort to send the data on to its destination
-		dst.write(reviewedBuffer);
-
-		// If there is still data in the buffer, hand it off to
-		// DelayedMover
-		if (reviewedBuffer.hasRemaining())
+		if (dst.write(reviewedBuffer) > 0)
 		{
-			logger.finer("Delaying " + reviewedBuffer.remaining() +
-				" bytes from " + src + " to " + dst);
-
-			// Copy the delayed data into a temporary buffer
-			ByteBuffer delayedBuffer =
-				ByteBuffer.allocate(reviewedBuffer.remaining());
-			delayedBuffer.put(reviewedBuffer);
-			delayedBuffer.flip();
-
-			// De-activate the source channel from the selector by
-			// removing OP_READ from the interest bits.  (This is safer
-			// than actually canceling the key and then re-registering
-			// the channel later, there are race condition problems with
-			// that approach leading to CanceledKeyExceptions.)  We
-			// don't want to read any more data from the source until we
-			// get this delayed data written to the destination.
-			// DelayedMover will re-activate the source channel (via
-			// addToReactivateList()) when it has written all of the
-			// delayed data.
-			try
+			if (clientToServer)
 			{
-				sourceKey.interestOps(
-					sourceKey.interestOps() ^ SelectionKey.OP_READ);
-
-				delayedMover.addToQueue(
-					new DelayedDataInfo(
-						dst, delayedBuffer, src, clientToServer));
+				conn.serverActivityTime = now;
 			}
-			catch (CancelledKeyException e)
+			else
 			{
-				// The channel has been closed or something similar,
-				// nothing we can do about it.
+				conn.clientActivityTime = now;
 			}
-
-			return false;
-		}
-		else
-		{
-			return true;
 		}
-	}
 
-	private void handleEOF(
-		SelectionKey key,
-		SocketChannel src, SocketChannel dst,
-		boolean clientToServer) throws IOException
-	{
-		if (halfClose)
+		// If there is still data in the buffer, hold on to it until
+		// the destination is ready for more
+		if (reviewedBuffer.hasRemaining())
 		{
-			Socket srcSocket;
-			Socket dstSocket;
-
-			// Cancel this key, otherwise this channel will repeatedly
-			// trigger select to tell us that it is at EOF.
-			key.cancel();
+			logger.log(Level.FINER, "Delaying {0} bytes from {1} to {2}",
+				reviewedBuffer.remaining(), src, dst);
 
-			srcSocket = src.socket();
-			dstSocket = dst.socket();
+			ByteBuffer delayedBuffer;
 
-			// If the other half of the socket is already shutdown then
-			// go ahead and close the socket
-			if (srcSocket.isOutputShutdown())
+			if (reviewers.length == 0 && reviewedBuffer == readBuffer &&
+				reviewedBuffer.remaining() > RELAY_COPY_THRESHOLD)
 			{
-				logger.finer("Closing source socket");
-				srcSocket.close();
+				// Nobody else has seen the read buffer, so rather than
+				// copying a large amount of delayed data out of it we
+				// keep the read buffer itself as the delayed data and
+				// borrow a fresh one to read into
+				delayedBuffer = readBuffer;
+				readBuffer = bufferPool.getBuffer(BUFFER_SIZE);
 			}
-			// Otherwise just close down the input stream.  This allows
-			// any return traffic to continue to flow.
 			else
 			{
-				logger.finest("Shutting down source input");
-				srcSocket.shutdownInput();
+				// Copy the delayed data into a buffer borrowed from the
+				// pool, it goes back when the data has been written
+				delayedBuffer =
+					bufferPool.getBuffer(reviewedBuffer.remaining());
+				delayedBuffer.put(reviewedBuffer);
+				delayedBuffer.flip();
 			}
 
-			// Do the same thing for the destination, but using the
-			// reverse streams.
-			if (dstSocket.isInputShutdown())
+			if (clientToServer)
 			{
-				logger.finer("Closing destination socket");
-				dstSocket.close();
+				conn.clientToServerDelayed = delayedBuffer;
 			}
 			else
 			{
-				logger.finest("Shutting down dest output");
-				dstSocket.shutdownOutput();
+				conn.serverToClientDelayed = delayedBuffer;
 			}
 
-			// Clean up if both halves of the connection are now closed
-			if (srcSocket.isClosed() && dstSocket.isClosed())
-			{
-				dumpState(src, dst, clientToServer);
-			}
+			delaySource(sourceKey, destKey);
+
+			return false;
 		}
 		else
 		{
-			// If half close isn't enabled, just close the connection.
-			closeConnection(src, dst, clientToServer);
+			return true;
 		}
 	}
 
-	private void closeConnection(
-		SocketChannel src, SocketChannel dst, boolean clientToServer)
+	/*
+	 * The splice relay's version of moveData(), for a direction which
+	 * no distribution algorithm reviews.  The data is already in the
+	 * direction's pipe, count bytes of it, and is sent on from there.
+	 *
+	 * Returns true if all of the data in the pipe is successfully
+	 * transmitted, false if some/all of it is delayed.
+	 */
+	private boolean movePipedData(
+		Connection conn, boolean clientToServer, int count)
+		throws IOException
 	{
-		SocketChannel client;
-		SocketChannel server;
+		int[] pipe;
+		int dstFD;
+		int numberOfBytes;
+		int remaining = count;
+		SpliceRelay.SpliceFailedException failure = null;
 
 		if (clientToServer)
 		{
-			client = src;
-			server = dst;
+			pipe = conn.clientToServerPipe;
+			dstFD = conn.serverFD;
+			conn.clientToServerByteCount += count;
 		}
 		else
 		{
-			server = src;
-			client = dst;
+			pipe = conn.serverToClientPipe;
+			dstFD = conn.clientFD;
+			conn.serverToClientByteCount += count;
 		}
 
-		closeConnection(client, server);
-	}
-
-	protected void closeConnection(
-		SocketChannel client, SocketChannel server)
-	{
-		// Close both channels
+		// Make an effort to send the data on to its destination.  Unlike
+		// a write from a buffer, a splice to a socket can stop short
+		// while the socket still has room, so keep going until it
+		// would block.
 		try
 		{
-			logger.fine("Closing channels");
-			client.close();
-			server.close();
+			do
+			{
+				numberOfBytes =
+					spliceRelay.splice(pipe[0], dstFD, remaining);
+				if (numberOfBytes > 0)
+				{
+					remaining -= numberOfBytes;
+				}
+			} while (numberOfBytes > 0 && remaining > 0);
 		}
-		catch (IOException ioe)
+		catch (SpliceRelay.SpliceFailedException e)
 		{
-			logger.warning("Error closing channels: " + ioe.getMessage());
+			failure = e;
 		}
 
-		dumpState(client, server);
-	}
-
-	private void dumpState(
-		SocketChannel src, SocketChannel dst, boolean clientToServer)
-	{
-		SocketChannel client;
-		SocketChannel server;
+		if (remaining < count)
+		{
+			if (clientToServer)
+			{
+				conn.serverActivityTime = now;
+			}
+			else
+			{
+				conn.clientActivityTime = now;
+			}
+		}
 
-		if (clientToServer)
+		// If there is still data in the pipe, leave it there until the
+		// destination is ready for more
+		if (remaining > 0)
 		{
-			client = src;
-			server = dst;
+			logger.log(Level.FINER,
+				"Delaying {0} piped bytes for {1}", remaining, conn);
+
+			if (failure != null)
+			{
+				// Carry on copying, starting with what's in the pipe
+				stopSplicing(conn, clientToServer, remaining, failure);
+			}
+			else if (clientToServer)
+			{
+				conn.clientToServerPiped = remaining;
+			}
+			else
+			{
+				conn.serverToClientPiped = remaining;
+			}
+
+			if (clientToServer)
+			{
+				delaySource(conn.clientKey, conn.serverKey);
+			}
+			else
+			{
+				delaySource(conn.serverKey, conn.clientKey);
+			}
+
+			return false;
 		}
 		else
 		{
-			server = src;
-			client = dst;
+			return true;
 		}
-
-		dumpState(client, server);
 	}
 
 	/*
-	 * Call this method when closing a connection to remove any
-	 * associated entries from the state tracking maps.
+	 * De-activate the source channel by removing OP_READ from its
+	 * interest bits, we don't want to read any more data from the
+	 * source until we get the delayed data written to the
+	 * destination.  Then ask the selector to tell us when the
+	 * destination is ready for more data by adding OP_WRITE to its
+	 * interest bits.  writeDelayedData() will reverse both of these
+	 * once the delayed data has been written.
 	 */
-	private void dumpState(SocketChannel client, SocketChannel server)
-	{
-		clients.remove(client);
-		servers.remove(server);
-
-		delayedMover.dumpDelayedState(client, server);
-	}
-
-	public long getClientToServerByteCount()
-	{
-		return clientToServerByteCount;
-	}
-
-	public long getServerToClientByteCount()
-	{
-		return serverToClientByteCount;
-	}
-
-	public String toString()
+	private void delaySource(SelectionKey sourceKey, SelectionKey destKey)
 	{
-		return getClass().getName() +
-			" for " + target.getInetAddress() + ":" + target.getPort();
+		try
+		{
+			sourceKey.interestOps(
+				sourceKey.interestOps() & ~SelectionKey.OP_READ);
+			destKey.interestOps(
+				destKey.interestOps() | SelectionKey.OP_WRITE);
+		}
+		catch (CancelledKeyException e)
+		{
+			// The channel has been closed or something similar,
+			// nothing we can do about it.
+		}
 	}
 
-	protected String getMemoryStats(String indent)
+	/*
+	 * Called when the selector reports that a channel we have delayed
+	 * data for is ready to be written to.  Writes as much of the
+	 * delayed data (or, for a spliced direction, the data waiting in
+	 * the pipe) as the channel will accept.  Once all of it has been
+	 * written the channel goes back to only being watched for reads and
+	 * the source of the data is re-activated so that we can read more
+	 * from it.
+	 */
+	private void writeDelayedData(Connection conn, boolean clientToServer)
+		throws IOException
 	{
-		String stats;
-
-		stats = indent + clients.size() + " entries in clients Map\n";
-		stats += indent + servers.size() + " entries in servers Map\n";
-		stats += indent +
-			newConnections.size() + " entries in newConnections List\n";
-		stats += indent +
-			channelsToReactivate.size() +
-			" entries in channelsToReactivate List\n";
-		stats += indent +
-			selector.keys().size() + " entries in selector key Set\n";
-		stats += indent + "DelayedMover:\n";
-		stats += delayedMover.getMemoryStats(indent);
-
-		return stats;
-	}
+		ByteBuffer delayedBuffer;
+		int[] pipe;
+		int piped;
+		int dstFD;
+		SocketChannel dst;
+		SelectionKey sourceKey;
+		SelectionKey destKey;
+		int numberOfBytes = 0;
+		int remaining = 0;
 
-	class DelayedMover implements Runnable
-	{
-		Selector delayedSelector;
-		List queue;
-		Map delayedInfo;
-		Thread thread;
+		if (clientToServer)
+		{
+			delayedBuffer = conn.clientToServerDelayed;
+			pipe = conn.clientToServerPipe;
+			piped = conn.clientToServerPiped;
+			dstFD = conn.serverFD;
+			dst = conn.server;
+			sourceKey = conn.clientKey;
+			destKey = conn.serverKey;
+		}
+		else
+		{
+			delayedBuffer = conn.serverToClientDelayed;
+			pipe = conn.serverToClientPipe;
+			piped = conn.serverToClientPiped;
+			dstFD = conn.clientFD;
+			dst = conn.client;
+			sourceKey = conn.serverKey;
+			destKey = conn.clientKey;
+		}
 
-		DelayedMover()
+		if (delayedBuffer == null && piped > 0)
 		{
 			try
 			{
-				delayedSelector = Selector.open();
+				numberOfBytes = Math.max(
+					spliceRelay.splice(pipe[0], dstFD, piped), 0);
+				remaining = piped - numberOfBytes;
+				if (clientToServer)
+				{
+					conn.clientToServerPiped = remaining;
+				}
+				else
+				{
+					conn.serverToClientPiped = remaining;
+				}
 			}
-			catch (IOException e)
+			catch (SpliceRelay.SpliceFailedException e)
 			{
-				logger.severe("Error creating selector: " + e.getMessage());
-				System.exit(1);
+				// Carry on copying, starting with what's in the pipe
+				delayedBuffer =
+					stopSplicing(conn, clientToServer, piped, e);
 			}
-
-			queue = new LinkedList();
-			delayedInfo = new HashMap();
-
-			// Create a thread for ourselves and start it
-			thread = new Thread(this, toString());
-			thread.start();
 		}
 
-		/*
-		 * Used by DataMover to register a destination with us.
-		 */
-		void addToQueue(DelayedDataInfo info)
+		if (delayedBuffer != null || piped > 0)
 		{
-			// Add channel to a list that will be processed later by
-			// calling processQueue()
-			synchronized (queue)
+			if (delayedBuffer != null)
 			{
-				queue.add(info);
+				numberOfBytes = dst.write(delayedBuffer);
+				remaining = delayedBuffer.remaining();
 			}
 
-			// Wakeup the select so that the new connection list
-			// gets processed
-			delayedSelector.wakeup();
-		}
-
-		/*
-		 * Process the list created by addToQueue()
-		 */
-		private boolean processQueue()
-		{
-			Iterator iter;
-			DelayedDataInfo info;
-			SocketChannel dst;
-			SelectionKey key;
-			boolean didSomething = false;
+			logger.log(Level.FINEST,
+				"Wrote {0} delayed bytes to {2}, {1} bytes remain delayed",
+				numberOfBytes, remaining, dst);
 
-			synchronized (queue)
+			if (numberOfBytes > 0)
 			{
-				iter = queue.iterator();
-				while (iter.hasNext())
+				if (clientToServer)
+				{
+					conn.serverActivityTime = now;
+				}
+				else
 				{
-					info = (DelayedDataInfo) iter.next();
-					iter.remove();
+					conn.clientActivityTime = now;
+				}
+			}
 
-					dst = info.getDest();
+			if (remaining > 0)
+			{
+				return;
+			}
 
-					// Store the info in a map for later use
-					synchronized (delayedInfo)
-					{
-						delayedInfo.put(dst, info);
-					}
+			if (delayedBuffer != null)
+			{
+				bufferPool.putBuffer(delayedBuffer);
+			}
+		}
 
-					// Check to see if we already have a key registered
-					// for this channel.
-					key = dst.keyFor(delayedSelector);
-					if (key == null)
-					{
-						// Nope, no key already registered.  Register a
-						// new one.
-						logger.finest(
-							"Registering channel with selector");
-						try
-						{
-							dst.register(
-								delayedSelector, SelectionKey.OP_WRITE);
-						}
-						catch (ClosedChannelException e)
-						{
-							// If the channel is already closed, there isn't
-							// much else we can do to it.  DataMover will
-							// clean things up.
-						}
-					}
-					else
-					{
-						// We already have a key registered, make sure
-						// it has the right interest bits.
-						try
-						{
-							key.interestOps(
-								key.interestOps() | SelectionKey.OP_WRITE);
-						}
-						catch (CancelledKeyException e)
-						{
-							// The channel has been closed or something
-							// similar, nothing we can do about it.
-							// DataMover will clean things up.
-						}
-					}
+		if (clientToServer)
+		{
+			conn.clientToServerDelayed = null;
+		}
+		else
+		{
+			conn.serverToClientDelayed = null;
+		}
 
-					didSomething = true;
-				}
-			}
+		destKey.interestOps(destKey.interestOps() & ~SelectionKey.OP_WRITE);
 
-			return didSomething;
+		// Add OP_READ back to the interest bits of the source
+		try
+		{
+			sourceKey.interestOps(
+				sourceKey.interestOps() | SelectionKey.OP_READ);
+		}
+		catch (CancelledKeyException e)
+		{
+			// The channel has been closed or something similar,
+			// nothing we can do about it.
 		}
+	}
 
-		public void run()
+	private void handleEOF(
+		Connection conn,
+		SocketChannel src, SocketChannel dst,
+		boolean clientToServer) throws IOException
+	{
+		if (conn.distributor.getHalfClose())
 		{
-			int selectReturn;
-			int selectFailureOrZeroCount = 0;
-			boolean pqReturn;
-			Iterator keyIter;
+			Socket srcSocket;
+			Socket dstSocket;
 			SelectionKey key;
-			SocketChannel dst;
-			DelayedDataInfo info;
-			ByteBuffer delayedBuffer;
-			int numberOfBytes;
-			SocketChannel src;
 
-			WHILETRUE: while (true)
+			// Stop watching this channel for reads, otherwise it will
+			// repeatedly trigger select to tell us that it is at EOF.
+			// The key is left registered (rather than canceled) since
+			// we may still need it to be told when the channel is
+			// ready for delayed return traffic.
+			if (clientToServer)
 			{
-				// Register any new connections with the selector
-				pqReturn = processQueue();
-
-				// Reset the failure counter if processQueue() did
-				// something, as that would explain why select would
-				// return with zero ready channels.
-				if (pqReturn)
-				{
-					selectFailureOrZeroCount = 0;
-				}
-
-				// If we exceed the threshold of failed selects, pause
-				// for a bit so we don't go into a tight loop
-				if (selectFailureOrZeroCount >= 10)
-				{
-					logger.warning(
-						"select appears to be failing repeatedly, pausing");
-					try { Thread.sleep(500); }
-						catch (InterruptedException e) {}
-					selectFailureOrZeroCount = 0;
-				}
+				key = conn.clientKey;
+			}
+			else
+			{
+				key = conn.serverKey;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
 
-				// Now select for any channels that are ready to write
-				try
-				{
-					selectReturn = delayedSelector.select();
+			srcSocket = src.socket();
+			dstSocket = dst.socket();
 
-					if (selectReturn > 0)
-					{
-						selectFailureOrZeroCount = 0;
-					}
-					else
-					{
-						selectFailureOrZeroCount++;
-					}
-				}
-				catch (IOException e)
-				{
-					// The only exceptions thrown by select seem to be the
-					// occasional (fairly rare) "Interrupted system call"
-					// which, from what I can tell, is safe to ignore.
-					logger.warning(
-						"Error when selecting for ready channel: " +
-						e.getMessage());
-					selectFailureOrZeroCount++;
-					continue WHILETRUE;
-				}
+			// If the other half of the socket is already shutdown then
+			// go ahead and close the socket
+			if (srcSocket.isOutputShutdown())
+			{
+				logger.finer("Closing source socket");
+				srcSocket.close();
+			}
+			// Otherwise just close down the input stream.  This allows
+			// any return traffic to continue to flow.
+			else
+			{
+				logger.finest("Shutting down source input");
+				srcSocket.shutdownInput();
+			}
 
-				logger.finest(
-					"select reports " + selectReturn +
-					" channels ready to write");
+			// Do the same thing for the destination, but using the
+			// reverse streams.
+			if (dstSocket.isInputShutdown())
+			{
+				logger.finer("Closing destination socket");
+				dstSocket.close();
+			}
+			else
+			{
+				logger.finest("Shutting down dest output");
+				dstSocket.shutdownOutput();
+			}
 
-				// Work through the list of channels that are
-				// ready to write
-				keyIter = delayedSelector.selectedKeys().iterator();
-				KEYITER:  while (keyIter.hasNext())
-				{
-					key = (SelectionKey) keyIter.next();
-					keyIter.remove();
+			// Clean up if both halves of the connection are now closed
+			if (srcSocket.isClosed() && dstSocket.isClosed())
+			{
+				dumpState(conn);
+			}
+			// Otherwise start the half close timeout
+			else if (conn.halfCloseTime == 0)
+			{
+				conn.halfCloseTime = now;
+				scheduleTimeout(conn);
+			}
+		}
+		else
+		{
+			// If half close isn't enabled, just close the connection.
+			closeConnection(conn);
+		}
+	}
 
-					dst = (SocketChannel) key.channel();
+	private void closeConnection(Connection conn)
+	{
+		// Close both channels
+		try
+		{
+			logger.fine("Closing channels");
+			conn.client.close();
+			conn.server.close();
+		}
+		catch (IOException ioe)
+		{
+			logger.warning("Error closing channels: " + ioe.getMessage());
+		}
 
-					synchronized (delayedInfo)
-					{
-						info = (DelayedDataInfo) delayedInfo.get(dst);
-					}
-					delayedBuffer = info.getBuffer();
+		dumpState(conn);
+	}
 
-					try
-					{
-						numberOfBytes = dst.write(delayedBuffer);
+	/*
+	 * Call this method when closing a connection to release the state
+	 * we were keeping for it and let the Target know it is gone.
+	 */
+	private void dumpState(Connection conn)
+	{
+		if (conn.idleTimeout != null)
+		{
+			idleTimeouts.cancel(conn.idleTimeout);
+			conn.idleTimeout = null;
+		}
+		if (conn.clientToServerDelayed != null)
+		{
+			bufferPool.putBuffer(conn.clientToServerDelayed);
+			conn.clientToServerDelayed = null;
+		}
+		if (conn.serverToClientDelayed != null)
+		{
+			bufferPool.putBuffer(conn.serverToClientDelayed);
+			conn.serverToClientDelayed = null;
+		}
+		closePipes(conn);
 
-						logger.finest(
-							"Wrote " + numberOfBytes +
-							" delayed bytes to " + dst + ", " +
-							delayedBuffer.remaining() +
-							" bytes remain delayed");
+		conn.getTarget().removeConnection(conn);
+	}
 
-						// If the buffer is now empty, we're done with
-						// this channel.
-						if (! delayedBuffer.hasRemaining())
-						{
-							// Instead of canceling the key, we just
-							// remove OP_WRITE from the interest bits.
-							// This avoids a race condition leading to a
-							// CanceledKeyException if DataMover gives
-							// the channel back to us right away.  It
-							// means we're stuck with the key in our
-							// selector until the connection is closed,
-							// but that seems acceptable.
-							try
-							{
-								key.interestOps(
-									key.interestOps() ^ SelectionKey.OP_WRITE);
-							}
-							catch (CancelledKeyException e)
-							{
-								// The channel has been closed or something
-								// similar, nothing we can do about it.
-								// DataMover will clean things up.
-							}
+	/*
+	 * If we have a splice relay, give each direction of the connection
+	 * which no distribution algorithm reviews a pipe, so that its data
+	 * is relayed with splice(2).  A direction without a pipe is
+	 * relayed through readBuffer as usual.
+	 */
+	private void openPipes(Connection conn)
+	{
+		if (spliceRelay == null)
+		{
+			return;
+		}
 
-							src = info.getSource();
-							dumpDelayedState(info.getDest());
-							addToReactivateList(src);
-						}
-					}
-					catch (IOException e)
-					{
-						logger.warning(
-							"Error writing delayed data: " +
-							e.getMessage());
-						closeConnection(
-							dst, info.getSource(), info.isClientToServer());
-					}
-				}
+		try
+		{
+			conn.clientFD = spliceRelay.getFD(conn.client);
+			conn.serverFD = spliceRelay.getFD(conn.server);
+			if (conn.clientToServerReviewers.length == 0)
+			{
+				conn.clientToServerPipe = spliceRelay.openPipe();
+			}
+			if (conn.serverToClientReviewers.length == 0)
+			{
+				conn.serverToClientPipe = spliceRelay.openPipe();
 			}
 		}
+		catch (IOException e)
+		{
+			// Most likely we've run out of file descriptors.  The
+			// connection still works without the pipes.
+			logger.warning("Error creating pipes for " + conn +
+				", copying its data instead:  " + e.getMessage());
+			closePipes(conn);
+		}
+	}
 
-		void dumpDelayedState(SocketChannel client, SocketChannel server)
+	/*
+	 * Stop splicing one direction of the connection after a splice
+	 * failed with e, so that the DataMover copies its data from now on.
+	 * The piped bytes waiting in the pipe are read out into a delayed
+	 * buffer, which is returned (null if there were none).
+	 */
+	private ByteBuffer stopSplicing(
+		Connection conn, boolean clientToServer,
+		int piped, IOException e)
+		throws IOException
+	{
+		int[] pipe;
+		ByteBuffer delayedBuffer = null;
+
+		logger.warning("Copying instead of splicing for " + conn +
+			" after an error:  " + e.getMessage());
+
+		if (clientToServer)
+		{
+			pipe = conn.clientToServerPipe;
+			conn.clientToServerPipe = null;
+			conn.clientToServerPiped = 0;
+		}
+		else
 		{
-			dumpDelayedState(client);
-			dumpDelayedState(server);
+			pipe = conn.serverToClientPipe;
+			conn.serverToClientPipe = null;
+			conn.serverToClientPiped = 0;
 		}
 
-		private void dumpDelayedState(SocketChannel dst)
+		try
 		{
-			synchronized (delayedInfo)
+			if (piped > 0)
 			{
-				delayedInfo.remove(dst);
+				delayedBuffer = bufferPool.getBuffer(piped);
+				delayedBuffer.limit(piped);
+				while (delayedBuffer.hasRemaining())
+				{
+					spliceRelay.read(pipe[0], delayedBuffer);
+				}
+				delayedBuffer.flip();
+
+				if (clientToServer)
+				{
+					conn.clientToServerDelayed = delayedBuffer;
+				}
+				else
+				{
+					conn.serverToClientDelayed = delayedBuffer;
+				}
 			}
 		}
-
-		public String toString()
+		finally
 		{
-			return getClass().getName() +
-				" for " + target.getInetAddress() + ":" + target.getPort();
+			spliceRelay.close(pipe[0]);
+			spliceRelay.close(pipe[1]);
 		}
 
-		protected String getMemoryStats(String indent)
-		{
-			String stats;
-
-			stats = indent + queue.size() + " entries in queue List\n";
-			stats = indent +
-				delayedInfo.size() + " entries in delayedInfo Map\n";
-			stats += indent +
-				delayedSelector.keys().size() +
-				" entries in delayedSelector key Set";
+		return delayedBuffer;
+	}
 
-			return stats;
+	/*
+	 * Close the connection's pipes, discarding any data in them
+	 */
+	private void closePipes(Connection conn)
+	{
+		if (conn.clientToServerPipe != null)
+		{
+			spliceRelay.close(conn.clientToServerPipe[0]);
+			spliceRelay.close(conn.clientToServerPipe[1]);
+			conn.clientToServerPipe = null;
 		}
+		if (conn.serverToClientPipe != null)
+		{
+			spliceRelay.close(conn.serverToClientPipe[0]);
+			spliceRelay.close(conn.serverToClientPipe[1]);
+			conn.serverToClientPipe = null;
+		}
+		conn.clientToServerPiped = 0;
+		conn.serverToClientPiped = 0;
 	}
 
-	class DelayedDataInfo
+	public String toString()
 	{
-		SocketChannel dst;
-		ByteBuffer buffer;
-		SocketChannel src;
-		boolean clientToServer;
+		return getClass().getName() + " " + index;
+	}
 
-		DelayedDataInfo(
-			SocketChannel dst, ByteBuffer buffer,
-			SocketChannel src, boolean clientToServer)
-		{
-			this.dst = dst;
-			this.buffer = buffer;
-			this.src = src;
-			this.clientToServer = clientToServer;
-		}
+	protected String getMemoryStats(String indent)
+	{
+		String stats;
 
-		SocketChannel getDest() { return dst; }
-		ByteBuffer getBuffer() { return buffer; }
-		SocketChannel getSource() { return src; }
-		boolean isClientToServer() { return clientToServer; }
+		stats = indent +
+			newConnections.size() + " entries in newConnections queue\n";
+		stats += indent +
+			newConnects.size() + " entries in newConnects queue\n";
+		stats += indent +
+			connectionsToClose.size() +
+			" entries in connectionsToClose queue\n";
+		stats += indent +
+			idleTimeouts.size() + " entries in idleTimeouts TimingWheel\n";
+		stats += indent +
+			selector.keys().size() + " entries in selector key Set";
+
+		return stats;
 	}
 }
-
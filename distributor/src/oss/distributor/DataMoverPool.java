@@ -0,0 +1,96 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A fixed size pool of DataMovers shared by all of the Targets of all
+ * of the services.  Each new connection is assigned to one of the
+ * DataMovers in the pool, regardless of which Target it is going to,
+ * so the number of threads doing bulk data transfer stays constant as
+ * Targets and services are added.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+class DataMoverPool
+{
+	DataMover[] dataMovers;
+	int nextDataMoverIndex;
+
+	protected DataMoverPool(
+		int size, BufferPool bufferPool, SpliceRelay spliceRelay,
+		LazyLogger logger)
+	{
+		dataMovers = new DataMover[size];
+		for (int i=0 ; i<size ; i++)
+		{
+			dataMovers[i] =
+				new DataMover(i, bufferPool, spliceRelay, logger);
+		}
+
+		nextDataMoverIndex = 0;
+	}
+
+	/*
+	 * Pick the DataMover that the next connection should be assigned
+	 * to.  Connections are spread across the pool in a round robin
+	 * fashion.
+	 */
+	protected synchronized DataMover getNextDataMover()
+	{
+		DataMover dataMover = dataMovers[nextDataMoverIndex];
+
+		nextDataMoverIndex++;
+		if (nextDataMoverIndex >= dataMovers.length)
+		{
+			nextDataMoverIndex = 0;
+		}
+
+		return dataMover;
+	}
+
+	protected int size()
+	{
+		return dataMovers.length;
+	}
+
+	public String toString()
+	{
+		return getClass().getName() + " of " + dataMovers.length;
+	}
+
+	protected String getMemoryStats(String indent)
+	{
+		String stats = new String();
+
+		for (int i=0 ; i<dataMovers.length ; i++)
+		{
+			stats += indent + dataMovers[i] + ":\n";
+			stats += dataMovers[i].getMemoryStats(indent + "  ");
+			if (i < dataMovers.length - 1)
+			{
+				stats += "\n";
+			}
+		}
+
+		return stats;
+	}
+}
@@ -28,12 +28,12 @@ package oss.distributor;
 
 import java.util.List;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
-import java.util.logging.Logger;
+import java.util.logging.Level;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Selector;
@@ -44,20 +44,34 @@ import java.net.InetSocketAddress;
 public abstract class DistributionAlgorithm implements Runnable
 {
 	Distributor distributor;
-	Logger logger;
+	LazyLogger logger;
 	int connectionTimeout;
 	TargetSelector targetSelector;
 	Selector selector;
+	// Clients handed to us by TargetSelector.  Our thread moves them
+	// to newClients before each call to processNewClients().
+	MpscQueue incomingClients;
 	// newClients needs to be accessible to subclasses, even if they are
-	// in a different package, for use in proccessNewClients().
+	// in a different package, for use in proccessNewClients().  Only
+	// touched by our thread.
 	protected List newClients;
 	Map pendingConnections;
 	List completedConnections;
 	List failedConnections;
-	TimedOutConnectionDetector timedOutDetector;
+	// Timeouts for the connections in pendingConnections.  Only
+	// touched by our thread.
+	TimingWheel connectTimeouts;
+	List timedOutClients;
 	Thread thread;
 	int selectFailureOrZeroCount = 0;
 
+	// Resolution of the connection timeouts, in milliseconds, and the
+	// number of slots in the timing wheel.  With these settings the
+	// wheel turns once every ~10 seconds, longer timeouts just stay on
+	// the wheel for more than one revolution.
+	static final long CONNECT_TIMEOUT_TICK = 10;
+	static final int CONNECT_TIMEOUT_SLOTS = 1024;
+
 	public DistributionAlgorithm(Distributor distributor)
 	{
 		this.distributor = distributor;
@@ -66,13 +80,15 @@ public abstract class DistributionAlgorithm implements Runnable
 		// finishInitialization() because we know it's one of the first
 		// things Distributor does.  Some of our child constructors may
 		// want to log things so we don't want to wait.
-		logger = distributor.getLogger();
+		logger = distributor.getLazyLogger();
 		//logger = Logger.getLogger(getClass().getName());
 
-		newClients = new LinkedList();
+		incomingClients = new MpscQueue();
+		newClients = new ArrayList();
 		pendingConnections = new HashMap();
 		completedConnections = new LinkedList();
 		failedConnections = new LinkedList();
+		timedOutClients = new ArrayList();
 
 		try
 		{
@@ -96,7 +112,8 @@ public abstract class DistributionAlgorithm implements Runnable
 	{
 		connectionTimeout = distributor.getConnectionTimeout();
 		targetSelector = distributor.getTargetSelector();
-		timedOutDetector = new TimedOutConnectionDetector();
+		connectTimeouts = new TimingWheel(
+			CONNECT_TIMEOUT_TICK, CONNECT_TIMEOUT_SLOTS);
 		thread.start();
 	}
 
@@ -107,13 +124,13 @@ public abstract class DistributionAlgorithm implements Runnable
 	{
 		// Add the client to a queue which will be processed later
 		// (in our thread instead of the caller's), by processNewClients().
-		synchronized (newClients)
+		// Wakeup the select so that the queue gets processed, unless
+		// the queue already had clients in it and so the select has
+		// already been woken.
+		if (incomingClients.offer(client))
 		{
-			newClients.add(client);
+			selector.wakeup();
 		}
-
-		// Wakeup the select so that the new client queue gets processed
-		selector.wakeup();
 	}
 
 	/*
@@ -133,13 +150,16 @@ public abstract class DistributionAlgorithm implements Runnable
 	 * This method will generally be called from within
 	 * processNewClients(); and possibly from within
 	 * processFailedConnections(), depending on the distribution
-	 * algorithm.
+	 * algorithm.  Both of those are called from our thread, which is
+	 * the only thread that may call this method.
 	 */
 	public void initiateConnection(SocketChannel client, Target target)
 	{
 		SocketChannel connToServer;
 		SelectionKey key;
 
+		target.connectionStarted();
+
 		try
 		{
 			connToServer = SocketChannel.open();
@@ -161,15 +181,17 @@ public abstract class DistributionAlgorithm implements Runnable
 			{
 				// The target is needed later to create the
 				//   Connection object if this connection succeeds
-				// The time that the connection was initiated is
-				//   used later in determining if this connection
-				//   has timed out.
+				// The timeout is canceled if the connection
+				//   completes (or fails) before it expires.
 				// The selection key is needed so that it can be
 				//   canceled if the connection does time out.
 				pendingConnections.put(
 					client,
 					new PendingConnectionState(
-						target, System.currentTimeMillis(), key));
+						target,
+						System.nanoTime(),
+						connectTimeouts.schedule(client, connectionTimeout),
+						key));
 			}
 		}
 		catch (IOException e)
@@ -177,6 +199,7 @@ public abstract class DistributionAlgorithm implements Runnable
 			logger.warning(
 				"Error initiating connection to target: " +
 				e.getMessage());
+			target.connectionFailed();
 			synchronized(failedConnections)
 			{
 				failedConnections.add(client);
@@ -186,12 +209,18 @@ public abstract class DistributionAlgorithm implements Runnable
 
 	/*
 	 * Select for connections which have completed, and call
-	 * processFinishedConnections() with a list of those that have.
+	 * processCompletedConnections() with a list of those that have.
+	 * Connections which fail or time out are passed to
+	 * processFailedConnections().  The select is given a timeout so
+	 * that we get a chance to expire pending connections when they
+	 * reach connectionTimeout.
 	 */
 	public void run()
 	{
 		boolean pncReturn;
 		int selectReturn;
+		long selectTimeout;
+		long selectStart;
 		Iterator keyIter;
 		SelectionKey key;
 		SocketChannel client;
@@ -200,6 +229,7 @@ public abstract class DistributionAlgorithm implements Runnable
 
 		WHILETRUE: while (true)
 		{
+			incomingClients.drain(newClients);
 			pncReturn = processNewClients();
 
 			// Reset the failure counter if processNewClients() did
@@ -224,9 +254,16 @@ public abstract class DistributionAlgorithm implements Runnable
 			selectReturn = 0;
 			try
 			{
-				selectReturn = selector.select();
-
-				if (selectReturn > 0)
+				selectTimeout = connectTimeouts.getSelectTimeout();
+				selectStart = System.currentTimeMillis();
+				selectReturn = selector.select(selectTimeout);
+
+				// Returning with nothing ready is expected if the
+				// select timed out
+				if (selectReturn > 0 ||
+					(selectTimeout > 0 &&
+					System.currentTimeMillis() - selectStart >=
+						selectTimeout))
 				{
 					selectFailureOrZeroCount = 0;
 				}
@@ -247,9 +284,9 @@ public abstract class DistributionAlgorithm implements Runnable
 				continue WHILETRUE;
 			}
 
-			logger.finest(
-				"select reports " + selectReturn +
-				" channels ready to connect");
+			logger.log(Level.FINEST,
+				"select reports {0} channels ready to connect",
+				selectReturn);
 
 			// Work through the list of channels that are ready
 			keyIter = selector.selectedKeys().iterator();
@@ -264,19 +301,20 @@ public abstract class DistributionAlgorithm implements Runnable
 				try
 				{
 					server.finishConnect();
-					logger.fine(
-						"Connection from " + client +
-						" to " + server + " complete");
+					logger.log(Level.FINE,
+						"Connection from {0} to {1} complete", client, server);
 					synchronized(pendingConnections)
 					{
 						connState =
 							(PendingConnectionState)
-							pendingConnections.get(client);
+							pendingConnections.remove(client);
 						completedConnections.add(
 							new Connection(
 								client, server, connState.getTarget()));
-						pendingConnections.remove(client);
 					}
+					connectTimeouts.cancel(connState.getTimeout());
+					connState.getTarget().recordConnectTime(
+						System.nanoTime() - connState.getStartTime());
 					key.cancel();
 				}
 				catch (IOException e)
@@ -295,7 +333,14 @@ public abstract class DistributionAlgorithm implements Runnable
 
 					synchronized(pendingConnections)
 					{
-						pendingConnections.remove(client);
+						connState =
+							(PendingConnectionState)
+							pendingConnections.remove(client);
+					}
+					if (connState != null)
+					{
+						connectTimeouts.cancel(connState.getTimeout());
+						connState.getTarget().connectionFailed();
 					}
 					synchronized(failedConnections)
 					{
@@ -304,10 +349,71 @@ public abstract class DistributionAlgorithm implements Runnable
 				}
 			}
 
+			processTimedOutConnections();
+
+			// Give the algorithm a chance to try another target for
+			// connections that failed or timed out
+			if (failedConnections.size() > 0)
+			{
+				processFailedConnections(failedConnections);
+			}
+
 			processCompletedConnections(completedConnections);
 		}
 	}
 
+	/*
+	 * Move connections which have been pending for longer than
+	 * connectionTimeout to the list of connections that have failed
+	 * for other reasons.
+	 */
+	private void processTimedOutConnections()
+	{
+		Iterator iter;
+		SocketChannel client;
+		PendingConnectionState connState;
+
+		connectTimeouts.expireTimeouts(timedOutClients);
+
+		iter = timedOutClients.iterator();
+		while (iter.hasNext())
+		{
+			client = (SocketChannel) iter.next();
+
+			synchronized(pendingConnections)
+			{
+				connState =
+					(PendingConnectionState) pendingConnections.remove(client);
+			}
+			if (connState == null)
+			{
+				continue;
+			}
+
+			logger.log(Level.FINER,
+				"Pending connection from {0} to {1} timed out",
+				client, connState.getTarget());
+
+			connState.getServerKey().cancel();
+			try
+			{
+				connState.getServerKey().channel().close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Error closing channel: " + e.getMessage());
+			}
+			connState.getTarget().connectionFailed();
+
+			// Add this client to the failed list
+			synchronized(failedConnections)
+			{
+				failedConnections.add(client);
+			}
+		}
+		timedOutClients.clear();
+	}
+
 	/*
 	 * Implementations should process the list of completed connections,
 	 * generally by dumping any state they might have for that
@@ -326,6 +432,48 @@ public abstract class DistributionAlgorithm implements Runnable
 	 */
 	public abstract void processFailedConnections(List failedConnections);
 
+	/*
+	 * Algorithms which can pick a target for a new client quickly,
+	 * without blocking and without needing to try connecting to
+	 * several targets themselves, can override this method.  If every
+	 * configured algorithm does so, TargetSelector skips the usual trip
+	 * through the TargetSelector and algorithm threads and instead calls
+	 * this method on each algorithm in turn, right on the thread that
+	 * accepted the client, until one of them returns a target.  The
+	 * connection to that target is then made by the DataMover which
+	 * will carry the connection's traffic.  If that connection fails
+	 * the client is handed to TargetSelector and goes through the
+	 * normal process, starting with the first algorithm.
+	 *
+	 * Return the target the client should be sent to, or null if this
+	 * algorithm doesn't have one for the client.  This is called by
+	 * several threads at once, so implementations must be thread safe.
+	 */
+	public Target selectTarget(SocketChannel client)
+	{
+		return null;
+	}
+
+	/*
+	 * Declares whether this algorithm implements selectTarget().
+	 * Like the reviews methods below, the default checks whether the
+	 * method has been overridden.
+	 */
+	public boolean supportsSelectTarget()
+	{
+		Class[] argumentClasses = { SocketChannel.class };
+
+		try
+		{
+			return getClass().getMethod("selectTarget", argumentClasses).
+				getDeclaringClass() != DistributionAlgorithm.class;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
 	/*
 	 * Provide a default no-op implementation for this method since
 	 * most algorithms don't care
@@ -350,24 +498,63 @@ public abstract class DistributionAlgorithm implements Runnable
 		return buffer;
 	}
 
+	/*
+	 * These declare whether this algorithm needs to see the data
+	 * flowing in each direction through its connections.  They are
+	 * consulted once, at initialization, to build the lists of
+	 * algorithms that DataMover passes each buffer to.  The defaults
+	 * check whether the matching review method above has been
+	 * overridden, algorithms can override these to be explicit.
+	 */
+	public boolean reviewsClientToServerData()
+	{
+		return overridesReviewMethod("reviewClientToServerData");
+	}
+	public boolean reviewsServerToClientData()
+	{
+		return overridesReviewMethod("reviewServerToClientData");
+	}
+
+	private boolean overridesReviewMethod(String methodName)
+	{
+		Class[] argumentClasses = {
+			SocketChannel.class, SocketChannel.class, ByteBuffer.class };
+
+		try
+		{
+			return getClass().getMethod(methodName, argumentClasses).
+				getDeclaringClass() != DistributionAlgorithm.class;
+		}
+		catch (NoSuchMethodException e)
+		{
+			// Can't happen since we define the method, but err on the
+			// side of letting the algorithm see the data
+			return true;
+		}
+	}
+
 	class PendingConnectionState
 	{
 		Target target;
-		long startTime;
+		long startTime;  // From System.nanoTime()
+		TimingWheel.Timeout timeout;
 		SelectionKey serverConnectionKey;
 
 		PendingConnectionState(
 			Target target,
 			long startTime,
+			TimingWheel.Timeout timeout,
 			SelectionKey serverConnectionKey)
 		{
 			this.target = target;
 			this.startTime = startTime;
+			this.timeout = timeout;
 			this.serverConnectionKey = serverConnectionKey;
 		}
 
 		Target getTarget() { return target; }
 		long getStartTime() { return startTime; }
+		TimingWheel.Timeout getTimeout() { return timeout; }
 		SelectionKey getServerKey() { return serverConnectionKey; }
 	}
 
@@ -376,6 +563,8 @@ public abstract class DistributionAlgorithm implements Runnable
 		String stats;
 
 		stats = indent +
+			incomingClients.size() + " entries in incomingClients queue\n";
+		stats += indent +
 			newClients.size() + " entries in newClients List\n";
 		stats += indent +
 			pendingConnections.size() + " entries in pendingConnections Map\n";
@@ -384,76 +573,11 @@ public abstract class DistributionAlgorithm implements Runnable
 			" entries in completedConnections List\n";
 		stats += indent +
 			failedConnections.size() + " entries in failedConnections List\n";
+		stats += indent +
+			connectTimeouts.size() + " entries in connectTimeouts TimingWheel\n";
 		stats += indent +
 			selector.keys().size() + " entries in selector key Set";
 
 		return stats;
 	}
-
-	/*
-	 * Look for connections which have timed out, add them to the list
-	 * of connections which have failed for other reasons, and call
-	 * processFailedConnections() with that list.
-	 */
-	class TimedOutConnectionDetector implements Runnable
-	{
-		Thread thread;
-
-		TimedOutConnectionDetector()
-		{
-			thread = new Thread(this, getClass().getName());
-			thread.start();
-		}
-
-		public void run()
-		{
-			Iterator iter;
-			Entry pendingEntry;
-			SocketChannel client;
-			PendingConnectionState connState;
-
-			while (true)
-			{
-				// Add connections which have timed out to the list of
-				// connections that have failed for other reasons.
-				synchronized(pendingConnections)
-				{
-					iter = pendingConnections.entrySet().iterator();
-					while(iter.hasNext())
-					{
-						pendingEntry = (Entry) iter.next();
-						client = (SocketChannel) pendingEntry.getKey();
-						connState =
-							(PendingConnectionState) pendingEntry.getValue();
-
-						if (connState.getStartTime() + connectionTimeout <
-							System.currentTimeMillis())
-						{
-							logger.finer(
-								"Pending connection from " + client +
-								" to " + connState.getTarget() + " timed out");
-
-							connState.getServerKey().cancel();
-							iter.remove();
-
-							// Add this client to the failed list
-							synchronized(failedConnections)
-							{
-								failedConnections.add(client);
-							}
-						}
-					}
-				}
-
-				// And get that list processed
-				processFailedConnections(failedConnections);
-
-				// Pause a reasonable amount of time before doing it
-				// again
-				try { Thread.sleep(connectionTimeout/2); }
-					catch (InterruptedException e) {}
-			}
-		}
-	}
 }
-
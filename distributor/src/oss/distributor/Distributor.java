@@ -35,13 +35,16 @@ import java.util.TreeMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.logging.LogManager;
 import java.util.logging.Level;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
+import java.util.logging.SimpleFormatter;
 import java.text.ParseException;
-import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.DocumentBuilder;
@@ -76,23 +79,158 @@ public class Distributor
 		// script (distributor comes with a sample one).
 		try { System.in.close(); } catch (IOException e) {}
 
-		Distributor d = new Distributor(args);
-		d.balance();
+		if (args.length < 1) { usage(); }
+
+		Element rootElement = readConfigFile(args[0]);
+		configureLogging(rootElement);
+		int controlPort = configureSharedResources(rootElement);
+
+		// Each service element describes one service, with its own
+		// listening socket, targets, algorithms and service test.  A
+		// configuration file without any service elements describes a
+		// single service with the root element itself.
+		services = new ArrayList();
+		NodeList configChildren = rootElement.getChildNodes();
+		for (int i=0 ; i<configChildren.getLength() ; i++)
+		{
+			Node configNode = configChildren.item(i);
+			if (configNode.getNodeName().equals("service"))
+			{
+				services.add(
+					new Distributor(rootElement, (Element) configNode));
+			}
+		}
+		if (services.size() == 0)
+		{
+			services.add(new Distributor(rootElement, rootElement));
+		}
+
+		// Service names are used by the controller to pick a service
+		// and so must be unique
+		Set names = new HashSet();
+		Iterator iter = services.iterator();
+		while (iter.hasNext())
+		{
+			Distributor service = (Distributor) iter.next();
+			if (! names.add(service.getName()))
+			{
+				logger.severe("Duplicate service name:  " + service.getName());
+				System.exit(1);
+			}
+		}
+
+		if (controlPort != 0)
+		{
+			controller = new Controller(services, controlPort);
+		}
+
+		iter = services.iterator();
+		while (iter.hasNext())
+		{
+			((Distributor) iter.next()).balance();
+		}
+
+		// Hang around until the acceptors exit, which they normally
+		// never do
+		iter = services.iterator();
+		while (iter.hasNext())
+		{
+			((Distributor) iter.next()).waitForAcceptors();
+		}
 	}
 
+	// State shared by all of the services in this process
+	static Logger logger;
+	static LazyLogger lazyLogger;
+	static Controller controller;
+	static DataMoverPool dataMoverPool;
+	static BufferPool bufferPool;
+	static HealthCheckScheduler healthCheckScheduler;
+	// Brings back targets ejected by outlier detection
+	static Timer outlierTimer;
+	static int healthCheckThreads;
+	static int ioThreads;
+	static long bufferMemoryLimit;
+	// Null unless splice_relay is enabled and works in this JVM
+	static SpliceRelay spliceRelay;
+	static List services;
+
+	// The rest of the state is per service
+	String name;
+	Element rootElement;
+	Element serviceElement;
 	InetAddress bindAddress;
 	int port;
+	int acceptorThreads;
+	int listenBacklog;
 	boolean terminateOnDisable;
 	boolean halfClose;
+	boolean inlineTargetSelection;
 	int connectionTimeout;
 	int connectionFailureLimit;
+	int clientIdleTimeout;
+	int serverIdleTimeout;
+	int halfCloseTimeout;
+	// Outlier detection, see Target.recordOutcome().  Disabled if
+	// outlierErrorRate is zero.
+	int outlierErrorRate;  // Percent
+	int outlierWindow;  // ms
+	int outlierMinRequests;
+	int outlierEjectionTime;  // ms
+	int outlierMaxEjectionPercent;
 	List targetGroups;
+	// Bumped whenever a target is added, removed, enabled or disabled,
+	// so that algorithms which precompute something from the set of
+	// available targets can tell when to redo it
+	AtomicInteger targetGeneration;
 	List distributionAlgorithms;
-	Logger logger;
+	// The distribution algorithms that want to review the data flowing
+	// in each direction, see buildReviewerLists()
+	DistributionAlgorithm[] clientToServerReviewers;
+	DistributionAlgorithm[] serverToClientReviewers;
 	Object serviceTest;
-	Controller controller;
 	TargetSelector targetSelector;
-	private Distributor(String args[])
+	Acceptor[] acceptors;
+
+	/*
+	 * Read and parse the configuration file, returning its root
+	 * element.
+	 */
+	private static Element readConfigFile(String filename)
+	{
+		try
+		{
+			DocumentBuilder db =
+				DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Document configDoc = db.parse(filename);
+			return configDoc.getDocumentElement();
+		}
+		catch (ParserConfigurationException e)
+		{
+			System.err.println("Error reading config file: " + e.getMessage());
+			System.exit(1);
+		}
+		catch (SAXException e)
+		{
+			System.err.println("Error reading config file: " + e.getMessage());
+			System.exit(1);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading config file: " + e.getMessage());
+			System.exit(1);
+		}
+
+		return null;
+	}
+
+	/*
+	 * Set up the logger shared by all of the services according to the
+	 * log elements in the configuration file.  This is done first so
+	 * that the logger can be used for reporting errors with the rest
+	 * of the configuration.
+	 */
+	private static void configureLogging(Element rootElement)
 	{
 		//
 		// Prepare the Java logging system for use
@@ -100,19 +238,12 @@ public class Distributor
 
 		// The Java logging system normally reads its default settings
 		// from <java home>/jre/lib/logging.properties.  However, we
-		// don't want those defaults used.  So we go through a bit of
-		// hackery to feed our own defaults to the logging system.
+		// don't want those defaults used (they include a console
+		// handler on the root logger, for example).  So we go through
+		// a bit of hackery to feed our own (empty) defaults to the
+		// logging system.  The file handler we use, AsyncFileHandler,
+		// is configured directly from distributor.conf.
 		String loggingDefaultsString = new String();
-		// The default is XMLFormatter, which is too verbose for
-		// most folks.  The SimpleFormatter is a bit easier to read.
-		loggingDefaultsString +=
-			"java.util.logging.FileHandler.formatter = ";
-		loggingDefaultsString +=
-			"java.util.logging.SimpleFormatter\n";
-		// By default Java does not append to existing
-		// log files, which is probably not what users expect.
-		loggingDefaultsString +=
-			"java.util.logging.FileHandler.append = true\n";
 		ByteArrayInputStream loggingDefaultsStream =
 			new ByteArrayInputStream(loggingDefaultsString.getBytes());
 		try
@@ -126,28 +257,12 @@ public class Distributor
 			System.exit(1);
 		}
 
-		logger = Logger.getLogger(getClass().getName());
+		logger = Logger.getLogger(Distributor.class.getName());
 		// Let each handler pick its own level
 		logger.setLevel(Level.ALL);
 
-		//
-		// Read the configuration file
-		//
-		int controlPort = 0;
-
-		if (args.length < 1) { usage(); }
-
 		try
 		{
-			DocumentBuilder db =
-				DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			Document configDoc = db.parse(args[0]);
-
-			Element rootElement = configDoc.getDocumentElement();
-
-			// Read the logging configuration first so we can use the
-			// logger for reporting errors with the rest of the
-			// configuration.
 			NodeList configChildren = rootElement.getChildNodes();
 			for (int i=0 ; i<configChildren.getLength() ; i++)
 			{
@@ -175,9 +290,42 @@ public class Distributor
 					}
 					else if (logElement.getAttribute("type").equals("file"))
 					{
-						FileHandler fh =
-							new FileHandler(
-								logElement.getAttribute("filename"));
+						int queueSize = 8192;
+						if (! logElement.getAttribute("queue_size").equals(""))
+						{
+							try
+							{
+								queueSize = Integer.parseInt(
+									logElement.getAttribute("queue_size"));
+							}
+							catch (NumberFormatException e)
+							{
+								queueSize = 0;
+							}
+							if (queueSize < 1)
+							{
+								System.err.println("Invalid log queue_size");
+								System.exit(1);
+							}
+						}
+						boolean blockWhenFull = false;
+						if (logElement.getAttribute("when_full").equals("block"))
+						{
+							blockWhenFull = true;
+						}
+						else if (! logElement.getAttribute("when_full").equals("")
+							&& ! logElement.getAttribute("when_full").equals(
+								"drop"))
+						{
+							System.err.println("Invalid log when_full");
+							System.exit(1);
+						}
+						AsyncFileHandler fh =
+							new AsyncFileHandler(
+								logElement.getAttribute("filename"),
+								queueSize,
+								blockWhenFull);
+						fh.setFormatter(new SimpleFormatter());
 						Level fileLevel = null;
 						try
 						{
@@ -194,49 +342,242 @@ public class Distributor
 					}
 				}
 			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error opening log file: " + e.getMessage());
+			System.exit(1);
+		}
 
-			// The logger is now configured and can be used
+		// The logger is now configured and can be used
+		lazyLogger = new LazyLogger(logger);
+	}
+
+	/*
+	 * Read the settings for, and create, the resources shared by all of
+	 * the services:  the DataMovers, the buffer pool and the health
+	 * check scheduler.  Returns the control port, or zero if no
+	 * controller should be started.
+	 */
+	private static int configureSharedResources(Element rootElement)
+	{
+		int controlPort = 0;
+
+		try
+		{
+			// The number of DataMover threads shared by all of the
+			// services.  One per CPU is generally the right number.
+			ioThreads = Runtime.getRuntime().availableProcessors();
+			if (! rootElement.getAttribute("io_threads").equals(""))
+			{
+				ioThreads = Integer.parseInt(
+					rootElement.getAttribute("io_threads"));
+				if (ioThreads < 1)
+				{
+					logger.severe("io_threads must be at least 1");
+					System.exit(1);
+				}
+			}
+			logger.config("I/O threads:  " + ioThreads);
+
+			// How much memory (in megabytes) may be used for holding
+			// data which can't immediately be written to its
+			// destination
+			bufferMemoryLimit = 64;
+			if (! rootElement.getAttribute("buffer_memory_limit").equals(""))
+			{
+				bufferMemoryLimit = Long.parseLong(
+					rootElement.getAttribute("buffer_memory_limit"));
+			}
+			logger.config("Buffer memory limit:  " + bufferMemoryLimit);
+
+			// Whether to relay data with splice(2) when none of the
+			// distribution algorithms need to see it
+			spliceRelay = null;
+			if (rootElement.getAttribute("splice_relay").equals("yes"))
+			{
+				spliceRelay = SpliceRelay.load(lazyLogger);
+			}
+			else if (! rootElement.getAttribute("splice_relay").equals("")
+				&& ! rootElement.getAttribute("splice_relay").equals("no"))
+			{
+				logger.severe("splice_relay must be yes or no");
+				System.exit(1);
+			}
+			logger.config("Splice relay:  " + (spliceRelay != null));
+
+			// The number of threads the service tests can use to test
+			// targets at the same time
+			healthCheckThreads = 8;
+			if (! rootElement.getAttribute("health_check_threads").equals(""))
+			{
+				healthCheckThreads = Integer.parseInt(
+					rootElement.getAttribute("health_check_threads"));
+				if (healthCheckThreads < 1)
+				{
+					logger.severe("health_check_threads must be at least 1");
+					System.exit(1);
+				}
+			}
+			logger.config("Health check threads:  " + healthCheckThreads);
+
+			if (rootElement.getAttribute("control_port").equals(""))
+			{
+				logger.warning(
+					"No control port defined, no control server will " +
+					"be started");
+			}
+			else
+			{
+				controlPort = Integer.parseInt(
+					rootElement.getAttribute("control_port"));
+			}
+			logger.config("Control port:  " + controlPort);
+
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Error reading config file: " + e.getMessage());
+			System.exit(1);
+		}
+
+		bufferPool = new BufferPool(bufferMemoryLimit * 1024 * 1024);
+		dataMoverPool = new DataMoverPool(
+			ioThreads, bufferPool, spliceRelay, lazyLogger);
+		healthCheckScheduler =
+			new HealthCheckScheduler(healthCheckThreads, lazyLogger);
+		outlierTimer = new Timer(Distributor.class.getName() + " outliers", true);
+
+		return controlPort;
+	}
+
+	/*
+	 * Look up a configuration attribute for this service.  Attributes
+	 * not given on the service element are taken from the root
+	 * element, so settings common to all services can be given once.
+	 */
+	private String getAttribute(String attrName)
+	{
+		String value = serviceElement.getAttribute(attrName);
+		if (value.equals(""))
+		{
+			value = rootElement.getAttribute(attrName);
+		}
+		return value;
+	}
+
+	private Distributor(Element rootElement, Element serviceElement)
+	{
+		this.rootElement = rootElement;
+		this.serviceElement = serviceElement;
+
+		try
+		{
+			// Algorithm and service test mappings and test parameters
+			// may be given at the top level or within the service,
+			// the latter taking precedence
+			List configNodes = new ArrayList();
+			NodeList configChildren = rootElement.getChildNodes();
+			for (int i=0 ; i<configChildren.getLength() ; i++)
+			{
+				configNodes.add(configChildren.item(i));
+			}
+			NodeList serviceChildren = serviceElement.getChildNodes();
+			if (serviceElement != rootElement)
+			{
+				for (int i=0 ; i<serviceChildren.getLength() ; i++)
+				{
+					configNodes.add(serviceChildren.item(i));
+				}
+			}
+
+			name = serviceElement.getAttribute("name");
+			if (name.equals(""))
+			{
+				name = serviceElement.getAttribute("port");
+			}
+			logger.config("Service:  " + name);
 
 			bindAddress = null;
-			if (rootElement.getAttribute("bindaddr").equals("") ||
-				rootElement.getAttribute("bindaddr").equals("0.0.0.0"))
+			if (getAttribute("bindaddr").equals("") ||
+				getAttribute("bindaddr").equals("0.0.0.0"))
 			{
 				logger.config("Using wildcard bind address");
 			}
 			else
 			{
 				bindAddress = InetAddress.getByName(
-					rootElement.getAttribute("bindaddr"));
+					getAttribute("bindaddr"));
 			}
 			logger.config("Bind address:  " + bindAddress);
 
-			if (rootElement.getAttribute("port").equals(""))
+			if (getAttribute("port").equals(""))
 			{
 				logger.severe("The 'port' attribute is required");
 				System.exit(1);
 			}
 			else
 			{
-				port = Integer.parseInt(rootElement.getAttribute("port"));
+				port = Integer.parseInt(getAttribute("port"));
 				logger.config("Port:  " + port);
 			}
 
+			// The number of threads accepting new connections, see
+			// balance()
+			acceptorThreads = 1;
+			if (! getAttribute("acceptor_threads").equals(""))
+			{
+				acceptorThreads = Integer.parseInt(
+					getAttribute("acceptor_threads"));
+				if (acceptorThreads < 1)
+				{
+					logger.severe("acceptor_threads must be at least 1");
+					System.exit(1);
+				}
+			}
+			logger.config("Acceptor threads:  " + acceptorThreads);
+
+			// The length of the queue of connections that the kernel
+			// has completed but which we haven't yet accepted, per
+			// listening socket.  The OS may silently cap this (i.e. at
+			// net.core.somaxconn on Linux).
+			listenBacklog = 1024;
+			if (! getAttribute("listen_backlog").equals(""))
+			{
+				listenBacklog = Integer.parseInt(
+					getAttribute("listen_backlog"));
+				if (listenBacklog < 1)
+				{
+					logger.severe("listen_backlog must be at least 1");
+					System.exit(1);
+				}
+			}
+			logger.config("Listen backlog:  " + listenBacklog);
+
 			terminateOnDisable = false;
-			if (rootElement.getAttribute("terminate_on_disable").equals("yes"))
+			if (getAttribute("terminate_on_disable").equals("yes"))
 			{
 				terminateOnDisable = true;
 			}
 			logger.config("Terminate on disable:  " + terminateOnDisable);
 
 			halfClose = true;
-			if (rootElement.getAttribute("half_close").equals("no"))
+			if (getAttribute("half_close").equals("no"))
 			{
 				halfClose = false;
 			}
 			logger.config("TCP half close:  " + halfClose);
 
+			inlineTargetSelection = true;
+			if (getAttribute("inline_target_selection").equals("no"))
+			{
+				inlineTargetSelection = false;
+			}
+			logger.config(
+				"Inline target selection:  " + inlineTargetSelection);
+
 			connectionTimeout = 2000;
-			if (rootElement.getAttribute("connection_timeout").equals(""))
+			if (getAttribute("connection_timeout").equals(""))
 			{
 				logger.warning(
 					"Connection timeout not specified, using default");
@@ -244,12 +585,12 @@ public class Distributor
 			else
 			{
 				connectionTimeout = Integer.parseInt(
-					rootElement.getAttribute("connection_timeout"));
+					getAttribute("connection_timeout"));
 			}
 			logger.config("Connection timeout:  " + connectionTimeout);
 
 			connectionFailureLimit = 5;
-			if (rootElement.getAttribute("connection_failure_limit").equals(""))
+			if (getAttribute("connection_failure_limit").equals(""))
 			{
 				logger.warning(
 					"Connection failure limit not specified, using default");
@@ -257,23 +598,97 @@ public class Distributor
 			else
 			{
 				connectionFailureLimit = Integer.parseInt(
-					rootElement.getAttribute("connection_failure_limit"));
+					getAttribute("connection_failure_limit"));
 			}
 			logger.config(
 				"Connection failure limit:  " + connectionFailureLimit);
 
-			if (rootElement.getAttribute("control_port").equals(""))
+			// How long an established connection may go without any
+			// traffic to or from the client or the server, and how long
+			// a connection may stay half closed, before we close it.
+			// In milliseconds, zero disables the timeout.
+			clientIdleTimeout = 0;
+			if (! getAttribute("client_idle_timeout").equals(""))
 			{
-				logger.warning(
-					"No control port defined, no control server will " +
-					"be started");
+				clientIdleTimeout = Integer.parseInt(
+					getAttribute("client_idle_timeout"));
 			}
-			else
+			logger.config("Client idle timeout:  " + clientIdleTimeout);
+			serverIdleTimeout = 0;
+			if (! getAttribute("server_idle_timeout").equals(""))
 			{
-				controlPort = Integer.parseInt(
-					rootElement.getAttribute("control_port"));
+				serverIdleTimeout = Integer.parseInt(
+					getAttribute("server_idle_timeout"));
+			}
+			logger.config("Server idle timeout:  " + serverIdleTimeout);
+			halfCloseTimeout = 0;
+			if (! getAttribute("half_close_timeout").equals(""))
+			{
+				halfCloseTimeout = Integer.parseInt(
+					getAttribute("half_close_timeout"));
+			}
+			logger.config("Half close timeout:  " + halfCloseTimeout);
+			if (clientIdleTimeout < 0 || serverIdleTimeout < 0 ||
+				halfCloseTimeout < 0)
+			{
+				logger.severe("Idle and half close timeouts can't be negative");
+				System.exit(1);
+			}
+
+			// Outlier detection ejects targets whose connections are
+			// failing, based on the live traffic rather than waiting
+			// for the service test
+			outlierErrorRate = 0;
+			if (! getAttribute("outlier_error_rate").equals(""))
+			{
+				outlierErrorRate = Integer.parseInt(
+					getAttribute("outlier_error_rate"));
+			}
+			logger.config("Outlier error rate:  " + outlierErrorRate);
+			outlierWindow = 10000;
+			if (! getAttribute("outlier_window").equals(""))
+			{
+				outlierWindow = Integer.parseInt(
+					getAttribute("outlier_window"));
+			}
+			logger.config("Outlier window:  " + outlierWindow);
+			outlierMinRequests = 20;
+			if (! getAttribute("outlier_min_requests").equals(""))
+			{
+				outlierMinRequests = Integer.parseInt(
+					getAttribute("outlier_min_requests"));
+			}
+			logger.config("Outlier minimum requests:  " + outlierMinRequests);
+			outlierEjectionTime = 30000;
+			if (! getAttribute("outlier_ejection_time").equals(""))
+			{
+				outlierEjectionTime = Integer.parseInt(
+					getAttribute("outlier_ejection_time"));
+			}
+			logger.config("Outlier ejection time:  " + outlierEjectionTime);
+			outlierMaxEjectionPercent = 50;
+			if (! getAttribute("outlier_max_ejection_percent").equals(""))
+			{
+				outlierMaxEjectionPercent = Integer.parseInt(
+					getAttribute("outlier_max_ejection_percent"));
+			}
+			logger.config("Outlier max ejection percent:  " +
+				outlierMaxEjectionPercent);
+			if (outlierErrorRate < 0 || outlierErrorRate > 100 ||
+				outlierMaxEjectionPercent < 0 ||
+				outlierMaxEjectionPercent > 100)
+			{
+				logger.severe(
+					"Outlier percentages must be between 0 and 100");
+				System.exit(1);
+			}
+			if (outlierWindow <= 0 || outlierMinRequests < 1 ||
+				outlierEjectionTime <= 0)
+			{
+				logger.severe("Outlier window, minimum requests and " +
+					"ejection time must be positive");
+				System.exit(1);
 			}
-			logger.config("Control port:  " + controlPort);
 
 			//
 			// Read the distribution algorithm configuration and create
@@ -284,9 +699,9 @@ public class Distributor
 
 			// Read in the algorithm name -> class name mappings
 			HashMap algoClasses = new HashMap();
-			for (int i=0 ; i<configChildren.getLength() ; i++)
+			for (int i=0 ; i<configNodes.size() ; i++)
 			{
-				Node configNode = configChildren.item(i);
+				Node configNode = (Node) configNodes.get(i);
 				if (configNode.getNodeName().equals("algo_mapping"))
 				{
 					Element mapElement = (Element) configNode;
@@ -300,9 +715,9 @@ public class Distributor
 			}
 
 			// Find the "algorithms" node in the XML document
-			for (int i=0 ; i<configChildren.getLength() ; i++)
+			for (int i=0 ; i<serviceChildren.getLength() ; i++)
 			{
-				Node configNode = configChildren.item(i);
+				Node configNode = serviceChildren.item(i);
 				if (configNode.getNodeName().equals("algorithms"))
 				{
 					Element algosElement = (Element) configNode;
@@ -350,11 +765,12 @@ public class Distributor
 			//
 
 			targetGroups = new ArrayList();
+			targetGeneration = new AtomicInteger();
 
 			// Find the "target_group" nodes in the XML document
-			for (int i=0 ; i<configChildren.getLength() ; i++)
+			for (int i=0 ; i<serviceChildren.getLength() ; i++)
 			{
-				Node configNode = configChildren.item(i);
+				Node configNode = serviceChildren.item(i);
 				if (configNode.getNodeName().equals("target_group"))
 				{
 					List targets = new ArrayList();
@@ -368,7 +784,7 @@ public class Distributor
 						if (tgNode.getNodeName().equals("target"))
 						{
 							Element targetElement = (Element) tgNode;
-							targets.add(
+							Target target =
 								new Target(
 									this,
 									InetAddress.getByName(
@@ -376,8 +792,25 @@ public class Distributor
 									Integer.parseInt(
 										targetElement.getAttribute("port")),
 									connectionFailureLimit,
-									terminateOnDisable,
-									halfClose));
+									terminateOnDisable);
+							if (! targetElement.getAttribute("weight").equals(""))
+							{
+								int weight = Integer.parseInt(
+									targetElement.getAttribute("weight"));
+								if (weight < 0)
+								{
+									logger.severe(
+										"Target weight must not be negative");
+									System.exit(1);
+								}
+								target.setWeight(weight);
+							}
+							if (! targetElement.getAttribute("test_frequency").equals(""))
+							{
+								target.setTestFrequency(Integer.parseInt(
+									targetElement.getAttribute("test_frequency")));
+							}
+							targets.add(target);
 						}
 					}
 
@@ -419,7 +852,7 @@ public class Distributor
 
 			serviceTest = null;
 			// First get the service type
-			String serviceType = rootElement.getAttribute("service_type");
+			String serviceType = getAttribute("service_type");
 			logger.config("Service type:  " + serviceType);
 			if (serviceType.equals(""))
 			{
@@ -435,9 +868,9 @@ public class Distributor
 				// that service type
 				Element testParameters = null;
 				String testClassName = null;
-				for (int i=0 ; i<configChildren.getLength() ; i++)
+				for (int i=0 ; i<configNodes.size() ; i++)
 				{
-					Node node = configChildren.item(i);
+					Node node = (Node) configNodes.get(i);
 					if (node.getNodeName().equals("test_parameters"))
 					{
 						Element elem = (Element) node;
@@ -477,16 +910,6 @@ public class Distributor
 					testClassName, testParameters);
 			}
 		}
-		catch (ParserConfigurationException e)
-		{
-			System.err.println("Error reading config file: " + e.getMessage());
-			System.exit(1);
-		}
-		catch (SAXException e)
-		{
-			System.err.println("Error reading config file: " + e.getMessage());
-			System.exit(1);
-		}
 		catch (IOException e)
 		{
 			System.err.println("Error reading config file: " + e.getMessage());
@@ -498,11 +921,6 @@ public class Distributor
 			System.exit(1);
 		}
 
-		if (controlPort != 0)
-		{
-			controller = new Controller(this, controlPort);
-		}
-
 		targetSelector = new TargetSelector(this);
 
 		// Finish the initialization of those classes that require it
@@ -513,6 +931,45 @@ public class Distributor
 			DistributionAlgorithm algo = (DistributionAlgorithm) iter.next();
 			algo.finishInitialization();
 		}
+
+		buildReviewerLists();
+	}
+
+	/*
+	 * Ask each distribution algorithm whether it wants to review the
+	 * data flowing in each direction and record the ones that do.
+	 * Each connection is given these lists, so that DataMover only
+	 * calls the algorithms that actually want to see the data.  Most
+	 * configurations end up with both lists empty.
+	 */
+	private void buildReviewerLists()
+	{
+		List clientToServer = new ArrayList();
+		List serverToClient = new ArrayList();
+		DistributionAlgorithm algo;
+
+		Iterator iter = distributionAlgorithms.iterator();
+		while(iter.hasNext())
+		{
+			algo = (DistributionAlgorithm) iter.next();
+			if (algo.reviewsClientToServerData())
+			{
+				clientToServer.add(algo);
+			}
+			if (algo.reviewsServerToClientData())
+			{
+				serverToClient.add(algo);
+			}
+		}
+
+		clientToServerReviewers = (DistributionAlgorithm[])
+			clientToServer.toArray(new DistributionAlgorithm[0]);
+		serverToClientReviewers = (DistributionAlgorithm[])
+			serverToClient.toArray(new DistributionAlgorithm[0]);
+		logger.config("Algorithms reviewing client to server data:  " +
+			clientToServer);
+		logger.config("Algorithms reviewing server to client data:  " +
+			serverToClient);
 	}
 
 	private Object constructObjectFromName(
@@ -571,26 +1028,97 @@ public class Distributor
 		return null;
 	}
 
+	public String getName()
+	{
+		return name;
+	}
+
+	/*
+	 * All of the services in this process
+	 */
+	protected static List getServices()
+	{
+		return services;
+	}
+
 	public Logger getLogger()
 	{
 		return logger;
 	}
 
+	/*
+	 * The LazyLogger wraps the same Logger as getLogger() and should be
+	 * preferred in code that logs on a per-connection or per-read
+	 * basis.
+	 */
+	public LazyLogger getLazyLogger()
+	{
+		return lazyLogger;
+	}
+
 	public List getDistributionAlgorithms()
 	{
 		return distributionAlgorithms;
 	}
 
+	protected DistributionAlgorithm[] getClientToServerReviewers()
+	{
+		return clientToServerReviewers;
+	}
+
+	protected DistributionAlgorithm[] getServerToClientReviewers()
+	{
+		return serverToClientReviewers;
+	}
+
 	public List getTargetGroups()
 	{
 		return targetGroups;
 	}
 
+	/*
+	 * Called whenever the set of available targets changes.  See
+	 * getTargetGeneration().
+	 */
+	public void targetsChanged()
+	{
+		targetGeneration.incrementAndGet();
+	}
+
+	/*
+	 * A number which changes each time targets are added, removed,
+	 * enabled or disabled.
+	 */
+	public int getTargetGeneration()
+	{
+		return targetGeneration.get();
+	}
+
 	public TargetSelector getTargetSelector()
 	{
 		return targetSelector;
 	}
 
+	protected DataMoverPool getDataMoverPool()
+	{
+		return dataMoverPool;
+	}
+
+	protected HealthCheckScheduler getHealthCheckScheduler()
+	{
+		return healthCheckScheduler;
+	}
+
+	protected Timer getOutlierTimer()
+	{
+		return outlierTimer;
+	}
+
+	protected BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
 	protected Controller getController()
 	{
 		return controller;
@@ -616,6 +1144,51 @@ public class Distributor
 		return halfClose;
 	}
 
+	public boolean getInlineTargetSelection()
+	{
+		return inlineTargetSelection;
+	}
+
+	public int getClientIdleTimeout()
+	{
+		return clientIdleTimeout;
+	}
+
+	public int getServerIdleTimeout()
+	{
+		return serverIdleTimeout;
+	}
+
+	public int getHalfCloseTimeout()
+	{
+		return halfCloseTimeout;
+	}
+
+	public int getOutlierErrorRate()
+	{
+		return outlierErrorRate;
+	}
+
+	public int getOutlierWindow()
+	{
+		return outlierWindow;
+	}
+
+	public int getOutlierMinRequests()
+	{
+		return outlierMinRequests;
+	}
+
+	public int getOutlierEjectionTime()
+	{
+		return outlierEjectionTime;
+	}
+
+	public int getOutlierMaxEjectionPercent()
+	{
+		return outlierMaxEjectionPercent;
+	}
+
 	/*
 	 * Returns a list of all of the Targets.  Useful for those who don't
 	 * care about the target groups.
@@ -624,40 +1197,73 @@ public class Distributor
 	{
 		List all = new ArrayList();
 
-		Iterator i = targetGroups.iterator();
-		List tg;
-		while (i.hasNext())
+		synchronized (targetGroups)
 		{
-			tg = (List) i.next();
-			all.addAll(tg);
+			Iterator i = targetGroups.iterator();
+			List tg;
+			while (i.hasNext())
+			{
+				tg = (List) i.next();
+				synchronized (tg)
+				{
+					all.addAll(tg);
+				}
+			}
 		}
 
 		return all;
 	}
 
+	/*
+	 * Open the listening socket(s) and start the Acceptors.  If we
+	 * have more than one Acceptor and the platform supports
+	 * SO_REUSEPORT, each Acceptor gets its own listening socket so
+	 * that the kernel can spread new connections across them.
+	 * Otherwise all of the Acceptors share one socket.
+	 */
 	private void balance()
 	{
-		// Open the listening socket and wait for connections
+		boolean reusePort = acceptorThreads > 1 &&
+			Acceptor.reusePortSupported();
+		logger.config(name + " using SO_REUSEPORT:  " + reusePort);
+
+		acceptors = new Acceptor[acceptorThreads];
 		try
 		{
-			ServerSocketChannel server = ServerSocketChannel.open();
-			server.socket().bind(new InetSocketAddress(bindAddress, port));
-
-			while (true)
+			ServerSocketChannel server = null;
+			for (int i=0 ; i<acceptorThreads ; i++)
 			{
-				SocketChannel client = server.accept();
-
-				logger.fine("Accepted connection from " + client);
-
-				// Hand the client off to another thread which will
-				// select a target for them.  This frees us up to go
-				// back to listening for new connections.
-				targetSelector.addNewClient(client);
+				if (server == null || reusePort)
+				{
+					server = Acceptor.openServerSocket(
+						bindAddress, port, listenBacklog, reusePort);
+				}
+				acceptors[i] = new Acceptor(this, i, server);
 			}
 		}
 		catch (IOException e)
 		{
-			logger.warning("Error with server socket: " + e.getMessage());
+			logger.warning("Error with server socket for service " + name +
+				": " + e.getMessage());
+			acceptors = new Acceptor[0];
+			return;
+		}
+
+		for (int i=0 ; i<acceptors.length ; i++)
+		{
+			acceptors[i].start();
+		}
+	}
+
+	private void waitForAcceptors()
+	{
+		for (int i=0 ; i<acceptors.length ; i++)
+		{
+			try
+			{
+				acceptors[i].join();
+			}
+			catch (InterruptedException e) {}
 		}
 	}
 
@@ -0,0 +1,116 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Counts the outcomes of the connections to a target over a sliding
+ * window of time, so that a target whose connections have started
+ * failing can be spotted from the live traffic.  The window is divided
+ * into buckets, and whole buckets drop out of the window as time moves
+ * on, so the counts cover between (BUCKETS - 1) / BUCKETS of the window
+ * and the whole window.  Recording an outcome is cheap enough to do for
+ * every connection.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+class ErrorRateWindow
+{
+	static final int BUCKETS = 10;
+
+	long bucketWidth;  // ms
+	// For each bucket, which span of time (in units of bucketWidth) it
+	// is currently counting, and its counts
+	long[] spans;
+	int[] requests;
+	int[] errors;
+
+	ErrorRateWindow(long windowMillis)
+	{
+		bucketWidth = Math.max(windowMillis / BUCKETS, 1);
+		spans = new long[BUCKETS];
+		requests = new int[BUCKETS];
+		errors = new int[BUCKETS];
+	}
+
+	/*
+	 * Count one connection, which failed if error is true
+	 */
+	synchronized void record(boolean error, long now)
+	{
+		long span = now / bucketWidth;
+		int bucket = (int) (span % BUCKETS);
+
+		if (spans[bucket] != span)
+		{
+			spans[bucket] = span;
+			requests[bucket] = 0;
+			errors[bucket] = 0;
+		}
+		requests[bucket]++;
+		if (error)
+		{
+			errors[bucket]++;
+		}
+	}
+
+	/*
+	 * The number of connections counted in the window, and how many of
+	 * those failed
+	 */
+	synchronized int getRequestCount(long now)
+	{
+		return sum(requests, now);
+	}
+
+	synchronized int getErrorCount(long now)
+	{
+		return sum(errors, now);
+	}
+
+	private int sum(int[] counts, long now)
+	{
+		long span = now / bucketWidth;
+		int total = 0;
+
+		for (int i=0 ; i<BUCKETS ; i++)
+		{
+			if (spans[i] > span - BUCKETS)
+			{
+				total += counts[i];
+			}
+		}
+		return total;
+	}
+
+	/*
+	 * Forget everything counted so far
+	 */
+	synchronized void clear()
+	{
+		for (int i=0 ; i<BUCKETS ; i++)
+		{
+			spans[i] = 0;
+			requests[i] = 0;
+			errors[i] = 0;
+		}
+	}
+}
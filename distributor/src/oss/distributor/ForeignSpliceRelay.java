@@ -0,0 +1,255 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * The SpliceRelay system calls, made through the foreign function API
+ * which is incubating in Java 17.  The API changed in every release
+ * until it was finalized, so this class only builds with Java 17 (see
+ * build.xml) and nothing else refers to it directly.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.incubator.foreign.SymbolLookup;
+
+class ForeignSpliceRelay extends SpliceRelay
+{
+	// From the Linux headers
+	static final int SPLICE_F_MOVE = 1;
+	static final int SPLICE_F_NONBLOCK = 2;
+	static final int O_NONBLOCK = 04000;
+	static final int O_CLOEXEC = 02000000;
+	static final int EAGAIN = 11;
+
+	MethodHandle splice;
+	MethodHandle read;
+	MethodHandle pipe2;
+	MethodHandle close;
+	MethodHandle errnoLocation;
+	MethodHandle strerror;
+
+	public ForeignSpliceRelay() throws Exception
+	{
+		super();
+
+		CLinker linker = CLinker.getInstance();
+		SymbolLookup lookup = CLinker.systemLookup();
+
+		// ssize_t splice(int fd_in, loff_t *off_in, int fd_out,
+		//     loff_t *off_out, size_t len, unsigned int flags)
+		splice = linker.downcallHandle(
+			lookup.lookup("splice").get(),
+			MethodType.methodType(long.class,
+				int.class, MemoryAddress.class, int.class,
+				MemoryAddress.class, long.class, int.class),
+			FunctionDescriptor.of(CLinker.C_LONG,
+				CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT,
+				CLinker.C_POINTER, CLinker.C_LONG, CLinker.C_INT));
+		// ssize_t read(int fd, void *buf, size_t count)
+		read = linker.downcallHandle(
+			lookup.lookup("read").get(),
+			MethodType.methodType(long.class,
+				int.class, MemoryAddress.class, long.class),
+			FunctionDescriptor.of(CLinker.C_LONG,
+				CLinker.C_INT, CLinker.C_POINTER, CLinker.C_LONG));
+		// int pipe2(int pipefd[2], int flags)
+		pipe2 = linker.downcallHandle(
+			lookup.lookup("pipe2").get(),
+			MethodType.methodType(int.class,
+				MemoryAddress.class, int.class),
+			FunctionDescriptor.of(CLinker.C_INT,
+				CLinker.C_POINTER, CLinker.C_INT));
+		// int close(int fd)
+		close = linker.downcallHandle(
+			lookup.lookup("close").get(),
+			MethodType.methodType(int.class, int.class),
+			FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT));
+		// int *__errno_location(void), where glibc keeps this thread's
+		// errno
+		errnoLocation = linker.downcallHandle(
+			lookup.lookup("__errno_location").get(),
+			MethodType.methodType(MemoryAddress.class),
+			FunctionDescriptor.of(CLinker.C_POINTER));
+		// char *strerror(int errnum)
+		strerror = linker.downcallHandle(
+			lookup.lookup("strerror").get(),
+			MethodType.methodType(MemoryAddress.class, int.class),
+			FunctionDescriptor.of(CLinker.C_POINTER, CLinker.C_INT));
+	}
+
+	int[] openPipe() throws IOException
+	{
+		ResourceScope scope = ResourceScope.newConfinedScope();
+		MemorySegment fds;
+		int result;
+
+		try
+		{
+			fds = MemorySegment.allocateNative(8, scope);
+			try
+			{
+				result = (int) pipe2.invokeExact(
+					fds.address(), O_NONBLOCK | O_CLOEXEC);
+			}
+			catch (Throwable e)
+			{
+				throw new IOException("pipe2 failed:  " + e);
+			}
+			if (result == -1)
+			{
+				throw new IOException(
+					"pipe2 failed:  " + getErrorMessage(getErrno()));
+			}
+
+			return new int[] {
+				MemoryAccess.getIntAtIndex(fds, 0),
+				MemoryAccess.getIntAtIndex(fds, 1) };
+		}
+		finally
+		{
+			scope.close();
+		}
+	}
+
+	int splice(int in, int out, int len) throws IOException
+	{
+		long result;
+		int errno;
+
+		try
+		{
+			result = (long) splice.invokeExact(
+				in, MemoryAddress.NULL, out, MemoryAddress.NULL,
+				(long) len, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+		}
+		catch (Throwable e)
+		{
+			throw new SpliceFailedException("splice failed:  " + e);
+		}
+
+		if (result > 0)
+		{
+			return (int) result;
+		}
+		else if (result == 0)
+		{
+			return -1;  // End of stream
+		}
+
+		// errno is read with a second call, and the JVM is free to
+		// call into libc in between and change it.  So it can only be
+		// trusted to say the fds would block, the one failure we
+		// expect.  Anything else, even EINTR, may really be EAGAIN and
+		// isn't worth a connection, so the caller goes back to copying.
+		errno = getErrno();
+		if (errno == EAGAIN)
+		{
+			return 0;
+		}
+		throw new SpliceFailedException(
+			"splice failed:  " + getErrorMessage(errno));
+	}
+
+	int read(int fd, ByteBuffer buffer) throws IOException
+	{
+		ResourceScope scope = ResourceScope.newConfinedScope();
+		MemorySegment segment;
+		long result;
+
+		try
+		{
+			segment = MemorySegment.allocateNative(buffer.remaining(), scope);
+			try
+			{
+				result = (long) read.invokeExact(
+					fd, segment.address(), (long) buffer.remaining());
+			}
+			catch (Throwable e)
+			{
+				throw new IOException("read failed:  " + e);
+			}
+			if (result <= 0)
+			{
+				// errno isn't reliable, see splice()
+				throw new IOException("read failed");
+			}
+
+			buffer.put(segment.asSlice(0, result).asByteBuffer());
+			return (int) result;
+		}
+		finally
+		{
+			scope.close();
+		}
+	}
+
+	void close(int fd)
+	{
+		try
+		{
+			// invokeExact() needs the result to match the signature
+			// even though we have no use for it
+			int result = (int) close.invokeExact(fd);
+		}
+		catch (Throwable e)
+		{
+			// Nothing useful we can do
+		}
+	}
+
+	private int getErrno() throws IOException
+	{
+		try
+		{
+			MemoryAddress address = (MemoryAddress) errnoLocation.invokeExact();
+			return MemoryAccess.getInt(
+				address.asSegment(4, ResourceScope.globalScope()));
+		}
+		catch (Throwable e)
+		{
+			throw new IOException("Unable to read errno:  " + e);
+		}
+	}
+
+	private String getErrorMessage(int errno)
+	{
+		try
+		{
+			MemoryAddress message = (MemoryAddress) strerror.invokeExact(errno);
+			return CLinker.toJavaString(message);
+		}
+		catch (Throwable e)
+		{
+			return "errno " + errno;
+		}
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Parses an HTTP/1.x response as it arrives, a buffer at a time, so
+ * that the HTTP service test can act on the status line and headers
+ * before the body has arrived and stop reading as soon as it has what
+ * it needs.  Bodies sent with Content-Length, chunked encoding or
+ * ended by closing the connection are understood.  The body itself
+ * isn't kept, it is fed through a TextMatcher (if one is given) as it
+ * goes by, and the chunk framing is stripped first so that text split
+ * across chunks is still found.
+ * 
+ * The parser also works out whether the connection can be used for
+ * another request once the response is complete.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.nio.ByteBuffer;
+
+class HTTPResponseParser
+{
+	// What parse() has to report.  Each is returned as soon as it
+	// happens so the caller can check its requirements.
+	static final int NEED_MORE = 0;  // Used all of the data given
+	static final int STATUS = 1;  // The status line has been parsed
+	static final int HEADERS = 2;  // The headers have been parsed
+	static final int BODY = 3;  // Some of the body has been matched
+	static final int COMPLETE = 4;  // The response is complete
+	static final int ERROR = 5;  // The response isn't valid HTTP
+
+	// Longest status, header or chunk size line we'll accept
+	static final int MAX_LINE = 8192;
+
+	private static final int S_STATUS_LINE = 0;
+	private static final int S_HEADER_LINE = 1;
+	private static final int S_BODY_LENGTH = 2;
+	private static final int S_BODY_TO_CLOSE = 3;
+	private static final int S_CHUNK_SIZE = 4;
+	private static final int S_CHUNK_DATA = 5;
+	private static final int S_CHUNK_END = 6;
+	private static final int S_TRAILER = 7;
+	private static final int S_DONE = 8;
+	private static final int S_ERROR = 9;
+
+	TextMatcher matcher;
+	int matchState;
+	long found;
+
+	int state;
+	StringBuilder line;
+	int statusCode;
+	boolean interim;  // Set for 1xx responses, which precede the real one
+	String contentType;
+	String location;
+	long contentLength;
+	boolean chunked;
+	long remaining;  // Left to read of the body or current chunk
+	boolean keepAlive;
+	String error;
+
+	/*
+	 * matcher may be null if the body doesn't need to be searched
+	 */
+	HTTPResponseParser(TextMatcher matcher)
+	{
+		this.matcher = matcher;
+		line = new StringBuilder();
+		reset();
+	}
+
+	/*
+	 * Get ready to parse another response
+	 */
+	void reset()
+	{
+		matchState = 0;
+		found = matcher == null ? 0 : matcher.matches(0);
+		state = S_STATUS_LINE;
+		line.setLength(0);
+		statusCode = -1;
+		interim = false;
+		contentType = null;
+		location = null;
+		contentLength = -1;
+		chunked = false;
+		remaining = 0;
+		keepAlive = false;
+		error = null;
+	}
+
+	/*
+	 * Parse as much of buf as we can, returning when there is something
+	 * to report.  Call again until it returns NEED_MORE, COMPLETE or
+	 * ERROR.  Anything left in buf after COMPLETE isn't part of this
+	 * response.
+	 */
+	int parse(ByteBuffer buf)
+	{
+		int length;
+
+		while (true)
+		{
+			switch (state)
+			{
+			case S_DONE:
+				return COMPLETE;
+			case S_ERROR:
+				return ERROR;
+			case S_BODY_LENGTH:
+			case S_BODY_TO_CLOSE:
+			case S_CHUNK_DATA:
+				if (! buf.hasRemaining())
+				{
+					return NEED_MORE;
+				}
+				length = buf.remaining();
+				if (state != S_BODY_TO_CLOSE && remaining < length)
+				{
+					length = (int) remaining;
+				}
+				match(buf, length);
+				remaining -= length;
+				if (state == S_BODY_LENGTH && remaining == 0)
+				{
+					state = S_DONE;
+				}
+				else if (state == S_CHUNK_DATA && remaining == 0)
+				{
+					state = S_CHUNK_END;
+				}
+				return BODY;
+			default:
+				if (! readLine(buf))
+				{
+					return state == S_ERROR ? ERROR : NEED_MORE;
+				}
+				int event = processLine();
+				if (event != NEED_MORE)
+				{
+					return event;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Called when the server closes the connection, returns COMPLETE if
+	 * that ends the response or ERROR if the response was cut short
+	 */
+	int endOfInput()
+	{
+		if (state == S_BODY_TO_CLOSE)
+		{
+			state = S_DONE;
+			return COMPLETE;
+		}
+		if (state != S_DONE)
+		{
+			fail("Connection closed before response was complete");
+			return ERROR;
+		}
+		return COMPLETE;
+	}
+
+	/*
+	 * Add the bytes from buf to line up to the end of the line.  Returns
+	 * true if a complete line has been read, with the line ending
+	 * stripped.
+	 */
+	private boolean readLine(ByteBuffer buf)
+	{
+		byte b;
+
+		while (buf.hasRemaining())
+		{
+			b = buf.get();
+			if (b == '\n')
+			{
+				if (line.length() > 0 &&
+					line.charAt(line.length() - 1) == '\r')
+				{
+					line.setLength(line.length() - 1);
+				}
+				return true;
+			}
+			if (line.length() >= MAX_LINE)
+			{
+				fail("Response line too long");
+				return false;
+			}
+			line.append((char) (b & 0xff));
+		}
+		return false;
+	}
+
+	/*
+	 * Act on the line that has just been read, returning the event to
+	 * report, or NEED_MORE if there is nothing to report yet
+	 */
+	private int processLine()
+	{
+		String text = line.toString();
+		line.setLength(0);
+
+		switch (state)
+		{
+		case S_STATUS_LINE:
+			return processStatusLine(text);
+		case S_HEADER_LINE:
+			if (text.length() == 0)
+			{
+				return endOfHeaders();
+			}
+			processHeader(text);
+			return state == S_ERROR ? ERROR : NEED_MORE;
+		case S_CHUNK_SIZE:
+			int semicolon = text.indexOf(';');
+			if (semicolon != -1)
+			{
+				text = text.substring(0, semicolon);
+			}
+			try
+			{
+				remaining = Long.parseLong(text.trim(), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				fail("Invalid chunk size: " + text);
+				return ERROR;
+			}
+			if (remaining < 0)
+			{
+				fail("Invalid chunk size: " + text);
+				return ERROR;
+			}
+			state = remaining == 0 ? S_TRAILER : S_CHUNK_DATA;
+			return NEED_MORE;
+		case S_CHUNK_END:
+			if (text.length() != 0)
+			{
+				fail("Missing line break after chunk");
+				return ERROR;
+			}
+			state = S_CHUNK_SIZE;
+			return NEED_MORE;
+		case S_TRAILER:
+			if (text.length() == 0)
+			{
+				state = S_DONE;
+			}
+			return NEED_MORE;
+		}
+
+		return NEED_MORE;
+	}
+
+	private int processStatusLine(String text)
+	{
+		// i.e. "HTTP/1.1 200 OK"
+		if (! text.startsWith("HTTP/1.") || text.length() < 12 ||
+			text.charAt(8) != ' ')
+		{
+			fail("Invalid status line: " + text);
+			return ERROR;
+		}
+		try
+		{
+			statusCode = Integer.parseInt(text.substring(9, 12));
+		}
+		catch (NumberFormatException e)
+		{
+			fail("Invalid status line: " + text);
+			return ERROR;
+		}
+
+		// HTTP/1.1 connections are persistent unless the server says
+		// otherwise, HTTP/1.0 ones aren't unless it says they are
+		keepAlive = text.charAt(7) != '0';
+		state = S_HEADER_LINE;
+		if (statusCode >= 100 && statusCode < 200)
+		{
+			// Skip past the headers to the real response
+			interim = true;
+			return NEED_MORE;
+		}
+		interim = false;
+		return STATUS;
+	}
+
+	private void processHeader(String text)
+	{
+		int colon = text.indexOf(':');
+		String name;
+		String value;
+
+		if (colon <= 0)
+		{
+			fail("Invalid header: " + text);
+			return;
+		}
+		name = text.substring(0, colon).trim();
+		value = text.substring(colon + 1).trim();
+
+		if (name.equalsIgnoreCase("Content-Length"))
+		{
+			try
+			{
+				contentLength = Long.parseLong(value);
+			}
+			catch (NumberFormatException e)
+			{
+				fail("Invalid Content-Length: " + value);
+			}
+		}
+		else if (name.equalsIgnoreCase("Transfer-Encoding"))
+		{
+			if (value.toLowerCase().indexOf("chunked") != -1)
+			{
+				chunked = true;
+			}
+		}
+		else if (name.equalsIgnoreCase("Connection"))
+		{
+			value = value.toLowerCase();
+			if (value.indexOf("close") != -1)
+			{
+				keepAlive = false;
+			}
+			else if (value.indexOf("keep-alive") != -1)
+			{
+				keepAlive = true;
+			}
+		}
+		else if (name.equalsIgnoreCase("Content-Type") &&
+			contentType == null)
+		{
+			contentType = value;
+		}
+		else if (name.equalsIgnoreCase("Location") && location == null)
+		{
+			location = value;
+		}
+	}
+
+	/*
+	 * Work out how the body is delimited
+	 */
+	private int endOfHeaders()
+	{
+		if (interim)
+		{
+			state = S_STATUS_LINE;
+			return NEED_MORE;
+		}
+
+		if (statusCode == 204 || statusCode == 304)
+		{
+			state = S_DONE;
+		}
+		else if (chunked)
+		{
+			state = S_CHUNK_SIZE;
+		}
+		else if (contentLength >= 0)
+		{
+			remaining = contentLength;
+			state = contentLength == 0 ? S_DONE : S_BODY_LENGTH;
+		}
+		else
+		{
+			// The body runs until the server closes the connection,
+			// so the connection can't be used again
+			keepAlive = false;
+			state = S_BODY_TO_CLOSE;
+		}
+		return HEADERS;
+	}
+
+	/*
+	 * Run the next length bytes of buf through the matcher
+	 */
+	private void match(ByteBuffer buf, int length)
+	{
+		int end;
+
+		if (matcher == null || found == matcher.allFound())
+		{
+			buf.position(buf.position() + length);
+			return;
+		}
+
+		end = buf.position() + length;
+		for (int i=buf.position() ; i<end ; i++)
+		{
+			matchState = matcher.next(matchState, buf.get(i));
+			found |= matcher.matches(matchState);
+		}
+		buf.position(end);
+	}
+
+	private void fail(String message)
+	{
+		error = message;
+		state = S_ERROR;
+	}
+
+	/*
+	 * True once every string the matcher is looking for has been seen
+	 * in the body
+	 */
+	boolean allTextFound()
+	{
+		return matcher == null || found == matcher.allFound();
+	}
+
+	/*
+	 * The strings the matcher is looking for which haven't been seen,
+	 * as a bit mask
+	 */
+	long getMissingText()
+	{
+		return matcher == null ? 0 : matcher.allFound() & ~found;
+	}
+
+	boolean isComplete()
+	{
+		return state == S_DONE;
+	}
+
+	int getStatusCode()
+	{
+		return statusCode;
+	}
+
+	String getContentType()
+	{
+		return contentType;
+	}
+
+	String getLocation()
+	{
+		return location;
+	}
+
+	boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	String getError()
+	{
+		return error;
+	}
+}
@@ -3,6 +3,22 @@
  * $Id$
  *****************************************************************************
  * Performs service tests against an HTTP server
+ * 
+ * Plain HTTP tests are done without blocking, from a single thread
+ * with its own Selector, so one thread can test any number of targets
+ * at once.  The connection to each target is kept open between tests
+ * if the server allows it.  The response is parsed as it arrives and
+ * we stop reading as soon as all of the requirements have been met,
+ * rather than reading the whole document.  Required document text is
+ * found with a TextMatcher, so text which spans lines or reads is
+ * found and any number of document_text requirements cost no more
+ * than one.
+ * 
+ * Redirects to another path on the same server are followed, as
+ * HttpURLConnection does, unless follow_redirects is "no".
+ * 
+ * HTTPS tests still use HttpURLConnection, run by the health check
+ * workers.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -27,21 +43,37 @@
 package oss.distributor;
 
 import java.io.*;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-class HTTPServiceTest implements Runnable
+class HTTPServiceTest implements HealthCheck, NonBlockingHealthCheck, Runnable
 {
+	// The resolution of the request deadlines
+	static final long WHEEL_TICK = 10;  // ms
+	static final int WHEEL_SLOTS = 1024;
+	static final int READ_BUFFER_SIZE = 16384;
+	// How many redirects we'll follow for one test
+	static final int MAX_REDIRECTS = 5;
+
 	Distributor distributor;
 	Logger logger;
 
@@ -52,12 +84,34 @@ class HTTPServiceTest implements Runnable
 	boolean useSSL;
 	String path;
 	String userAgent;
+	boolean followRedirects;
 
 	protected static final int REQUIREMENT_RESPONSE_CODE = 1;
 	protected static final int REQUIREMENT_CONTENT_TYPE = 2;
 	protected static final int REQUIREMENT_DOCUMENT_TEXT = 3;
 	Map requirements;
+	// The requirements again, in the form the tests use them.
+	// requiredCode is -1 and requiredType and matcher are null if not
+	// required.
+	int requiredCode;
+	String requiredType;
+	TextMatcher matcher;
 
+	// The rest is only used for plain HTTP
+	Selector selector;
+	// Exchanges handed to us by the scheduler but not yet started
+	MpscQueue newExchanges;
+	// The deadlines for the exchanges in progress and for the idle
+	// connections to be closed, only touched by our thread
+	TimingWheel deadlines;
+	// Map of Target to IdleConnection
+	Map idleConnections;
+	// Map of Target to the request to send it, as a ByteBuffer
+	Map requests;
+	ByteBuffer readBuffer;
+	List drained;
+	List expired;
+	int idleTimeout;
 	Thread thread;
 
 	/*
@@ -109,6 +163,10 @@ class HTTPServiceTest implements Runnable
 		}
 		logger.config("User agent:  " + userAgent);
 
+		followRedirects =
+			! configElement.getAttribute("follow_redirects").equals("no");
+		logger.config("Follow redirects:  " + followRedirects);
+
 		if (! configElement.getAttribute("ssl_keystore").equals(""))
 		{
 			System.setProperty(
@@ -165,9 +223,17 @@ class HTTPServiceTest implements Runnable
 						Element documentTextElement = (Element) getNode;
 						String requiredText =
 							documentTextElement.getAttribute("value");
-						requirements.put(
-							new Integer(REQUIREMENT_DOCUMENT_TEXT),
-							requiredText);
+						// All of the document texts given are required
+						List texts = (List) requirements.get(
+							Integer.valueOf(REQUIREMENT_DOCUMENT_TEXT));
+						if (texts == null)
+						{
+							texts = new ArrayList();
+							requirements.put(
+								new Integer(REQUIREMENT_DOCUMENT_TEXT),
+								texts);
+						}
+						texts.add(requiredText);
 					}
 				}
 			}
@@ -187,222 +253,794 @@ class HTTPServiceTest implements Runnable
 		logger.config("Path:  " + path);
 		logger.config("Requirements:  " + requirements);
 
+		requiredCode = -1;
+		if (requirements.containsKey(
+			Integer.valueOf(REQUIREMENT_RESPONSE_CODE)))
+		{
+			requiredCode = ((Integer) requirements.get(
+				Integer.valueOf(REQUIREMENT_RESPONSE_CODE))).intValue();
+		}
+		requiredType = (String) requirements.get(
+			Integer.valueOf(REQUIREMENT_CONTENT_TYPE));
+		if (requirements.containsKey(
+			Integer.valueOf(REQUIREMENT_DOCUMENT_TEXT)))
+		{
+			try
+			{
+				matcher = new TextMatcher((List) requirements.get(
+					Integer.valueOf(REQUIREMENT_DOCUMENT_TEXT)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.severe(e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		if (useSSL)
+		{
+			distributor.getHealthCheckScheduler().addTest(
+				(HealthCheck) this, distributor, frequency, timeout);
+			return;
+		}
+
+		try
+		{
+			selector = Selector.open();
+		}
+		catch (IOException e)
+		{
+			logger.severe("Error creating selector: " + e.getMessage());
+			System.exit(1);
+		}
+		newExchanges = new MpscQueue();
+		deadlines = new TimingWheel(WHEEL_TICK, WHEEL_SLOTS);
+		idleConnections = new IdentityHashMap();
+		requests = new IdentityHashMap();
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		drained = new ArrayList();
+		expired = new ArrayList();
+		// Idle connections are kept long enough to be reused by the
+		// next test, servers will often close them sooner
+		idleTimeout = frequency * 2;
+
 		thread = new Thread(this, getClass().getName());
+		thread.setDaemon(true);
 		thread.start();
+
+		distributor.getHealthCheckScheduler().addTest(
+			(NonBlockingHealthCheck) this, distributor, frequency, timeout);
+	}
+
+	public void startCheck(Target target,
+		HealthCheckScheduler.CheckResult result)
+	{
+		if (newExchanges.offer(new Exchange(target, result)))
+		{
+			selector.wakeup();
+		}
 	}
 
 	public void run()
 	{
-		List targets;
-		Iterator i;
-		Target target;
-		boolean result;
+		Iterator iter;
+		SelectionKey key;
+		Object attachment;
 
 		while (true)
 		{
-			targets = distributor.getTargets();
+			newExchanges.drain(drained);
+			iter = drained.iterator();
+			while (iter.hasNext())
+			{
+				startExchange((Exchange) iter.next());
+			}
+			drained.clear();
+
+			try
+			{
+				selector.select(deadlines.getSelectTimeout());
+			}
+			catch (IOException e)
+			{
+				logger.warning("Error when selecting for ready channel: " +
+					e.getMessage());
+				try { Thread.sleep(500); } catch (InterruptedException ie) {}
+				continue;
+			}
 
-			// distributor.getTargets() constructs a new List, puts
-			// all of the Targets into it, and returns it.  As such, we
-			// don't have to worry about holding everything else up by
-			// synchronizing on the list for a long time (the testing
-			// could take many seconds).  In fact, we really don't have
-			// to synchronize at all since we're the only ones with a
-			// reference to that list, but we do anyway for consistency.
-			synchronized (targets)
+			iter = selector.selectedKeys().iterator();
+			while (iter.hasNext())
 			{
-				i = targets.iterator();
-				while (i.hasNext())
+				key = (SelectionKey) iter.next();
+				iter.remove();
+
+				if (! key.isValid())
 				{
-					try
-					{
-						target = (Target) i.next();
-						HTTPBackgroundTest httpTest =
-							new HTTPBackgroundTest(target);
-						synchronized (httpTest)
-						{
-							httpTest.startTest();
-							httpTest.wait(timeout);
-						}
-						if (httpTest.getResult() ==
-							BackgroundTest.RESULT_SUCCESS)
-						{
-							result = true;
-						}
-						else
-						{
-							result = false;
+					continue;
+				}
 
-							if (httpTest.getResult() ==
-								BackgroundTest.RESULT_NOTFINISHED)
-							{
-								logger.warning("Test timed out");
-							}
-						}
+				attachment = key.attachment();
+				if (attachment instanceof IdleConnection)
+				{
+					// The server has closed the connection (or sent
+					// something we didn't ask for), either way we can't
+					// use it again
+					closeIdleConnection((IdleConnection) attachment);
+				}
+				else
+				{
+					processReadyExchange((Exchange) attachment, key);
+				}
+			}
 
-						if (result && ! target.isEnabled())
-						{
-							// I was tempted to log this at info but
-							// if someone has their log level set to
-							// warning then they'd only see the disable
-							// messages and not the enable messages.
-							logger.warning("Enabling: " + target);
-							target.enable();
-						}
-						else if (! result && target.isEnabled())
-						{
-							logger.warning("Disabling: " + target);
-							target.disable();
-						}
-					}
-					catch (InterruptedException e)
-					{
-						logger.warning("Service test interrupted");
-					}
+			deadlines.expireTimeouts(expired);
+			iter = expired.iterator();
+			while (iter.hasNext())
+			{
+				attachment = iter.next();
+				if (attachment instanceof IdleConnection)
+				{
+					closeIdleConnection((IdleConnection) attachment);
+				}
+				else
+				{
+					Exchange exchange = (Exchange) attachment;
+					exchange.deadline = null;
+					logger.fine("Request timed out: " + exchange.target);
+					finishExchange(exchange, false, false);
 				}
 			}
+			expired.clear();
+		}
+	}
 
-			try
+	/*
+	 * Send the request for an exchange, over the target's idle
+	 * connection if it has one
+	 */
+	private void startExchange(Exchange exchange)
+	{
+		IdleConnection idle;
+
+		exchange.deadline = deadlines.schedule(exchange, timeout);
+
+		idle = (IdleConnection) idleConnections.remove(exchange.target);
+		if (idle != null)
+		{
+			deadlines.cancel(idle.timeout);
+			exchange.channel = idle.channel;
+			exchange.key = idle.key;
+			exchange.key.attach(exchange);
+			exchange.reused = true;
+			logger.log(Level.FINER, "Reusing connection to {0}",
+				exchange.target);
+			sendRequest(exchange);
+		}
+		else
+		{
+			openConnection(exchange);
+		}
+	}
+
+	private void openConnection(Exchange exchange)
+	{
+		try
+		{
+			exchange.channel = SocketChannel.open();
+			exchange.channel.configureBlocking(false);
+			exchange.key = exchange.channel.register(selector, 0, exchange);
+			if (exchange.channel.connect(
+				new InetSocketAddress(
+					exchange.target.getInetAddress(),
+					exchange.target.getPort())))
 			{
-				Thread.sleep(frequency);
-			} catch (InterruptedException e) {}
+				sendRequest(exchange);
+			}
+			else
+			{
+				exchange.key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.warning("Error communicating with server: " +
+				e.getMessage());
+			finishExchange(exchange, false, false);
+		}
+	}
+
+	/*
+	 * Write as much of the request as the socket will take, then
+	 * select for whatever we need to do next
+	 */
+	private void sendRequest(Exchange exchange)
+	{
+		if (exchange.request == null)
+		{
+			exchange.request =
+				getRequest(exchange.target, exchange.path).duplicate();
+		}
+
+		try
+		{
+			exchange.channel.write(exchange.request);
+		}
+		catch (IOException e)
+		{
+			retryOrFail(exchange, e.getMessage());
+			return;
+		}
+
+		if (exchange.request.hasRemaining())
+		{
+			exchange.key.interestOps(SelectionKey.OP_WRITE);
+		}
+		else
+		{
+			exchange.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/*
+	 * The request for the given path on a target.  Requests for the
+	 * configured path are built once per target, as the Host header is
+	 * the only thing that varies.  Requests for the paths we are
+	 * redirected to are built as needed.
+	 */
+	private ByteBuffer getRequest(Target target, String requestPath)
+	{
+		ByteBuffer request;
+
+		if (! requestPath.equals(path))
+		{
+			return buildRequest(target, requestPath);
+		}
+
+		request = (ByteBuffer) requests.get(target);
+		if (request == null)
+		{
+			request = buildRequest(target, path);
+			requests.put(target, request);
 		}
+
+		return request;
 	}
 
-	class HTTPBackgroundTest extends BackgroundTest
+	private ByteBuffer buildRequest(Target target, String requestPath)
 	{
-		protected HTTPBackgroundTest(Target target)
+		String host = getHostName(target);
+
+		// Per RFC 2732
+		if (host.indexOf(':') != -1)
+		{
+			host = "[" + host + "]";
+		}
+		return ByteBuffer.wrap((
+			"GET " + requestPath + " HTTP/1.1\r\n" +
+			"Host: " + host + ":" + target.getPort() + "\r\n" +
+			"User-Agent: " + userAgent + "\r\n" +
+			"Connection: keep-alive\r\n" +
+			"\r\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/*
+	 * getHostString() gives the name the target was configured with
+	 * without doing a reverse lookup, which could block
+	 */
+	private static String getHostName(Target target)
+	{
+		return new InetSocketAddress(
+			target.getInetAddress(), target.getPort()).getHostString();
+	}
+
+	private static boolean isRedirect(int code)
+	{
+		return code == 301 || code == 302 || code == 303 ||
+			code == 307 || code == 308;
+	}
+
+	/*
+	 * Work out the path on the target that a Location header points
+	 * to.  Returns null if it points at another server, as we're
+	 * testing this target and not whatever it redirects to.
+	 */
+	private String getRedirectPath(Target target, String currentPath,
+		String location)
+	{
+		String authority;
+		String host;
+		int port;
+		int slash;
+		int colon;
+
+		if (location.indexOf('#') != -1)
+		{
+			location = location.substring(0, location.indexOf('#'));
+		}
+
+		if (location.startsWith("/") && ! location.startsWith("//"))
 		{
-			super(target);
+			return location;
 		}
 
-		public void test()
+		if (! location.regionMatches(true, 0, "http://", 0, 7))
+		{
+			if (location.indexOf(':') != -1 || location.startsWith("//"))
+			{
+				// Another scheme, or another server
+				return null;
+			}
+			// Relative to the current path
+			return currentPath.substring(0, currentPath.lastIndexOf('/') + 1) +
+				location;
+		}
+
+		location = location.substring(7);
+		slash = location.indexOf('/');
+		authority = slash == -1 ? location : location.substring(0, slash);
+		port = 80;
+		if (authority.startsWith("["))
+		{
+			host = authority.substring(1, Math.max(authority.indexOf(']'), 1));
+			colon = authority.indexOf("]:");
+			colon = colon == -1 ? -1 : colon + 1;
+		}
+		else
+		{
+			colon = authority.indexOf(':');
+			host = colon == -1 ? authority : authority.substring(0, colon);
+		}
+		if (colon != -1)
 		{
 			try
 			{
-				String proto = "http";
-				if (useSSL)
+				port = Integer.parseInt(authority.substring(colon + 1));
+			}
+			catch (NumberFormatException e)
+			{
+				return null;
+			}
+		}
+
+		if (port != target.getPort() ||
+			! (host.equalsIgnoreCase(getHostName(target)) ||
+			host.equals(target.getInetAddress().getHostAddress())))
+		{
+			return null;
+		}
+
+		return slash == -1 ? "/" : location.substring(slash);
+	}
+
+	/*
+	 * Send the exchange's request again for the path the server has
+	 * redirected us to.  The rest of the redirect response is of no
+	 * interest, so the connection is closed and a new one made.
+	 * Returns true if the exchange has finished.
+	 */
+	private boolean followRedirect(Exchange exchange)
+	{
+		String location = exchange.parser.getLocation();
+		String newPath;
+
+		if (location == null)
+		{
+			logger.warning("Redirect from server has no Location");
+			finishExchange(exchange, false, false);
+			return true;
+		}
+
+		newPath = getRedirectPath(exchange.target, exchange.path, location);
+		if (newPath == null)
+		{
+			logger.warning(
+				"Not following redirect to another server: " + location);
+			finishExchange(exchange, false, false);
+			return true;
+		}
+
+		exchange.redirects++;
+		if (exchange.redirects > MAX_REDIRECTS)
+		{
+			logger.warning("Too many redirects from server");
+			finishExchange(exchange, false, false);
+			return true;
+		}
+
+		logger.fine("Following redirect from " + exchange.target +
+			" to " + newPath);
+		try { exchange.channel.close(); } catch (IOException e) {}
+		exchange.path = newPath;
+		exchange.request = null;
+		exchange.parser.reset();
+		exchange.reused = false;
+		exchange.responseStarted = false;
+		exchange.satisfied = false;
+		openConnection(exchange);
+		return true;
+	}
+
+	private void processReadyExchange(Exchange exchange, SelectionKey key)
+	{
+		int count;
+
+		try
+		{
+			if (key.isConnectable())
+			{
+				if (exchange.channel.finishConnect())
 				{
-					proto = "https";
+					sendRequest(exchange);
 				}
+				return;
+			}
+			if (key.isWritable())
+			{
+				sendRequest(exchange);
+				return;
+			}
+
+			readBuffer.clear();
+			count = exchange.channel.read(readBuffer);
+		}
+		catch (IOException e)
+		{
+			retryOrFail(exchange, e.getMessage());
+			return;
+		}
+
+		if (count == -1)
+		{
+			if (! exchange.responseStarted)
+			{
+				retryOrFail(exchange, "Connection closed by server");
+			}
+			else
+			{
+				processEvent(exchange, exchange.parser.endOfInput());
+			}
+			return;
+		}
 
-				// If the target hostname is an IPv6 address, wrap it in
-				// square brackets per RFC 2732.
-				// IPv6 addresses are identified by looking for colons, as
-				// colons should not occur in an IPv4 address or a hostname.
-				String hostname = target.getInetAddress().getHostName();
-				if (hostname.indexOf(':') != -1)
+		exchange.responseStarted = true;
+		readBuffer.flip();
+		while (true)
+		{
+			int event = exchange.parser.parse(readBuffer);
+			if (event == HTTPResponseParser.NEED_MORE)
+			{
+				if (exchange.satisfied)
 				{
-					hostname = "[" + hostname + "]";
+					// Everything we need is in, don't wait for the rest
+					finishExchange(exchange, true, false);
 				}
+				return;
+			}
+			if (processEvent(exchange, event))
+			{
+				return;
+			}
+		}
+	}
 
-				URL serverURL = new URL(
-					proto, hostname, target.getPort(), path);
-				logger.fine("Server URL is " + serverURL);
+	/*
+	 * Check the requirements against what the parser has just reported.
+	 * Returns true if the exchange has finished.
+	 */
+	private boolean processEvent(Exchange exchange, int event)
+	{
+		HTTPResponseParser parser = exchange.parser;
 
-				logger.fine("Opening connection to server");
-				HttpURLConnection conn =
-					(HttpURLConnection) serverURL.openConnection();
+		switch (event)
+		{
+		case HTTPResponseParser.STATUS:
+			if (followRedirects && isRedirect(parser.getStatusCode()))
+			{
+				// Followed once we have the Location header
+				break;
+			}
+			if (requiredCode != -1 && parser.getStatusCode() != requiredCode)
+			{
+				logger.warning(
+					"Required response code is " + requiredCode +
+					", got " + parser.getStatusCode());
+				finishExchange(exchange, false, false);
+				return true;
+			}
+			break;
+		case HTTPResponseParser.HEADERS:
+			if (followRedirects && isRedirect(parser.getStatusCode()))
+			{
+				return followRedirect(exchange);
+			}
+			if (requiredType != null &&
+				! requiredType.equals(parser.getContentType()))
+			{
+				logger.warning(
+					"Required content type is " + requiredType +
+					", got " + parser.getContentType());
+				finishExchange(exchange, false, false);
+				return true;
+			}
+			exchange.satisfied = parser.allTextFound();
+			break;
+		case HTTPResponseParser.BODY:
+			exchange.satisfied = parser.allTextFound();
+			break;
+		case HTTPResponseParser.COMPLETE:
+			if (! parser.allTextFound())
+			{
+				logger.warning("Required text not found");
+				finishExchange(exchange, false, false);
+				return true;
+			}
+			// Anything more from the server would be out of step with
+			// our requests
+			finishExchange(exchange, true,
+				parser.isKeepAlive() && ! readBuffer.hasRemaining());
+			return true;
+		case HTTPResponseParser.ERROR:
+			logger.warning("Error communicating with server: " +
+				parser.getError());
+			finishExchange(exchange, false, false);
+			return true;
+		}
 
-				// Set the user agent (aka "browser") field
-				conn.setRequestProperty("User-Agent", userAgent);
+		return false;
+	}
 
-				// Check the returned attributes to make sure everything the
-				// user required is present.
-				Iterator i = requirements.entrySet().iterator();
-				success = true;
-				while (i.hasNext() && success)
-				{
-					Entry requirementEntry = (Entry) i.next();
-					int requirement =
-						((Integer) requirementEntry.getKey()).intValue();
+	/*
+	 * A reused connection may have been closed by the server while it
+	 * was idle, in which case we try again with a new connection.
+	 * Otherwise the test fails.
+	 */
+	private void retryOrFail(Exchange exchange, String message)
+	{
+		if (exchange.reused && ! exchange.responseStarted)
+		{
+			logger.log(Level.FINER, "Reused connection to {0} failed",
+				exchange.target);
+			try { exchange.channel.close(); } catch (IOException e) {}
+			exchange.reused = false;
+			exchange.request = null;
+			openConnection(exchange);
+			return;
+		}
+
+		logger.warning("Error communicating with server: " + message);
+		finishExchange(exchange, false, false);
+	}
+
+	/*
+	 * Report the result of an exchange, and either keep its connection
+	 * for the next test of the target or close it
+	 */
+	private void finishExchange(Exchange exchange, boolean success,
+		boolean keepConnection)
+	{
+		IdleConnection idle;
+
+		if (exchange.deadline != null)
+		{
+			deadlines.cancel(exchange.deadline);
+			exchange.deadline = null;
+		}
+
+		if (success)
+		{
+			logger.fine("Server met all requirements");
+		}
+
+		if (exchange.channel != null)
+		{
+			if (keepConnection)
+			{
+				idle = new IdleConnection(
+					exchange.target, exchange.channel, exchange.key);
+				// Selecting for read tells us if the server closes it
+				idle.key.interestOps(SelectionKey.OP_READ);
+				idle.key.attach(idle);
+				idle.timeout = deadlines.schedule(idle, idleTimeout);
+				idleConnections.put(exchange.target, idle);
+			}
+			else
+			{
+				// Closing the channel cancels its key
+				try { exchange.channel.close(); } catch (IOException e) {}
+			}
+		}
+
+		exchange.result.finished(success);
+	}
+
+	private void closeIdleConnection(IdleConnection idle)
+	{
+		if (idleConnections.get(idle.target) == idle)
+		{
+			idleConnections.remove(idle.target);
+		}
+		deadlines.cancel(idle.timeout);
+		try { idle.channel.close(); } catch (IOException e) {}
+	}
+
+	public boolean check(Target target)
+	{
+		try
+		{
+			String proto = "http";
+			if (useSSL)
+			{
+				proto = "https";
+			}
+
+			// If the target hostname is an IPv6 address, wrap it in
+			// square brackets per RFC 2732.
+			// IPv6 addresses are identified by looking for colons, as
+			// colons should not occur in an IPv4 address or a hostname.
+			String hostname = target.getInetAddress().getHostName();
+			if (hostname.indexOf(':') != -1)
+			{
+				hostname = "[" + hostname + "]";
+			}
+
+			URL serverURL = new URL(
+				proto, hostname, target.getPort(), path);
+			logger.fine("Server URL is " + serverURL);
 
-					switch (requirement)
+			logger.fine("Opening connection to server");
+			HttpURLConnection conn =
+				(HttpURLConnection) serverURL.openConnection();
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			conn.setInstanceFollowRedirects(followRedirects);
+
+			// Set the user agent (aka "browser") field
+			conn.setRequestProperty("User-Agent", userAgent);
+
+			// Check the returned attributes to make sure everything the
+			// user required is present.
+			Iterator i = requirements.entrySet().iterator();
+			boolean success = true;
+			while (i.hasNext() && success)
+			{
+				Entry requirementEntry = (Entry) i.next();
+				int requirement =
+					((Integer) requirementEntry.getKey()).intValue();
+
+				switch (requirement)
+				{
+				case REQUIREMENT_RESPONSE_CODE:
+					int requiredCode =
+						((Integer) requirementEntry.getValue()).intValue();
+					logger.finer("Checking for response code: " +
+						requiredCode);
+					if (conn.getResponseCode() != requiredCode)
 					{
-					case REQUIREMENT_RESPONSE_CODE:
-						int requiredCode =
-							((Integer) requirementEntry.getValue()).intValue();
-						logger.finer("Checking for response code: " +
-							requiredCode);
-						if (conn.getResponseCode() != requiredCode)
-						{
-							logger.warning(
-								"Required response code is " + requiredCode +
-								", got " + conn.getResponseCode());
-								success = false;
-						}
-						break;
-					case REQUIREMENT_CONTENT_TYPE:
-						String requiredType =
-							(String) requirementEntry.getValue();
-						logger.finer("Checking for content type: " +
-							requiredType);
-						if (! conn.getContentType().equals(requiredType))
+						logger.warning(
+							"Required response code is " + requiredCode +
+							", got " + conn.getResponseCode());
+							success = false;
+					}
+					break;
+				case REQUIREMENT_CONTENT_TYPE:
+					String requiredType =
+						(String) requirementEntry.getValue();
+					logger.finer("Checking for content type: " +
+						requiredType);
+					if (! conn.getContentType().equals(requiredType))
+					{
+						logger.warning(
+							"Required content type is " + requiredType +
+							", got " + conn.getContentType());
+							success = false;
+					}
+					break;
+				case REQUIREMENT_DOCUMENT_TEXT:
+					logger.finer("Checking for document text: " +
+						requirementEntry.getValue());
+					InputStream docStream = conn.getInputStream();
+					byte[] docBuffer = new byte[READ_BUFFER_SIZE];
+					int state = 0;
+					long found = matcher.matches(0);
+					int count;
+					// Stop reading once everything has been found
+					while (found != matcher.allFound() &&
+						(count = docStream.read(docBuffer)) != -1)
+					{
+						for (int j=0 ; j<count ; j++)
 						{
-							logger.warning(
-								"Required content type is " + requiredType +
-								", got " + conn.getContentType());
-								success = false;
+							state = matcher.next(state, docBuffer[j]);
+							found |= matcher.matches(state);
 						}
-						break;
-					case REQUIREMENT_DOCUMENT_TEXT:
-						String requiredText =
-							(String) requirementEntry.getValue();
-						logger.finer("Checking for document text: " +
-							requiredText);
-						BufferedReader docReader =
-							new BufferedReader(
-								new InputStreamReader(
-									conn.getInputStream()));
+					}
+					docStream.close();
+					if (found != matcher.allFound())
+					{
+						logger.warning("Required text not found");
 						success = false;
-						String docLine;
-						while ((docLine = docReader.readLine()) != null)
-						{
-							if (docLine.indexOf(requiredText) != -1)
-							{
-								success = true;
-								logger.finer("Required text found");
-							}
-						}
-						if (! success)
-						{
-							logger.warning("Required text not found");
-						}
-						break;
 					}
-				}
-
-				conn.disconnect();
-
-				if (success)
-				{
-					logger.fine("Server met all requirements");
-				}
-
-				finished = true;
-				synchronized (this)
-				{
-					notify();
+					else
+					{
+						logger.finer("Required text found");
+					}
+					break;
 				}
 			}
-			catch (MalformedURLException e)
-			{
-				logger.warning("Error building URL: " +
-					e.getMessage());
 
-				// We don't want the server to get disabled when this happens
-				finished = true;
-				success = true;
+			conn.disconnect();
 
-				return;
-			}
-			catch (IOException e)
+			if (success)
 			{
-				logger.warning("Error communicating with server: " +
-					e.getMessage());
-				return;
+				logger.fine("Server met all requirements");
 			}
+
+			return success;
+		}
+		catch (MalformedURLException e)
+		{
+			logger.warning("Error building URL: " +
+				e.getMessage());
+
+			// We don't want the server to get disabled when this happens
+			return true;
+		}
+		catch (IOException e)
+		{
+			logger.warning("Error communicating with server: " +
+				e.getMessage());
+			return false;
 		}
 	}
-}
 
+	/*
+	 * One request to a target and its response
+	 */
+	class Exchange
+	{
+		Target target;
+		HealthCheckScheduler.CheckResult result;
+		SocketChannel channel;
+		SelectionKey key;
+		TimingWheel.Timeout deadline;
+		ByteBuffer request;
+		// The path being requested, which changes if we're redirected
+		String path;
+		int redirects;
+		HTTPResponseParser parser;
+		// Set if the connection was left over from an earlier test
+		boolean reused;
+		// Set once any of the response has arrived
+		boolean responseStarted;
+		// Set once all of the requirements have been met
+		boolean satisfied;
+
+		Exchange(Target target, HealthCheckScheduler.CheckResult result)
+		{
+			this.target = target;
+			this.result = result;
+			path = HTTPServiceTest.this.path;
+			redirects = 0;
+			parser = new HTTPResponseParser(matcher);
+		}
+	}
+
+	/*
+	 * A connection kept open between tests of a target
+	 */
+	static class IdleConnection
+	{
+		Target target;
+		SocketChannel channel;
+		SelectionKey key;
+		TimingWheel.Timeout timeout;
+
+		IdleConnection(Target target, SocketChannel channel,
+			SelectionKey key)
+		{
+			this.target = target;
+			this.channel = channel;
+			this.key = key;
+		}
+	}
+}
@@ -28,12 +28,11 @@
 package oss.distributor;
 
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.logging.Logger;
-import java.net.InetAddress;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
 import java.nio.channels.SocketChannel;
 import org.w3c.dom.Element;
 
@@ -41,9 +40,15 @@ class HashDistributionAlgorithm
 	extends DistributionAlgorithm implements Runnable
 {
 	int hashTimeout;
-	Map ipMap;
-	Map lastConnectTime;
+	AffinityTable ipMap;
 	IpMapCleaner ipMapCleaner;
+	// Where ipMap is saved so that it survives restarts, or null
+	File snapshotFile;
+	int snapshotInterval;
+	IpMapSnapshotter ipMapSnapshotter;
+
+	// How many slots of ipMap the cleaner checks at a time
+	static final int CLEANER_STEP = 1024;
 
 	/*
 	 * Because the distribution algorithms are instantiated via
@@ -84,10 +89,151 @@ class HashDistributionAlgorithm
 		}
 		logger.config("Hash timeout:  " + hashTimeout);
 
-		ipMap = new HashMap();
-		lastConnectTime = new HashMap();
+		/*
+		 * hashMemoryLimit caps the memory used to remember clients, in
+		 * megabytes.  Each client takes 32 bytes on average.  Once the
+		 * limit is reached new clients push out the clients we heard
+		 * from least recently.
+		 */
+		int hashMemoryLimit = 64;
+		if (! configElement.getAttribute("hash_memory_limit").equals(""))
+		{
+			try
+			{
+				hashMemoryLimit =
+					Integer.parseInt(
+						configElement.getAttribute("hash_memory_limit"));
+			}
+			catch (NumberFormatException e)
+			{
+				logger.warning("Invalid hash memory limit, using default:  " +
+					e.getMessage());
+			}
+		}
+		logger.config("Hash memory limit:  " + hashMemoryLimit + "MB");
+
+		ipMap = new AffinityTable(hashTimeout,
+			(long) hashMemoryLimit * 1024 * 1024);
 
 		ipMapCleaner = new IpMapCleaner();
+
+		/*
+		 * If a snapshot file is given, ipMap is saved to it every
+		 * snapshotInterval milliseconds and when Distributor exits, and
+		 * loaded from it when Distributor starts.
+		 */
+		snapshotFile = null;
+		if (! configElement.getAttribute("hash_snapshot_file").equals(""))
+		{
+			snapshotFile =
+				new File(configElement.getAttribute("hash_snapshot_file"));
+			logger.config("Hash snapshot file:  " + snapshotFile);
+		}
+		snapshotInterval = 60000;  // 1 minute
+		if (! configElement.getAttribute("hash_snapshot_interval").equals(""))
+		{
+			try
+			{
+				snapshotInterval =
+					Integer.parseInt(
+						configElement.getAttribute("hash_snapshot_interval"));
+			}
+			catch (NumberFormatException e)
+			{
+				logger.warning(
+					"Invalid hash snapshot interval, using default:  " +
+					e.getMessage());
+			}
+		}
+		if (snapshotFile != null)
+		{
+			logger.config("Hash snapshot interval:  " + snapshotInterval);
+		}
+	}
+
+	/*
+	 * The targets have been read by the time we get here, so we can
+	 * match up the targets in the snapshot with them.  Distributor
+	 * doesn't start accepting clients until after this, so the first
+	 * clients already see the loaded mappings.
+	 */
+	public void finishInitialization()
+	{
+		if (snapshotFile != null)
+		{
+			loadSnapshot();
+			ipMapSnapshotter = new IpMapSnapshotter();
+		}
+
+		super.finishInitialization();
+	}
+
+	private void loadSnapshot()
+	{
+		List targets = new ArrayList();
+		List targetGroups = distributor.getTargetGroups();
+		Iterator iter;
+		long start;
+		int loaded;
+
+		if (! snapshotFile.exists())
+		{
+			logger.info("No hash snapshot file " + snapshotFile +
+				" to load");
+			return;
+		}
+
+		synchronized (targetGroups)
+		{
+			iter = targetGroups.iterator();
+			while (iter.hasNext())
+			{
+				List group = (List) iter.next();
+				synchronized (group)
+				{
+					targets.addAll(group);
+				}
+			}
+		}
+
+		try
+		{
+			start = System.currentTimeMillis();
+			loaded = ipMap.readSnapshot(snapshotFile, targets);
+			logger.info("Loaded " + loaded + " client mappings from " +
+				snapshotFile + " in " +
+				(System.currentTimeMillis() - start) + "ms");
+		}
+		catch (IOException e)
+		{
+			logger.warning("Unable to load hash snapshot file:  " +
+				e.getMessage());
+		}
+	}
+
+	/*
+	 * Synchronized so that the periodic snapshot and the one at exit
+	 * don't write the file at the same time
+	 */
+	synchronized void saveSnapshot()
+	{
+		long start;
+		int saved;
+
+		try
+		{
+			start = System.currentTimeMillis();
+			saved = ipMap.writeSnapshot(snapshotFile);
+			logger.log(Level.FINE,
+				"Saved {0} client mappings to {1} in {2}ms",
+				saved, snapshotFile,
+				Long.valueOf(System.currentTimeMillis() - start));
+		}
+		catch (IOException e)
+		{
+			logger.warning("Unable to save hash snapshot file:  " +
+				e.getMessage());
+		}
 	}
 
 	protected boolean processNewClients()
@@ -106,24 +252,21 @@ class HashDistributionAlgorithm
 
 				// See if we have an existing mapping for this client.  If so,
 				// and if that target is enabled, try to send the client to it.
-				Target target = (Target) ipMap.get(
-					client.socket().getInetAddress());
+				Target target = ipMap.get(client.socket().getInetAddress());
 				if (target != null)
 				{
-					logger.finer(
-						"Existing mapping for " +
-						client.socket().getInetAddress() +
-						" to " + target);
+					logger.log(Level.FINER,
+						"Existing mapping for {0} to {1}",
+						client.socket().getInetAddress(), target);
 					if (target.isEnabled())
 					{
 						initiateConnection(client, target);
 					}
 					else
 					{
-						logger.finer(
-							"Existing mapping for " +
-							client.socket().getInetAddress() +
-							" points to a disabled target");
+						logger.log(Level.FINER,
+							"Existing mapping for {0} points to a disabled " +
+							"target", client.socket().getInetAddress());
 						// Give the client back to TargetSelector so it can try
 						// another distribution algorithm
 						targetSelector.addUnconnectedClient(client);
@@ -131,8 +274,8 @@ class HashDistributionAlgorithm
 				}
 				else
 				{
-					logger.finer(
-						"No existing mapping for " +
+					logger.log(Level.FINER,
+						"No existing mapping for {0}",
 						client.socket().getInetAddress());
 					// Give the client back to TargetSelector so it can try
 					// another distribution algorithm
@@ -146,6 +289,21 @@ class HashDistributionAlgorithm
 		return didSomething;
 	}
 
+	public Target selectTarget(SocketChannel client)
+	{
+		Target target = ipMap.get(client.socket().getInetAddress());
+
+		if (target != null && target.isEnabled())
+		{
+			logger.log(Level.FINER,
+				"Existing mapping for {0} to {1}",
+				client.socket().getInetAddress(), target);
+			return target;
+		}
+
+		return null;
+	}
+
 	public void processCompletedConnections(List completedConnections)
 	{
 		Iterator iter;
@@ -184,24 +342,14 @@ class HashDistributionAlgorithm
 	{
 		// Store a mapping for this client's IP address so that future
 		// connections from that IP can get sent to the same target.
-		synchronized(ipMap)
-		{
-			logger.finer(
-				"Storing mapping from " +
-				conn.getClient().socket().getInetAddress() +
-				" to " + conn.getTarget());
-			ipMap.put(
-				conn.getClient().socket().getInetAddress(),
-				conn.getTarget());
-		}
-		// And record the time to allow us to dump old entries from the
-		// maps after a while (see the run method).
-		synchronized(lastConnectTime)
-		{
-			lastConnectTime.put(
-				conn.getClient().socket().getInetAddress(),
-				new Long(System.currentTimeMillis()));
-		}
+		// ipMap records the time as well, so that old entries can be
+		// dumped after a while (see IpMapCleaner).
+		logger.log(Level.FINER,
+			"Storing mapping from {0} to {1}",
+			conn.getClient().socket().getInetAddress(), conn.getTarget());
+		ipMap.put(
+			conn.getClient().socket().getInetAddress(),
+			conn.getTarget());
 	}
 
 	public String getMemoryStats(String indent)
@@ -210,9 +358,15 @@ class HashDistributionAlgorithm
 
 		stats = super.getMemoryStats(indent) + "\n";
 		stats += indent +
-			ipMap.size() + " entries in ipMap Map\n";
+			ipMap.size() + " entries in ipMap AffinityTable\n";
 		stats += indent +
-			lastConnectTime.size() + " entries in lastConnectTime Map";
+			ipMap.getCapacity() + " slots in ipMap AffinityTable\n";
+		stats += indent +
+			ipMap.getMemoryUsage() + " of " + ipMap.getMemoryLimit() +
+			" bytes used by ipMap AffinityTable\n";
+		stats += indent +
+			ipMap.getEvictedCount() + " entries evicted from ipMap " +
+			"AffinityTable before expiring";
 
 		return stats;
 	}
@@ -232,16 +386,15 @@ class HashDistributionAlgorithm
 		}
 
 		/*
-	 	* Slowly loop, purging expired entries from ipMap
-	 	*/
+		 * Slowly loop, purging expired entries from ipMap.  Each pass
+		 * works through the table a step at a time so that lookups
+		 * don't have to wait for the whole pass.
+		 */
 		public void run()
 		{
-			Iterator iter;
-			InetAddress addr;
-			long lastConnect;
 			long sleepTime;
 
-			// Calculate the amount of time to sleep between loops, the
+			// Calculate the amount of time to sleep between passes, the
 			// lesser of (hashTimeout/4) or 15 minutes.
 			sleepTime = hashTimeout/4;
 			if (sleepTime > (15 * 60 * 1000))
@@ -251,27 +404,10 @@ class HashDistributionAlgorithm
 
 			while (true)
 			{
-				synchronized(lastConnectTime)
+				for (int i=ipMap.getCapacity()/CLEANER_STEP ; i>=0 ; i--)
 				{
-					iter = lastConnectTime.entrySet().iterator();
-					while(iter.hasNext())
-					{
-						Entry timeEntry = (Entry) iter.next();
-						addr = (InetAddress) timeEntry.getKey();
-						lastConnect =
-							((Long) timeEntry.getValue()).longValue();
-
-						if (lastConnect + hashTimeout <
-							System.currentTimeMillis())
-						{
-							synchronized(ipMap)
-							{
-								ipMap.remove(addr);
-							}
-							// Remove the entry from lastConnectTime
-							iter.remove();
-						}
-					}
+					ipMap.expireSome(CLEANER_STEP);
+					Thread.yield();
 				}
 
 				// Pause for a reasonable amount of time before doing it
@@ -281,5 +417,40 @@ class HashDistributionAlgorithm
 			}
 		}
 	}
-}
 
+	/*
+	 * Periodically save ipMap to snapshotFile, and save it one last time
+	 * when the JVM exits
+	 */
+	class IpMapSnapshotter implements Runnable
+	{
+		Thread thread;
+
+		IpMapSnapshotter()
+		{
+			thread = new Thread(this, getClass().getName());
+			thread.setDaemon(true);
+			thread.start();
+
+			Runtime.getRuntime().addShutdownHook(
+				new Thread(getClass().getName() + " at exit")
+				{
+					public void run()
+					{
+						saveSnapshot();
+					}
+				});
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				try { Thread.sleep(snapshotInterval); }
+					catch (InterruptedException e) {}
+
+				saveSnapshot();
+			}
+		}
+	}
+}
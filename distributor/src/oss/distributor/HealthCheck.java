@@ -0,0 +1,47 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A service test which checks one target at a time and blocks until
+ * it knows the answer.  Service tests implement this and hand
+ * themselves to the HealthCheckScheduler, which decides when to check
+ * each target and enables or disables targets based on the results.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+/*
+ * This interface is public to allow 3rd party service tests.
+ */
+public interface HealthCheck
+{
+	/*
+	 * Test the given target, returning true if it is working.  This is
+	 * called by the scheduler's worker threads, possibly for several
+	 * targets at once, so it must be thread safe.  It should give up
+	 * by itself once the test's timeout has passed (i.e. by setting
+	 * socket timeouts), as a worker stuck in a test can't test anything
+	 * else.  The scheduler treats the test as failed at the timeout
+	 * either way.
+	 */
+	public boolean check(Target target);
+}
@@ -0,0 +1,506 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Decides when each target is tested by the service tests, runs the
+ * tests, and enables or disables targets according to the results.
+ * One scheduler is shared by all of the services' service tests.
+ * 
+ * Each target has its own schedule.  When a target is due to be tested
+ * the test is handed to a fixed size pool of worker threads, so many
+ * targets are tested at once and a slow or dead target only ties up
+ * one worker rather than holding up the tests of every other target.
+ * The next test of a target is scheduled when its current test
+ * finishes, so each target is tested about once per interval however
+ * many targets there are.  Intervals are varied randomly by a little
+ * so that targets which start out being tested together drift apart
+ * rather than all being tested in one burst.
+ * 
+ * Tests which implement NonBlockingHealthCheck instead of HealthCheck
+ * aren't given to the workers.  The scheduler thread starts them
+ * itself and they report back when they are done, which lets a test
+ * with its own selector thread keep any number of tests in flight.
+ * 
+ * The schedules and the timeouts for tests in progress are kept in a
+ * TimingWheel owned by the scheduler thread.  Other threads talk to
+ * the scheduler thread through MpscQueues.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+class HealthCheckScheduler implements Runnable
+{
+	static final long WHEEL_TICK = 10;  // ms
+	static final int WHEEL_SLOTS = 1024;
+	// How often to look for targets which have been added or removed
+	static final long RECONCILE_INTERVAL = 1000;  // ms
+	// Intervals are varied randomly by up to this percentage either way
+	static final int JITTER_PERCENT = 10;
+
+	LazyLogger logger;
+	ExecutorService workers;
+	int workerCount;
+	// Service tests which have been added but not yet picked up by the
+	// scheduler thread
+	MpscQueue newTests;
+	// Results handed back by the workers and by non-blocking tests, as
+	// CheckResults
+	MpscQueue results;
+	// Each service test, as a Registration
+	List tests;
+	// Timeouts for when each target is next due to be tested, or when
+	// the test in progress times out, with the TargetCheck attached
+	TimingWheel timeouts;
+	List expired;
+	List drained;
+	long nextReconcile;
+	Thread thread;
+
+	protected HealthCheckScheduler(int workerCount, LazyLogger logger)
+	{
+		this.workerCount = workerCount;
+		this.logger = logger;
+
+		final AtomicInteger workerNumber = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount,
+			new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					return new Thread(r, HealthCheckScheduler.class.getName() +
+						" worker " + workerNumber.incrementAndGet());
+				}
+			});
+
+		newTests = new MpscQueue();
+		results = new MpscQueue();
+		tests = new ArrayList();
+		timeouts = new TimingWheel(WHEEL_TICK, WHEEL_SLOTS);
+		expired = new ArrayList();
+		drained = new ArrayList();
+
+		thread = new Thread(this, getClass().getName());
+		thread.start();
+	}
+
+	/*
+	 * Start testing the targets of the given Distributor with the given
+	 * test, every frequency milliseconds (unless a target has its own
+	 * test frequency), giving each test timeout milliseconds to finish.
+	 */
+	public void addTest(HealthCheck test, Distributor distributor,
+		int frequency, int timeout)
+	{
+		addRegistration(
+			new Registration(test, false, distributor, frequency, timeout));
+	}
+
+	/*
+	 * As above, but the test is started with startCheck() rather than
+	 * handed to a worker.  A test which implements both interfaces is
+	 * run whichever way it was added.
+	 */
+	public void addTest(NonBlockingHealthCheck test,
+		Distributor distributor, int frequency, int timeout)
+	{
+		addRegistration(
+			new Registration(test, true, distributor, frequency, timeout));
+	}
+
+	private void addRegistration(Registration reg)
+	{
+		if (newTests.offer(reg))
+		{
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void run()
+	{
+		Iterator iter;
+		long now;
+		long wait;
+
+		nextReconcile = System.currentTimeMillis();
+		while (true)
+		{
+			newTests.drain(drained);
+			iter = drained.iterator();
+			while (iter.hasNext())
+			{
+				Registration reg = (Registration) iter.next();
+				tests.add(reg);
+				reconcile(reg);
+			}
+			drained.clear();
+
+			results.drain(drained);
+			iter = drained.iterator();
+			while (iter.hasNext())
+			{
+				processResult((CheckResult) iter.next());
+			}
+			drained.clear();
+
+			timeouts.expireTimeouts(expired);
+			iter = expired.iterator();
+			while (iter.hasNext())
+			{
+				TargetCheck tc = (TargetCheck) iter.next();
+				tc.timeout = null;
+				if (tc.running)
+				{
+					checkDeadline(tc);
+				}
+				else
+				{
+					startCheck(tc);
+				}
+			}
+			expired.clear();
+
+			now = System.currentTimeMillis();
+			if (now >= nextReconcile)
+			{
+				iter = tests.iterator();
+				while (iter.hasNext())
+				{
+					Registration reg = (Registration) iter.next();
+					if (reg.generation !=
+						reg.distributor.getTargetGeneration())
+					{
+						reconcile(reg);
+					}
+				}
+				nextReconcile = now + RECONCILE_INTERVAL;
+			}
+
+			wait = timeouts.getSelectTimeout();
+			if (wait == 0 || wait > nextReconcile - now)
+			{
+				wait = Math.max(nextReconcile - now, 1);
+			}
+			LockSupport.parkNanos(wait * 1000000);
+		}
+	}
+
+	/*
+	 * Bring the registration's set of TargetChecks in line with the
+	 * Distributor's current targets.  New targets get their first test
+	 * at a random point within the first interval, so that a large
+	 * number of targets aren't all tested at once.
+	 */
+	private void reconcile(Registration reg)
+	{
+		List targets;
+		Map current = new IdentityHashMap();
+		Iterator iter;
+		Target target;
+		TargetCheck tc;
+
+		// Read the generation first, so that a change made while we're
+		// looking gets looked at again next time
+		reg.generation = reg.distributor.getTargetGeneration();
+		targets = reg.distributor.getTargets();
+
+		iter = targets.iterator();
+		while (iter.hasNext())
+		{
+			target = (Target) iter.next();
+			current.put(target, target);
+			if (! reg.checks.containsKey(target))
+			{
+				tc = new TargetCheck(reg, target);
+				reg.checks.put(target, tc);
+				tc.timeout = timeouts.schedule(tc,
+					ThreadLocalRandom.current().nextInt(
+						Math.max(tc.getFrequency(), 1)));
+				logger.log(Level.FINE, "Scheduled tests of {0}", target);
+			}
+		}
+
+		iter = reg.checks.values().iterator();
+		while (iter.hasNext())
+		{
+			tc = (TargetCheck) iter.next();
+			if (! current.containsKey(tc.target))
+			{
+				logger.log(Level.FINE, "Stopped tests of {0}", tc.target);
+				tc.removed = true;
+				if (tc.timeout != null && ! tc.running)
+				{
+					timeouts.cancel(tc.timeout);
+					tc.timeout = null;
+				}
+				iter.remove();
+			}
+		}
+	}
+
+	private void startCheck(final TargetCheck tc)
+	{
+		final CheckResult result;
+
+		if (tc.removed)
+		{
+			return;
+		}
+
+		tc.running = true;
+		tc.sequence++;
+		tc.startTime = 0;
+		result = new CheckResult(tc, tc.sequence);
+		tc.timeout = timeouts.schedule(tc, tc.registration.timeout);
+
+		logger.log(Level.FINER, "Testing {0}", tc.target);
+		if (tc.registration.nonBlocking)
+		{
+			tc.startTime = System.nanoTime();
+			try
+			{
+				((NonBlockingHealthCheck) tc.registration.test).startCheck(
+					tc.target, result);
+			}
+			catch (RuntimeException e)
+			{
+				logger.warning("Error testing " + tc.target + ":  " + e);
+				result.finished(false);
+			}
+			return;
+		}
+
+		workers.execute(new Runnable()
+		{
+			public void run()
+			{
+				boolean success;
+
+				tc.startTime = System.nanoTime();
+				try
+				{
+					success =
+						((HealthCheck) tc.registration.test).check(tc.target);
+				}
+				catch (RuntimeException e)
+				{
+					logger.warning("Error testing " + tc.target + ":  " + e);
+					success = false;
+				}
+
+				result.finished(success);
+			}
+		});
+	}
+
+	/*
+	 * The timeout for a test in progress has expired.  The timeout
+	 * started when the test was handed to the workers, but the test
+	 * only gets the full timeout once a worker picks it up.
+	 */
+	private void checkDeadline(TargetCheck tc)
+	{
+		long startTime = tc.startTime;
+		long remaining;
+
+		if (startTime == 0)
+		{
+			// Still waiting for a worker
+			logger.log(Level.FINE,
+				"Test of {0} is waiting for a free worker", tc.target);
+			tc.timeout = timeouts.schedule(tc, tc.registration.timeout);
+			return;
+		}
+
+		remaining = (startTime + tc.registration.timeout * 1000000L -
+			System.nanoTime()) / 1000000;
+		if (remaining > 0)
+		{
+			tc.timeout = timeouts.schedule(tc, remaining);
+			return;
+		}
+
+		logger.warning("Test timed out: " + tc.target);
+		finishCheck(tc, false);
+	}
+
+	private void processResult(CheckResult result)
+	{
+		TargetCheck tc = result.targetCheck;
+
+		if (! tc.running || tc.sequence != result.sequence)
+		{
+			logger.log(Level.FINE,
+				"Ignoring result of timed out test of {0}", tc.target);
+			return;
+		}
+
+		if (tc.timeout != null)
+		{
+			timeouts.cancel(tc.timeout);
+			tc.timeout = null;
+		}
+		finishCheck(tc, result.success);
+	}
+
+	private void finishCheck(TargetCheck tc, boolean success)
+	{
+		Target target = tc.target;
+		int frequency;
+		int jitter;
+
+		tc.running = false;
+
+		if (success && target.isDisabled())
+		{
+			// I was tempted to log this at info but if someone has
+			// their log level set to warning then they'd only see the
+			// disable messages and not the enable messages.
+			logger.warning("Enabling: " + target);
+			target.enable();
+		}
+		else if (! success && ! target.isDisabled())
+		{
+			logger.warning("Disabling: " + target);
+			target.disable();
+		}
+
+		if (tc.removed)
+		{
+			return;
+		}
+
+		frequency = tc.getFrequency();
+		jitter = frequency * JITTER_PERCENT / 100;
+		if (jitter > 0)
+		{
+			frequency += ThreadLocalRandom.current().nextInt(
+				-jitter, jitter + 1);
+		}
+		tc.timeout = timeouts.schedule(tc, frequency);
+	}
+
+	/*
+	 * A service test, and the targets it is testing
+	 */
+	static class Registration
+	{
+		// A HealthCheck or NonBlockingHealthCheck
+		Object test;
+		boolean nonBlocking;
+		Distributor distributor;
+		int frequency;
+		int timeout;
+		// The Distributor's target generation when we last looked at
+		// its targets
+		int generation;
+		// Map of Target to TargetCheck
+		Map checks;
+
+		Registration(Object test, boolean nonBlocking,
+			Distributor distributor, int frequency, int timeout)
+		{
+			this.test = test;
+			this.nonBlocking = nonBlocking;
+			this.distributor = distributor;
+			this.frequency = frequency;
+			this.timeout = timeout;
+			generation = -1;
+			checks = new IdentityHashMap();
+		}
+	}
+
+	/*
+	 * The schedule for testing one target
+	 */
+	static class TargetCheck
+	{
+		Registration registration;
+		Target target;
+		// The timeout for the next test or the test in progress
+		TimingWheel.Timeout timeout;
+		boolean running;
+		// Set when the target has been removed from its Distributor
+		boolean removed;
+		// Incremented for each test, so that the result of a test which
+		// timed out can be told apart from the result of a later test
+		int sequence;
+		// When a worker started the test in progress (System.nanoTime),
+		// zero if it is still waiting for a worker
+		volatile long startTime;
+
+		TargetCheck(Registration registration, Target target)
+		{
+			this.registration = registration;
+			this.target = target;
+		}
+
+		int getFrequency()
+		{
+			if (target.getTestFrequency() > 0)
+			{
+				return target.getTestFrequency();
+			}
+			return registration.frequency;
+		}
+	}
+
+	/*
+	 * Hands the result of one test back to the scheduler thread
+	 */
+	class CheckResult
+	{
+		TargetCheck targetCheck;
+		int sequence;
+		boolean success;
+
+		CheckResult(TargetCheck targetCheck, int sequence)
+		{
+			this.targetCheck = targetCheck;
+			this.sequence = sequence;
+		}
+
+		/*
+		 * Called by the test, from any thread, when it is done
+		 */
+		void finished(boolean success)
+		{
+			this.success = success;
+			if (results.offer(this))
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+}
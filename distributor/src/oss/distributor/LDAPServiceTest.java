@@ -29,7 +29,6 @@ package oss.distributor;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.logging.Logger;
@@ -42,7 +41,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-class LDAPServiceTest implements Runnable
+class LDAPServiceTest implements HealthCheck
 {
 	Distributor distributor;
 	Logger logger;
@@ -60,8 +59,6 @@ class LDAPServiceTest implements Runnable
 
 	int sslType;
 
-	Thread thread;
-
 	// SSL types for sslType parameter to constructor
 	protected static final int SSL_NONE = 0;
 	protected static final int SSL_LDAPS = 1;
@@ -106,6 +103,11 @@ class LDAPServiceTest implements Runnable
 		}
 		logger.config("Test timeout:  " + timeout);
 
+		// Have the LDAP provider give up at the timeout rather than
+		// tying up one of the health check workers indefinitely
+		env.put("com.sun.jndi.ldap.connect.timeout", Integer.toString(timeout));
+		env.put("com.sun.jndi.ldap.read.timeout", Integer.toString(timeout));
+
 		if (configElement.getAttribute("ssl_type").equals("starttls"))
 		{
 			sslType = SSL_STARTTLS;
@@ -203,200 +205,108 @@ class LDAPServiceTest implements Runnable
 			j++;
 		}
 
-		thread = new Thread(this, getClass().getName());
-		thread.start();
+		distributor.getHealthCheckScheduler().addTest(
+			this, distributor, frequency, timeout);
 	}
 
-	public void run()
+	public boolean check(Target target)
 	{
-		List targets;
-		Iterator i;
-		Target target;
-		boolean result;
-
-		while (true)
+		// If the target hostname is an IPv6 address, wrap it in
+		// square brackets per RFC 2732.
+		// IPv6 addresses are identified by looking for colons, as
+		// colons should not occur in an IPv4 address or a hostname.
+		String hostname = target.getInetAddress().getHostName();
+		if (hostname.indexOf(':') != -1)
 		{
-			targets = distributor.getTargets();
-
-			// distributor.getTargets() constructs a new List, puts
-			// all of the Targets into it, and returns it.  As such, we
-			// don't have to worry about holding everything else up by
-			// synchronizing on the list for a long time (the testing
-			// could take many seconds).  In fact, we really don't have
-			// to synchronize at all since we're the only ones with a
-			// reference to that list, but we do anyway for consistency.
-			synchronized (targets)
-			{
-				i = targets.iterator();
-				while (i.hasNext())
-				{
-					try
-					{
-						target = (Target) i.next();
-						LDAPBackgroundTest ldapTest =
-							new LDAPBackgroundTest(target);
-						synchronized (ldapTest)
-						{
-							ldapTest.startTest();
-							ldapTest.wait(timeout);
-						}
-						if (ldapTest.getResult() ==
-							BackgroundTest.RESULT_SUCCESS)
-						{
-							result = true;
-						}
-						else
-						{
-							result = false;
+			hostname = "[" + hostname + "]";
+		}
 
-							if (ldapTest.getResult() ==
-								BackgroundTest.RESULT_NOTFINISHED)
-							{
-								logger.warning("Test timed out");
-							}
-						}
+		// Several targets may be tested at once, so each test gets
+		// its own copy of the environment
+		Hashtable env = (Hashtable) LDAPServiceTest.this.env.clone();
 
-						if (result && ! target.isEnabled())
-						{
-							// I was tempted to log this at info but
-							// if someone has their log level set to
-							// warning then they'd only see the disable
-							// messages and not the enable messages.
-							logger.warning("Enabling: " + target);
-							target.enable();
-						}
-						else if (! result && target.isEnabled())
-						{
-							logger.warning("Disabling: " + target);
-							target.disable();
-						}
-					}
-					catch (InterruptedException e)
-					{
-						logger.warning("Service test interrupted");
-					}
-				}
-			}
+		String serverURL =
+			"ldap://" + hostname + ":" + target.getPort() + "/";
+		logger.fine("Server URL is " + serverURL);
+		env.put(Context.PROVIDER_URL, serverURL);
 
-			try
-			{
-				Thread.sleep(frequency);
-			} catch (InterruptedException e) {}
-		}
-	}
-
-	class LDAPBackgroundTest extends BackgroundTest
-	{
-		protected LDAPBackgroundTest(Target target)
+		if (sslType == SSL_LDAPS)
 		{
-			super(target);
+			logger.finer("Enabling SSL (ldaps)");
+			env.put(Context.SECURITY_PROTOCOL, "ssl");
 		}
 
-		public void test()
+		try
 		{
-			// If the target hostname is an IPv6 address, wrap it in
-			// square brackets per RFC 2732.
-			// IPv6 addresses are identified by looking for colons, as
-			// colons should not occur in an IPv4 address or a hostname.
-			String hostname = target.getInetAddress().getHostName();
-			if (hostname.indexOf(':') != -1)
+			logger.finest("Creating context");
+			LdapContext ctx = new InitialLdapContext(env, null);
+
+			if (sslType == SSL_STARTTLS)
 			{
-				hostname = "[" + hostname + "]";
+				logger.finer("Starting TLS");
+				StartTlsResponse tls =
+					(StartTlsResponse) ctx.extendedOperation(
+						new StartTlsRequest());
+				SSLSession sess = tls.negotiate();
 			}
 
-			String serverURL =
-				"ldap://" + hostname + ":" + target.getPort() + "/";
-			logger.fine("Server URL is " + serverURL);
-			env.put(Context.PROVIDER_URL, serverURL);
+			logger.finer("Getting attributes from server");
+			Attributes returnedAttributes =
+				ctx.getAttributes(searchDN, requiredAttributeNames);
 
-			if (sslType == SSL_LDAPS)
-			{
-				logger.finer("Enabling SSL (ldaps)");
-				env.put(Context.SECURITY_PROTOCOL, "ssl");
-			}
-			else
+			// Check the returned attributes to make sure everything the
+			// user required is present.
+			Iterator i = requiredAttributes.entrySet().iterator();
+			boolean success = true;
+			while (i.hasNext() && success)
 			{
-				// In case a previous test set it
-				env.remove(Context.SECURITY_PROTOCOL);
-			}
+				Entry reqAttr = (Entry) i.next();
+				String reqAttrKey = (String) reqAttr.getKey();
+				String reqAttrValue = (String) reqAttr.getValue();
 
-			try
-			{
-				logger.finest("Creating context");
-				LdapContext ctx = new InitialLdapContext(env, null);
+				logger.finer("Checking for attribute: " + reqAttr);
 
-				if (sslType == SSL_STARTTLS)
+				Attribute returnedAttr = returnedAttributes.get(reqAttrKey);
+				if (returnedAttr == null)
 				{
-					logger.finer("Starting TLS");
-					StartTlsResponse tls =
-						(StartTlsResponse) ctx.extendedOperation(
-							new StartTlsRequest());
-					SSLSession sess = tls.negotiate();
+					logger.warning("Required attribute " +
+						reqAttrKey + " not in returned attributes " +
+						returnedAttributes);
+					success = false;
 				}
-
-				logger.finer("Getting attributes from server");
-				Attributes returnedAttributes =
-					ctx.getAttributes(searchDN, requiredAttributeNames);
-
-				// Check the returned attributes to make sure everything the
-				// user required is present.
-				Iterator i = requiredAttributes.entrySet().iterator();
-				success = true;
-				while (i.hasNext() && success)
+				else if (reqAttrValue != null)
 				{
-					Entry reqAttr = (Entry) i.next();
-					String reqAttrKey = (String) reqAttr.getKey();
-					String reqAttrValue = (String) reqAttr.getValue();
-
-					logger.finer("Checking for attribute: " + reqAttr);
-
-					Attribute returnedAttr = returnedAttributes.get(reqAttrKey);
-					if (returnedAttr == null)
+					if (! returnedAttr.contains(reqAttrValue))
 					{
-						logger.warning("Required attribute " +
-							reqAttrKey + " not in returned attributes " +
-							returnedAttributes);
+						logger.warning("Required attribute value " +
+							reqAttrValue + " not in returned values " +
+							returnedAttr);
 						success = false;
 					}
-					else if (reqAttrValue != null)
-					{
-						if (! returnedAttr.contains(reqAttrValue))
-						{
-							logger.warning("Required attribute value " +
-								reqAttrValue + " not in returned values " +
-								returnedAttr);
-							success = false;
-						}
-					}
 				}
-	
-				logger.finest("Closing context");
-				ctx.close();
+			}
 
-				if (success)
-				{
-					logger.fine("Server returned all required attributes");
-				}
+			logger.finest("Closing context");
+			ctx.close();
 
-				finished = true;
-				synchronized (this)
-				{
-					notify();
-				}
-			}
-			catch (NamingException e)
+			if (success)
 			{
-				logger.warning("Error communicating with LDAP server: " +
-					e.getMessage());
-				return;
-			}
-			catch (IOException e)
-			{
-				logger.warning("Error negotiating TLS with LDAP server: " +
-					e.getMessage());
-				return;
+				logger.fine("Server returned all required attributes");
 			}
+
+			return success;
+		}
+		catch (NamingException e)
+		{
+			logger.warning("Error communicating with LDAP server: " +
+				e.getMessage());
+			return false;
+		}
+		catch (IOException e)
+		{
+			logger.warning("Error negotiating TLS with LDAP server: " +
+				e.getMessage());
+			return false;
 		}
 	}
 }
-
@@ -0,0 +1,232 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A thin wrapper around a java.util.logging Logger for use on the data
+ * path.  The Distributor logger's own level is normally ALL and each
+ * handler does the filtering, which means Logger.isLoggable() is always
+ * true and every logger.finest("..." + foo) builds its message only to
+ * have the handlers throw it away.  This class keeps track of the
+ * lowest level that any handler will actually publish and checks that
+ * before doing anything else, so a disabled message costs one integer
+ * comparison.
+ * 
+ * Messages may contain {0}, {1} and {2} placeholders which are filled
+ * in from the parameters only once we know the message will be logged.
+ * There are overloads taking long parameters so that byte counts and
+ * the like don't get boxed when the message is discarded.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.logging.Handler;
+
+public class LazyLogger
+{
+	Logger logger;
+	// The lowest Level.intValue() that will make it through both the
+	// logger and at least one of its handlers
+	volatile int threshold;
+
+	protected LazyLogger(Logger logger)
+	{
+		this.logger = logger;
+		updateThreshold();
+	}
+
+	/*
+	 * Recompute the threshold.  This needs to be called whenever the
+	 * level of the logger or of one of its handlers is changed, or a
+	 * handler is added or removed.
+	 */
+	protected void updateThreshold()
+	{
+		// Find the effective level of the logger itself
+		int loggerLevel = Level.INFO.intValue();
+		for (Logger l = logger ; l != null ; l = l.getParent())
+		{
+			if (l.getLevel() != null)
+			{
+				loggerLevel = l.getLevel().intValue();
+				break;
+			}
+		}
+
+		// And the lowest level of any handler that records will be
+		// passed to
+		int handlerLevel = Level.OFF.intValue();
+		for (Logger l = logger ; l != null ; l = l.getParent())
+		{
+			Handler[] handlers = l.getHandlers();
+			for (int i=0 ; i<handlers.length ; i++)
+			{
+				if (handlers[i].getLevel().intValue() < handlerLevel)
+				{
+					handlerLevel = handlers[i].getLevel().intValue();
+				}
+			}
+
+			if (! l.getUseParentHandlers())
+			{
+				break;
+			}
+		}
+
+		threshold = Math.max(loggerLevel, handlerLevel);
+	}
+
+	public boolean isLoggable(Level level)
+	{
+		return level.intValue() >= threshold &&
+			threshold != Level.OFF.intValue();
+	}
+
+	public Logger getLogger()
+	{
+		return logger;
+	}
+
+	public void severe(String msg) { log(Level.SEVERE, msg); }
+	public void warning(String msg) { log(Level.WARNING, msg); }
+	public void info(String msg) { log(Level.INFO, msg); }
+	public void config(String msg) { log(Level.CONFIG, msg); }
+	public void fine(String msg) { log(Level.FINE, msg); }
+	public void finer(String msg) { log(Level.FINER, msg); }
+	public void finest(String msg) { log(Level.FINEST, msg); }
+
+	public void log(Level level, String msg)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, msg);
+		}
+	}
+
+	public void log(Level level, String msg, Object p0)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, p0, null, null));
+		}
+	}
+
+	public void log(Level level, String msg, Object p0, Object p1)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, p0, p1, null));
+		}
+	}
+
+	public void log(Level level, String msg, Object p0, Object p1, Object p2)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, p0, p1, p2));
+		}
+	}
+
+	public void log(Level level, String msg, long p0)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, Long.valueOf(p0), null, null));
+		}
+	}
+
+	public void log(Level level, String msg, long p0, Object p1)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, Long.valueOf(p0), p1, null));
+		}
+	}
+
+	public void log(Level level, String msg, long p0, Object p1, Object p2)
+	{
+		if (isLoggable(level))
+		{
+			publish(level, format(msg, Long.valueOf(p0), p1, p2));
+		}
+	}
+
+	public void log(Level level, String msg, long p0, long p1, Object p2)
+	{
+		if (isLoggable(level))
+		{
+			publish(level,
+				format(msg, Long.valueOf(p0), Long.valueOf(p1), p2));
+		}
+	}
+
+	/*
+	 * Replace {0}, {1} and {2} in msg with the string form of the
+	 * corresponding parameter.  We do this ourselves rather than
+	 * handing the parameters to the Logger because MessageFormat
+	 * would insert grouping separators into the byte counts.
+	 */
+	private static String format(String msg, Object p0, Object p1, Object p2)
+	{
+		StringBuffer sb = new StringBuffer(msg.length() + 64);
+		int i = 0;
+		while (i < msg.length())
+		{
+			char c = msg.charAt(i);
+			if (c == '{' && i + 2 < msg.length() && msg.charAt(i + 2) == '}')
+			{
+				char n = msg.charAt(i + 1);
+				if (n == '0' || n == '1' || n == '2')
+				{
+					sb.append(n == '0' ? p0 : (n == '1' ? p1 : p2));
+					i += 3;
+					continue;
+				}
+			}
+			sb.append(c);
+			i++;
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Hand the message to the Logger.  The Logger would otherwise
+	 * report this class as the source of every message, so we dig the
+	 * real caller out of the stack.  That is expensive, but only
+	 * happens for messages which are actually going to be logged.
+	 */
+	private void publish(Level level, String msg)
+	{
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (int i=0 ; i<stack.length ; i++)
+		{
+			if (! stack[i].getClassName().equals(LazyLogger.class.getName()))
+			{
+				logger.logp(level,
+					stack[i].getClassName(), stack[i].getMethodName(), msg);
+				return;
+			}
+		}
+		logger.log(level, msg);
+	}
+}
@@ -0,0 +1,124 @@
+/*****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Distribution algorithm which sends each client to the target with the
+ * fewest active connections.  Round robin spreads connections evenly,
+ * which only spreads the load evenly if the connections all last about
+ * as long as each other.  When some connections are long lived (i.e.
+ * LDAP binds held open by an application) and others are short, this
+ * algorithm does better.
+ * 
+ * As with round robin, the targets in the first target group are used
+ * as long as any of them are available, then the second group, etc.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.w3c.dom.Element;
+
+class LeastConnectionsDistributionAlgorithm
+	extends RetryingDistributionAlgorithm
+{
+	// Used to pick a different starting point each time we look through
+	// a target group, so that ties aren't always won by the first
+	// target in the group
+	AtomicInteger tieBreaker;
+
+	/*
+	 * Because the distribution algorithms are instantiated via
+	 * Class.forName(), they must have public constructors.
+	 */
+	public LeastConnectionsDistributionAlgorithm(
+		Distributor distributor, Element configElement)
+	{
+		super(distributor);
+
+		tieBreaker = new AtomicInteger();
+	}
+
+	/*
+	 * Return the enabled target with the fewest active connections in
+	 * the first target group that has any enabled targets, skipping
+	 * the targets in exclude (which may be null).  Returns null if
+	 * there are no such targets.
+	 */
+	Target chooseTarget(Set exclude)
+	{
+		List groups;
+		List group;
+		Target target;
+		Target best;
+		int bestCount;
+		int count;
+		int start;
+
+		synchronized (targetGroups)
+		{
+			groups = new ArrayList(targetGroups);
+		}
+
+		for (int g=0 ; g<groups.size() ; g++)
+		{
+			group = (List) groups.get(g);
+			best = null;
+			bestCount = Integer.MAX_VALUE;
+
+			synchronized (group)
+			{
+				if (group.size() == 0)
+				{
+					continue;
+				}
+
+				start = (tieBreaker.getAndIncrement() & Integer.MAX_VALUE) %
+					group.size();
+				for (int i=0 ; i<group.size() ; i++)
+				{
+					target = (Target) group.get((start + i) % group.size());
+					if (! target.isEnabled() ||
+						(exclude != null && exclude.contains(target)))
+					{
+						continue;
+					}
+
+					count = target.getActiveConnectionCount();
+					if (count < bestCount)
+					{
+						best = target;
+						bestCount = count;
+					}
+				}
+			}
+
+			if (best != null)
+			{
+				return best;
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Measures how much memory the DataMover's per buffer log calls allocate
+ * when the log level is INFO, as it normally is, and so those messages
+ * aren't wanted.  Each pass makes the same calls, with the same kinds of
+ * arguments, as the DataMover makes for one relayed buffer:  the select,
+ * the read, the delayed write and the write of the delayed data.  For
+ * comparison it also makes the calls the way the DataMover used to,
+ * building the message before handing it to the logger.
+ * 
+ * Run with "ant benchmark".  Exits with a non-zero status if the
+ * LazyLogger calls allocate anything.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.SocketChannel;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class LoggingBenchmark
+{
+	static final int WARMUP_PASSES = 200000;
+	static final int PASSES = 1000000;
+
+	com.sun.management.ThreadMXBean threadBean;
+	LazyLogger lazyLogger;
+	Logger logger;
+	SocketChannel src;
+	SocketChannel dst;
+
+	LoggingBenchmark() throws IOException
+	{
+		threadBean = (com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+
+		// Set up as Distributor does, the logger passes everything and
+		// the handler does the filtering
+		logger = Logger.getAnonymousLogger();
+		logger.setUseParentHandlers(false);
+		logger.setLevel(Level.ALL);
+		Handler handler = new ConsoleHandler();
+		handler.setLevel(Level.INFO);
+		logger.addHandler(handler);
+		lazyLogger = new LazyLogger(logger);
+
+		src = SocketChannel.open();
+		dst = SocketChannel.open();
+	}
+
+	/*
+	 * The DataMover's log calls for one buffer
+	 */
+	void lazyPass(int numberOfBytes)
+	{
+		lazyLogger.log(Level.FINEST,
+			"select reports {0} channels ready", numberOfBytes & 7);
+		lazyLogger.log(Level.FINEST,
+			"Read {0} bytes from {1}", numberOfBytes, src);
+		lazyLogger.log(Level.FINER, "Delaying {0} bytes from {1} to {2}",
+			numberOfBytes / 2, src, dst);
+		lazyLogger.log(Level.FINEST,
+			"Wrote {0} delayed bytes to {2}, {1} bytes remain delayed",
+			numberOfBytes / 2, 0, dst);
+	}
+
+	/*
+	 * The same calls as they were made before LazyLogger
+	 */
+	void eagerPass(int numberOfBytes)
+	{
+		logger.finest("select reports " + (numberOfBytes & 7) +
+			" channels ready");
+		logger.finest("Read " + numberOfBytes + " bytes from " + src);
+		logger.finer("Delaying " + numberOfBytes / 2 + " bytes from " +
+			src + " to " + dst);
+		logger.finest("Wrote " + numberOfBytes / 2 + " delayed bytes to " +
+			dst + ", " + 0 + " bytes remain delayed");
+	}
+
+	/*
+	 * Returns the number of bytes allocated per pass
+	 */
+	double measure(boolean lazy, int passes)
+	{
+		long threadId = Thread.currentThread().getId();
+		long start = threadBean.getThreadAllocatedBytes(threadId);
+
+		for (int i=0 ; i<passes ; i++)
+		{
+			if (lazy)
+			{
+				lazyPass(i);
+			}
+			else
+			{
+				eagerPass(i);
+			}
+		}
+
+		return (double) (threadBean.getThreadAllocatedBytes(threadId) -
+			start) / passes;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		LoggingBenchmark benchmark = new LoggingBenchmark();
+		double lazyBytes;
+		double eagerBytes;
+
+		benchmark.measure(true, WARMUP_PASSES);
+		benchmark.measure(false, WARMUP_PASSES);
+
+		lazyBytes = benchmark.measure(true, PASSES);
+		eagerBytes = benchmark.measure(false, PASSES);
+
+		System.out.println("Bytes allocated per relayed buffer at INFO:");
+		System.out.println("  LazyLogger:  " + lazyBytes);
+		System.out.println("  Building the messages:  " + eagerBytes);
+
+		// Allow for a stray allocation by the JVM during the run
+		if (lazyBytes >= 1)
+		{
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,500 @@
+/*****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Distribution algorithm which sends each client IP address to a target
+ * picked by consistent hashing, using the lookup table from Google's
+ * Maglev load balancer.  Unlike the hash algorithm it doesn't need to
+ * have seen the client before, remembers nothing, and so makes the same
+ * choice after a restart and on every Distributor with the same
+ * targets.  That makes it suitable for running several Distributors
+ * side by side without any shared state.
+ * 
+ * The lookup table has a fixed number of slots (a prime number), each
+ * holding a target.  A client's address is hashed to a slot, so picking
+ * a target takes the same time no matter how many targets there are.
+ * Each target has its own pseudo-random order in which it prefers the
+ * slots, derived from a hash of its address and port, and the table is
+ * filled by letting the targets take turns claiming their next
+ * preferred slot that is still free.  That gives every target close to
+ * the same number of slots, and when a target is disabled the only
+ * clients that move are the ones that were going to it.
+ * 
+ * There is a table for each target group, built from that group's
+ * enabled targets.  Clients go to the first group with any enabled
+ * targets.  The tables are rebuilt when targets are added, removed,
+ * enabled or disabled.  The order in which targets take turns is the
+ * sort order of their addresses and ports rather than the order in the
+ * config file, so Distributors get the same tables even if their
+ * configs list the targets in a different order.
+ * 
+ * If the connection to the chosen target fails the client is passed on
+ * to the next algorithm, as with the hash algorithm.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.math.BigInteger;
+import java.nio.channels.SocketChannel;
+import org.w3c.dom.Element;
+
+class MaglevDistributionAlgorithm extends DistributionAlgorithm
+{
+	static final int DEFAULT_TABLE_SIZE = 65537;
+
+	// Seeds for the two hashes of a target which give its slot
+	// preferences, and for the hash of client addresses.  Changing
+	// these changes every Distributor's choices, so they must never
+	// change.
+	static final long OFFSET_SEED = 0x6d61676c65763031L;
+	static final long SKIP_SEED = 0x6d61676c65763032L;
+	static final long CLIENT_SEED = 0x6d61676c65763033L;
+
+	int tableSize;
+	List targetGroups;
+	// The current lookup tables, replaced wholesale when rebuilt so that
+	// lookups don't need any locking
+	volatile Tables tables;
+	// Map of Target to int[2] holding the target's first preferred slot
+	// and the step between its preferred slots.  Only used while
+	// building tables.  Weak so that removed targets drop out.
+	Map preferences;
+
+	/*
+	 * Because the distribution algorithms are instantiated via
+	 * Class.forName(), they must have public constructors.
+	 */
+	public MaglevDistributionAlgorithm(
+		Distributor distributor, Element configElement)
+	{
+		super(distributor);
+
+		tableSize = DEFAULT_TABLE_SIZE;
+		if (! configElement.getAttribute("maglev_table_size").equals(""))
+		{
+			try
+			{
+				tableSize = Integer.parseInt(
+					configElement.getAttribute("maglev_table_size"));
+				if (tableSize < 2 ||
+					! BigInteger.valueOf(tableSize).isProbablePrime(32))
+				{
+					logger.warning(
+						"maglev_table_size must be a prime number, " +
+						"using default");
+					tableSize = DEFAULT_TABLE_SIZE;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				logger.warning("Invalid maglev_table_size, using default:  " +
+					e.getMessage());
+			}
+		}
+		logger.config("Maglev table size:  " + tableSize);
+
+		preferences = new WeakHashMap();
+	}
+
+	public void finishInitialization()
+	{
+		super.finishInitialization();
+		targetGroups = distributor.getTargetGroups();
+	}
+
+	/*
+	 * Return the lookup tables for the current set of targets, building
+	 * new ones first if the targets have changed since the tables were
+	 * built.
+	 */
+	private Tables getTables()
+	{
+		Tables current = tables;
+		int generation = distributor.getTargetGeneration();
+
+		if (current != null && current.generation == generation)
+		{
+			return current;
+		}
+
+		synchronized (preferences)
+		{
+			// Another thread may have beaten us to it
+			current = tables;
+			generation = distributor.getTargetGeneration();
+			if (current != null && current.generation == generation)
+			{
+				return current;
+			}
+
+			// Read the generation before looking at the targets, so
+			// that a change made while we're building means the next
+			// lookup builds again
+			current = buildTables(generation);
+			tables = current;
+			return current;
+		}
+	}
+
+	private Tables buildTables(int generation)
+	{
+		List groups;
+		List group;
+		List enabledTargets;
+		Target[][] groupTables;
+		Target target;
+		Iterator iter;
+		long start = System.nanoTime();
+
+		synchronized (targetGroups)
+		{
+			groups = new ArrayList(targetGroups);
+		}
+
+		groupTables = new Target[groups.size()][];
+		for (int g=0 ; g<groups.size() ; g++)
+		{
+			group = (List) groups.get(g);
+			enabledTargets = new ArrayList();
+			synchronized (group)
+			{
+				iter = group.iterator();
+				while (iter.hasNext())
+				{
+					target = (Target) iter.next();
+					if (target.isEnabled())
+					{
+						enabledTargets.add(target);
+					}
+				}
+			}
+
+			if (enabledTargets.size() > 0)
+			{
+				groupTables[g] = populate((Target[])
+					enabledTargets.toArray(new Target[enabledTargets.size()]));
+			}
+		}
+
+		logger.log(Level.FINE, "Built Maglev tables in {0} microseconds",
+			Long.valueOf((System.nanoTime() - start) / 1000));
+
+		return new Tables(generation, groupTables);
+	}
+
+	/*
+	 * Fill a lookup table by letting the targets take turns claiming
+	 * their next preferred slot which hasn't already been claimed.
+	 */
+	private Target[] populate(Target[] targets)
+	{
+		Target[] table = new Target[tableSize];
+		int[] next = new int[targets.length];
+		int[] skip = new int[targets.length];
+		int[] pref;
+		int filled = 0;
+		int slot;
+
+		Arrays.sort(targets, new TargetComparator());
+
+		for (int i=0 ; i<targets.length ; i++)
+		{
+			pref = getPreferences(targets[i]);
+			next[i] = pref[0];
+			skip[i] = pref[1];
+		}
+
+		while (true)
+		{
+			for (int i=0 ; i<targets.length ; i++)
+			{
+				slot = next[i];
+				while (table[slot] != null)
+				{
+					slot = (slot + skip[i]) % tableSize;
+				}
+				table[slot] = targets[i];
+				next[i] = (slot + skip[i]) % tableSize;
+
+				filled++;
+				if (filled == tableSize)
+				{
+					return table;
+				}
+			}
+		}
+	}
+
+	/*
+	 * The first slot a target prefers and the step to each of its
+	 * following preferences.  The step is never zero and the table
+	 * size is prime, so a target's preferences cover every slot.
+	 */
+	private int[] getPreferences(Target target)
+	{
+		int[] pref = (int[]) preferences.get(target);
+		byte[] key;
+
+		if (pref == null)
+		{
+			key = targetKey(target);
+			pref = new int[2];
+			pref[0] = (int) Long.remainderUnsigned(
+				hash(key, OFFSET_SEED), tableSize);
+			pref[1] = (int) Long.remainderUnsigned(
+				hash(key, SKIP_SEED), tableSize - 1) + 1;
+			preferences.put(target, pref);
+		}
+
+		return pref;
+	}
+
+	/*
+	 * The bytes of the target's address followed by its port
+	 */
+	private static byte[] targetKey(Target target)
+	{
+		byte[] addr = target.getInetAddress().getAddress();
+		byte[] key = new byte[addr.length + 2];
+
+		System.arraycopy(addr, 0, key, 0, addr.length);
+		key[addr.length] = (byte) (target.getPort() >> 8);
+		key[addr.length + 1] = (byte) target.getPort();
+
+		return key;
+	}
+
+	/*
+	 * 64 bit FNV-1a with the given seed mixed in, followed by the
+	 * MurmurHash3 finalizer to spread the bits.  Java's own hashCode()
+	 * methods aren't guaranteed to be the same everywhere, this is.
+	 */
+	static long hash(byte[] data, long seed)
+	{
+		long h = 0xcbf29ce484222325L ^ seed;
+
+		for (int i=0 ; i<data.length ; i++)
+		{
+			h ^= data[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	/*
+	 * Look the client up in the table for the first group with any
+	 * enabled targets.  Returns null if there are none.
+	 */
+	private Target lookup(SocketChannel client)
+	{
+		Tables current = getTables();
+		byte[] addr = client.socket().getInetAddress().getAddress();
+		int slot = (int) Long.remainderUnsigned(
+			hash(addr, CLIENT_SEED), tableSize);
+		Target target;
+
+		for (int g=0 ; g<current.groupTables.length ; g++)
+		{
+			if (current.groupTables[g] != null)
+			{
+				target = current.groupTables[g][slot];
+				// The target may have been disabled since the table was
+				// built, in which case the next lookup will rebuild it
+				if (target.isEnabled())
+				{
+					return target;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	public Target selectTarget(SocketChannel client)
+	{
+		Target target = lookup(client);
+
+		if (target != null)
+		{
+			logger.log(Level.FINER, "Selected {0} for {1}", target, client);
+		}
+
+		return target;
+	}
+
+	protected boolean processNewClients()
+	{
+		Iterator iter;
+		SocketChannel client;
+		Target target;
+		boolean didSomething = false;
+
+		synchronized(newClients)
+		{
+			iter = newClients.iterator();
+			while(iter.hasNext())
+			{
+				client = (SocketChannel) iter.next();
+				iter.remove();
+
+				target = lookup(client);
+				if (target != null)
+				{
+					logger.log(Level.FINER,
+						"Initiating connection from {0} to {1}",
+						client, target);
+					initiateConnection(client, target);
+				}
+				else
+				{
+					logger.log(Level.FINE,
+						"No enabled targets for {0}", client);
+					// Give the client back to TargetSelector so it can
+					// try another distribution algorithm
+					targetSelector.addUnconnectedClient(client);
+				}
+
+				didSomething = true;
+			}
+		}
+
+		return didSomething;
+	}
+
+	public void processCompletedConnections(List completedConnections)
+	{
+		Iterator iter;
+		Connection conn;
+
+		synchronized (completedConnections)
+		{
+			iter = completedConnections.iterator();
+			while (iter.hasNext())
+			{
+				conn = (Connection) iter.next();
+				iter.remove();
+				targetSelector.addFinishedClient(conn);
+			}
+		}
+	}
+
+	public void processFailedConnections(List failedConnections)
+	{
+		Iterator iter;
+		SocketChannel client;
+
+		synchronized (failedConnections)
+		{
+			iter = failedConnections.iterator();
+			while (iter.hasNext())
+			{
+				client = (SocketChannel) iter.next();
+				iter.remove();
+				targetSelector.addUnconnectedClient(client);
+			}
+		}
+	}
+
+	public String getMemoryStats(String indent)
+	{
+		String stats;
+		Tables current = tables;
+		int tableCount = 0;
+
+		if (current != null)
+		{
+			for (int g=0 ; g<current.groupTables.length ; g++)
+			{
+				if (current.groupTables[g] != null)
+				{
+					tableCount++;
+				}
+			}
+		}
+
+		stats = super.getMemoryStats(indent) + "\n";
+		stats += indent + tableCount + " lookup tables of " +
+			tableSize + " slots\n";
+		stats += indent +
+			preferences.size() + " entries in preferences Map";
+
+		return stats;
+	}
+
+	/*
+	 * A set of lookup tables, one per target group (null for groups
+	 * with no enabled targets), and the target generation they were
+	 * built for.
+	 */
+	static class Tables
+	{
+		int generation;
+		Target[][] groupTables;
+
+		Tables(int generation, Target[][] groupTables)
+		{
+			this.generation = generation;
+			this.groupTables = groupTables;
+		}
+	}
+
+	/*
+	 * Orders targets by address, then port
+	 */
+	static class TargetComparator implements Comparator
+	{
+		public int compare(Object o1, Object o2)
+		{
+			Target t1 = (Target) o1;
+			Target t2 = (Target) o2;
+			byte[] a1 = t1.getInetAddress().getAddress();
+			byte[] a2 = t2.getInetAddress().getAddress();
+
+			if (a1.length != a2.length)
+			{
+				return a1.length - a2.length;
+			}
+			for (int i=0 ; i<a1.length ; i++)
+			{
+				if (a1[i] != a2[i])
+				{
+					return (a1[i] & 0xff) - (a2[i] & 0xff);
+				}
+			}
+			return t1.getPort() - t2.getPort();
+		}
+	}
+}
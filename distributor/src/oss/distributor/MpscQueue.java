@@ -0,0 +1,195 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A queue for handing objects from any number of threads to one
+ * consuming thread, i.e. new clients from the acceptors to a
+ * TargetSelector or new connections to a DataMover.  It is lock free,
+ * so producers never contend with the consumer or each other for a
+ * monitor.  Elements are stored in fixed size chunks which are linked
+ * together as the queue grows, so adding an element normally doesn't
+ * allocate anything.
+ * 
+ * The consumer takes everything that is waiting in one go with drain().
+ * offer() tells the caller whether the queue was empty, so that the
+ * caller only needs to wake the consumer (i.e. via Selector.wakeup())
+ * when the first element arrives rather than for every element.  A
+ * consumer that drains the queue before going to sleep is guaranteed to
+ * be woken for anything that is added after its drain.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class MpscQueue
+{
+	static final int CHUNK_SIZE = 256;
+
+	// Producers add to the chunk referenced by tail, the consumer works
+	// through the chunks starting at head.  head and headIndex are only
+	// touched by the consumer.
+	AtomicReference tail;
+	Chunk head;
+	int headIndex;
+
+	// The number of elements added but not yet drained.  An element is
+	// stored before it is counted, so the consumer can take an element
+	// before it has been counted and this can briefly go negative.
+	AtomicInteger count;
+
+	protected MpscQueue()
+	{
+		head = new Chunk();
+		headIndex = 0;
+		tail = new AtomicReference(head);
+		count = new AtomicInteger(0);
+	}
+
+	/*
+	 * Add an element to the queue.  Returns true if the queue was empty,
+	 * in which case the caller should wake the consumer.
+	 */
+	protected boolean offer(Object element)
+	{
+		Chunk chunk;
+		Chunk next;
+		int index;
+
+		if (element == null)
+		{
+			throw new NullPointerException();
+		}
+
+		while (true)
+		{
+			chunk = (Chunk) tail.get();
+			index = chunk.claimed.getAndIncrement();
+			if (index < CHUNK_SIZE)
+			{
+				chunk.slots.set(index, element);
+				break;
+			}
+
+			// This chunk is full.  Link a new chunk after it, unless
+			// another producer beat us to it, and help move tail along.
+			next = (Chunk) chunk.next.get();
+			if (next == null)
+			{
+				next = new Chunk();
+				if (! chunk.next.compareAndSet(null, next))
+				{
+					next = (Chunk) chunk.next.get();
+				}
+			}
+			tail.compareAndSet(chunk, next);
+		}
+
+		return count.getAndIncrement() == 0;
+	}
+
+	/*
+	 * Move all of the elements in the queue to the end of the given
+	 * list, in the order they were added.  Returns the number of
+	 * elements moved.  Only the consumer thread may call this.
+	 */
+	protected int drain(List list)
+	{
+		int total = 0;
+		int drained;
+		Object element;
+
+		while (true)
+		{
+			drained = 0;
+			while (true)
+			{
+				if (headIndex == CHUNK_SIZE)
+				{
+					Chunk next = (Chunk) head.next.get();
+					if (next == null)
+					{
+						break;
+					}
+					head = next;
+					headIndex = 0;
+				}
+
+				element = head.slots.get(headIndex);
+				if (element == null)
+				{
+					// Either the queue is empty or a producer has
+					// claimed this slot and not yet filled it
+					break;
+				}
+				head.slots.lazySet(headIndex, null);
+				headIndex++;
+				list.add(element);
+				drained++;
+			}
+			total += drained;
+
+			// If anything has been counted that we haven't taken then a
+			// producer is part way through adding an element to a slot
+			// ahead of the ones we took.  It will be done momentarily,
+			// and we have to take it since the producer won't wake us.
+			if (count.addAndGet(-drained) <= 0)
+			{
+				break;
+			}
+			if (drained == 0)
+			{
+				Thread.yield();
+			}
+		}
+
+		return total;
+	}
+
+	/*
+	 * The number of elements waiting, approximate if producers are
+	 * adding elements at the time.
+	 */
+	protected int size()
+	{
+		return Math.max(count.get(), 0);
+	}
+
+	static class Chunk
+	{
+		AtomicReferenceArray slots;
+		// Producers claim slots in the chunk by incrementing this.  It
+		// keeps going past CHUNK_SIZE once the chunk is full.
+		AtomicInteger claimed;
+		AtomicReference next;
+
+		Chunk()
+		{
+			slots = new AtomicReferenceArray(CHUNK_SIZE);
+			claimed = new AtomicInteger(0);
+			next = new AtomicReference(null);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A service test which starts testing a target and returns straight
+ * away, reporting the result later.  Suits tests which can do their
+ * I/O from a selector thread, as they can test many targets at once
+ * without a thread per target.  See HealthCheck for the blocking
+ * equivalent.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+interface NonBlockingHealthCheck
+{
+	/*
+	 * Start testing the given target.  Called by the scheduler thread,
+	 * so it must not block.  When the test is done, from whatever
+	 * thread, call result.finished() with true if the target is
+	 * working.  The scheduler treats the test as failed if that
+	 * hasn't happened by the test's timeout.
+	 */
+	public void startCheck(Target target,
+		HealthCheckScheduler.CheckResult result);
+}
@@ -0,0 +1,187 @@
+/*****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Distribution algorithm which picks two targets at random and sends the
+ * client to whichever of the two is less loaded.  This balances nearly
+ * as well as always picking the least loaded target, but doesn't have
+ * to look at every target in the group, so it stays cheap with
+ * hundreds of targets.  It also avoids the herd behavior of least
+ * connections, where every new client goes to the same target until the
+ * load figures catch up.
+ * 
+ * Load is measured either as the number of active connections to the
+ * target or as the average time connections to the target have taken
+ * to complete.
+ * 
+ * As with round robin, the targets in the first target group are used
+ * as long as any of them are available, then the second group, etc.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.w3c.dom.Element;
+
+class PowerOfTwoChoicesDistributionAlgorithm
+	extends RetryingDistributionAlgorithm
+{
+	// Compare targets by connect time rather than active connections
+	boolean useConnectTime;
+
+	/*
+	 * Because the distribution algorithms are instantiated via
+	 * Class.forName(), they must have public constructors.
+	 */
+	public PowerOfTwoChoicesDistributionAlgorithm(
+		Distributor distributor, Element configElement)
+	{
+		super(distributor);
+
+		useConnectTime = false;
+		if (configElement.getAttribute("p2c_load").equals("latency"))
+		{
+			useConnectTime = true;
+		}
+		else if (! configElement.getAttribute("p2c_load").equals("") &&
+			! configElement.getAttribute("p2c_load").equals("connections"))
+		{
+			logger.warning("Invalid p2c_load, using connections");
+		}
+		logger.config("p2c load measured by " +
+			(useConnectTime ? "latency" : "connections"));
+	}
+
+	/*
+	 * The target's load, lower is better
+	 */
+	private long getLoad(Target target)
+	{
+		if (useConnectTime)
+		{
+			return target.getConnectTime();
+		}
+		else
+		{
+			return target.getActiveConnectionCount();
+		}
+	}
+
+	/*
+	 * A target is a candidate if it is enabled and not in exclude
+	 * (which may be null)
+	 */
+	private static boolean isCandidate(Target target, Set exclude)
+	{
+		return target.isEnabled() &&
+			(exclude == null || ! exclude.contains(target));
+	}
+
+	/*
+	 * Pick a target for a client from the first target group that has
+	 * any candidates.  Two distinct targets are picked from the group at
+	 * random, and the less loaded of the two is returned.  If only one
+	 * of them is a candidate it is returned.  If neither is, we fall
+	 * back to looking through the whole group, which should be rare
+	 * unless much of the group is disabled.  Returns null if there are
+	 * no candidates in any group.
+	 */
+	Target chooseTarget(Set exclude)
+	{
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		List groups;
+		List group;
+		Target first;
+		Target second;
+		Target target;
+		int size;
+		int i;
+		int j;
+
+		synchronized (targetGroups)
+		{
+			groups = new ArrayList(targetGroups);
+		}
+
+		for (int g=0 ; g<groups.size() ; g++)
+		{
+			group = (List) groups.get(g);
+
+			synchronized (group)
+			{
+				size = group.size();
+				if (size == 0)
+				{
+					continue;
+				}
+				if (size == 1)
+				{
+					target = (Target) group.get(0);
+					if (isCandidate(target, exclude))
+					{
+						return target;
+					}
+					continue;
+				}
+
+				// Two distinct indices
+				i = random.nextInt(size);
+				j = random.nextInt(size - 1);
+				if (j >= i)
+				{
+					j++;
+				}
+				first = (Target) group.get(i);
+				second = (Target) group.get(j);
+
+				if (isCandidate(first, exclude))
+				{
+					if (isCandidate(second, exclude) &&
+						getLoad(second) < getLoad(first))
+					{
+						return second;
+					}
+					return first;
+				}
+				if (isCandidate(second, exclude))
+				{
+					return second;
+				}
+
+				// Neither sample was usable.  Take the first candidate
+				// after a random starting point.
+				for (int k=0 ; k<size ; k++)
+				{
+					target = (Target) group.get((i + k) % size);
+					if (isCandidate(target, exclude))
+					{
+						return target;
+					}
+				}
+			}
+		}
+
+		return null;
+	}
+}
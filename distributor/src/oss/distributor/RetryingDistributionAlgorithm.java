@@ -0,0 +1,194 @@
+/*****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Base class for distribution algorithms which pick a target for each
+ * client from the targets it hasn't tried yet.  If the connection to
+ * the picked target fails the client goes round again, skipping the
+ * targets it has already tried, until it connects or there is nothing
+ * left to try, at which point it is handed back to TargetSelector.
+ * 
+ * Subclasses only have to implement chooseTarget().
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.nio.channels.SocketChannel;
+
+abstract class RetryingDistributionAlgorithm extends DistributionAlgorithm
+{
+	// The targets each client has already tried, for clients which
+	// we're in the process of connecting
+	Map triedTargets;
+	List targetGroups;
+
+	RetryingDistributionAlgorithm(Distributor distributor)
+	{
+		super(distributor);
+
+		triedTargets = new HashMap();
+	}
+
+	public void finishInitialization()
+	{
+		super.finishInitialization();
+		targetGroups = distributor.getTargetGroups();
+	}
+
+	/*
+	 * Pick an enabled target from the first target group that has any,
+	 * skipping the targets in exclude (which may be null).  Returns null
+	 * if there are no such targets.  May be called from any thread.
+	 */
+	abstract Target chooseTarget(Set exclude);
+
+	public Target selectTarget(SocketChannel client)
+	{
+		Target target = chooseTarget(null);
+
+		if (target != null)
+		{
+			logger.log(Level.FINER, "Selected {0} for {1}", target, client);
+		}
+
+		return target;
+	}
+
+	protected boolean processNewClients()
+	{
+		Iterator iter;
+		SocketChannel client;
+		boolean didSomething = false;
+
+		synchronized(newClients)
+		{
+			iter = newClients.iterator();
+			while(iter.hasNext())
+			{
+				client = (SocketChannel) iter.next();
+				iter.remove();
+
+				synchronized(triedTargets)
+				{
+					triedTargets.put(client, new HashSet());
+				}
+				tryNextTarget(client);
+
+				didSomething = true;
+			}
+		}
+
+		return didSomething;
+	}
+
+	/*
+	 * Try connecting the client to a target it hasn't already tried
+	 */
+	private void tryNextTarget(SocketChannel client)
+	{
+		Set tried;
+		Target target;
+
+		synchronized(triedTargets)
+		{
+			tried = (Set) triedTargets.get(client);
+		}
+
+		target = chooseTarget(tried);
+		if (target == null)
+		{
+			// Give the client back to TargetSelector so it can try
+			// another distribution algorithm
+			logger.log(Level.FINE,
+				"Tried all targets for {0} without success", client);
+			synchronized(triedTargets)
+			{
+				triedTargets.remove(client);
+			}
+			targetSelector.addUnconnectedClient(client);
+			return;
+		}
+
+		tried.add(target);
+		logger.log(Level.FINER,
+			"Initiating connection from {0} to {1}", client, target);
+		initiateConnection(client, target);
+	}
+
+	public void processCompletedConnections(List completedConnections)
+	{
+		Iterator iter;
+		Connection conn;
+
+		synchronized (completedConnections)
+		{
+			iter = completedConnections.iterator();
+			while(iter.hasNext())
+			{
+				conn = (Connection) iter.next();
+				iter.remove();
+
+				synchronized(triedTargets)
+				{
+					triedTargets.remove(conn.getClient());
+				}
+
+				targetSelector.addFinishedClient(conn);
+			}
+		}
+	}
+
+	public void processFailedConnections(List failedConnections)
+	{
+		Iterator iter;
+		SocketChannel client;
+
+		synchronized (failedConnections)
+		{
+			iter = failedConnections.iterator();
+			while(iter.hasNext())
+			{
+				client = (SocketChannel) iter.next();
+				iter.remove();
+
+				tryNextTarget(client);
+			}
+		}
+	}
+
+	public String getMemoryStats(String indent)
+	{
+		String stats;
+
+		stats = super.getMemoryStats(indent) + "\n";
+		stats += indent +
+			triedTargets.size() + " entries in triedTargets Map";
+
+		return stats;
+	}
+}
@@ -31,7 +31,7 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.logging.Logger;
+import java.util.logging.Level;
 import java.nio.channels.SocketChannel;
 import org.w3c.dom.Element;
 
@@ -105,8 +105,8 @@ class RoundRobinDistributionAlgorithm extends DistributionAlgorithm
 		{
 			// Give the client back to TargetSelector so it can try
 			// another distribution algorithm
-			logger.fine("Tried all targets for " + client +
-				" without success");
+			logger.log(Level.FINE,
+				"Tried all targets for {0} without success", client);
 			synchronized(clientStates)
 			{
 				clientStates.remove(client);
@@ -117,9 +117,8 @@ class RoundRobinDistributionAlgorithm extends DistributionAlgorithm
 
 		if (target.isEnabled())
 		{
-			logger.finer(
-				"Initiating connection from " + client +
-				" to " + target);
+			logger.log(Level.FINER,
+				"Initiating connection from {0} to {1}", client, target);
 			initiateConnection(client, target);
 		}
 		else
@@ -128,6 +127,34 @@ class RoundRobinDistributionAlgorithm extends DistributionAlgorithm
 		}
 	}
 
+	/*
+	 * Return the first enabled target, working through the targets in
+	 * the same order as for a client going through processNewClients().
+	 */
+	public Target selectTarget(SocketChannel client)
+	{
+		ClientState clientState = new ClientState();
+		Target target;
+
+		try
+		{
+			while (true)
+			{
+				target = clientState.getNextTarget();
+				if (target.isEnabled())
+				{
+					logger.log(Level.FINER,
+						"Selected {0} for {1}", target, client);
+					return target;
+				}
+			}
+		}
+		catch (NoMoreTargetsException e)
+		{
+			return null;
+		}
+	}
+
 	public void processCompletedConnections(List completedConnections)
 	{
 		Iterator iter;
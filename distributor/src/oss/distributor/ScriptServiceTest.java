@@ -3,6 +3,25 @@
  * $Id$
  *****************************************************************************
  * Calls a user supplied program to perform testing of back end servers
+ * 
+ * Normally the program is run once for each test of each target.  With
+ * persistent="yes" it is instead started once and kept running, and we
+ * send it a line for each test on its standard input:
+ * 
+ *   <id> <hostname> <port>
+ * 
+ * It answers with a line on its standard output for each test:
+ * 
+ *   <id> <status> [message]
+ * 
+ * where a status of 0 means the target is fine, as with the exit value
+ * of a script that is run for each test.  Any number of tests may be
+ * outstanding at once and the answers may come back in any order,
+ * matched up by id.  If the program exits it is started again, and any
+ * tests it hadn't answered are sent to the new one.  If a test times
+ * out and the program hasn't answered anything since it was sent, it is
+ * taken to have hung, and is killed and started again.  The program
+ * should exit when its standard input is closed.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -27,15 +46,29 @@
 package oss.distributor;
 
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.io.IOException;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-class ScriptServiceTest implements Runnable
+class ScriptServiceTest implements HealthCheck, NonBlockingHealthCheck
 {
+	// How long to wait before starting the persistent script again if
+	// it can't be started or exits within this long of starting, so
+	// that a broken script doesn't have us forking constantly
+	static final long RESTART_DELAY = 1000;  // ms
+
 	Distributor distributor;
 	Logger logger;
 
@@ -44,8 +77,35 @@ class ScriptServiceTest implements Runnable
 	              // deciding that it has failed?
 
 	String script;
+	boolean persistent;
 
-	Thread thread;
+	// The rest is only used for a persistent script
+	// The running script and its standard input, null while it is
+	// being restarted.  Guarded by this object's lock, but only the
+	// writer thread writes to processInput, and it does so without
+	// holding the lock so that it can't block anyone else when the
+	// script isn't reading.
+	Process process;
+	Writer processInput;
+	// Set if the script couldn't be started, in which case tests pass
+	// until it can, as when the script is run for each test
+	boolean startFailed;
+	// Set when the script has been started again, so that the writer
+	// thread sends it the tests which weren't answered
+	boolean resendNeeded;
+	// When the script last answered a test (or was started), from
+	// System.currentTimeMillis()
+	volatile long lastAnswerTime;
+	// Tests handed to us by the scheduler but not yet sent
+	MpscQueue newRequests;
+	// Map of id to the Request for each test sent to the script and not
+	// yet answered, in the order they were sent.  Guarded by its own
+	// lock.
+	Map pending;
+	// Only touched by the scheduler thread
+	int nextId;
+	Thread writerThread;
+	Thread readerThread;
 
 	/*
 	 * Because the service tests are instantiated via Class.forName(),
@@ -90,157 +150,469 @@ class ScriptServiceTest implements Runnable
 			System.exit(1);  // ***
 		}
 
-		thread = new Thread(this, getClass().getName());
-		thread.start();
+		persistent = configElement.getAttribute("persistent").equals("yes");
+		logger.config("Persistent script:  " + persistent);
+		if (! persistent)
+		{
+			distributor.getHealthCheckScheduler().addTest(
+				(HealthCheck) this, distributor, frequency, timeout);
+			return;
+		}
+
+		newRequests = new MpscQueue();
+		pending = new LinkedHashMap();
+		nextId = 0;
+		startFailed = false;
+		resendNeeded = false;
+		lastAnswerTime = System.currentTimeMillis();
+
+		writerThread = new Thread(new RequestWriter(),
+			getClass().getName() + " writer");
+		writerThread.setDaemon(true);
+		readerThread = new Thread(new AnswerReader(),
+			getClass().getName() + " reader");
+		readerThread.setDaemon(true);
+		writerThread.start();
+		readerThread.start();
+
+		distributor.getHealthCheckScheduler().addTest(
+			(NonBlockingHealthCheck) this, distributor, frequency, timeout);
 	}
 
-	public void run()
+	public void startCheck(Target target,
+		HealthCheckScheduler.CheckResult result)
 	{
-		List targets;
-		Iterator i;
-		Target target;
-		boolean result;
+		Request request = new Request(nextId++, target, result);
 
-		while (true)
+		// The writer thread does the sending, as writing to the script
+		// can block and looking up the hostname might
+		if (newRequests.offer(request))
 		{
-			targets = distributor.getTargets();
+			LockSupport.unpark(writerThread);
+		}
+
+		// Done here rather than by the writer thread, which is stuck
+		// if the script has hung and stopped reading its input
+		expireRequests();
+	}
 
-			// distributor.getTargets() constructs a new List, puts
-			// all of the Targets into it, and returns it.  As such, we
-			// don't have to worry about holding everything else up by
-			// synchronizing on the list for a long time (the testing
-			// could take many seconds).  In fact, we really don't have
-			// to synchronize at all since we're the only ones with a
-			// reference to that list, but we do anyway for consistency.
-			synchronized (targets)
+	public boolean check(Target target)
+	{
+		String server = target.getInetAddress().getHostName();
+		int port = target.getPort();
+
+		try
+		{
+			String[] cmdarray = new String[3];
+			cmdarray[0] = script;
+			cmdarray[1] = server;
+			cmdarray[2] = Integer.toString(port);
+
+			logger.fine("Executing script");
+			Process proc = Runtime.getRuntime().exec(cmdarray);
+
+			// Don't leave scripts which have hung lying around
+			boolean procDone = false;
+			try
 			{
-				i = targets.iterator();
-				while (i.hasNext())
-				{
-					try
-					{
-						target = (Target) i.next();
+				procDone = proc.waitFor(timeout, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {}
+			if (!procDone)
+			{
+				logger.warning("Script did not finish, killing it");
+				proc.destroyForcibly();
+				return false;
+			}
 
-						ScriptBackgroundTest scriptTest =
-							new ScriptBackgroundTest(target);
+			if (proc.exitValue() == 0)
+			{
+				logger.fine("Script returned zero, server fine");
+				return true;
+			}
+			else
+			{
+				logger.warning(
+					"Script returned non-zero, server has failed");
+				return false;
+			}
+		}
+		catch (IOException e)
+		{
+			logger.warning("Error when executing script: " +
+				e.getMessage());
 
-						synchronized (scriptTest)
-						{
-							scriptTest.startTest();
-							scriptTest.wait(timeout);
-						}
+			// The most likely causes of an IOException are that
+			// the admin supplied a non-existent script or we don't
+			// have permission to execute it.
+			// We don't want the server to get disabled when this happens
+			return true;
+		}
+	}
 
-						if (scriptTest.getResult() ==
-							BackgroundTest.RESULT_SUCCESS)
-						{
-							result = true;
-						}
-						else
-						{
-							result = false;
+	/*
+	 * Write a test's line to the script.  Returns false if there is no
+	 * script running to write to.  The caller must flush processInput.
+	 * Only called by the writer thread.
+	 */
+	private boolean send(Request request)
+	{
+		Writer input;
 
-							if (scriptTest.getResult() ==
-								BackgroundTest.RESULT_NOTFINISHED)
-							{
-								logger.warning("Test timed out");
-							}
-						}
+		synchronized (this)
+		{
+			input = processInput;
+		}
+		if (input == null)
+		{
+			return false;
+		}
+
+		try
+		{
+			input.write(request.id + " " +
+				request.target.getInetAddress().getHostName() + " " +
+				request.target.getPort() + "\n");
+		}
+		catch (IOException e)
+		{
+			// The script has exited.  The reader thread will notice,
+			// start it again and resend this.
+			logger.fine("Error writing to script: " + e.getMessage());
+		}
+		return true;
+	}
+
+	private void flush()
+	{
+		Writer input;
+
+		synchronized (this)
+		{
+			input = processInput;
+		}
+		if (input != null)
+		{
+			try
+			{
+				input.flush();
+			}
+			catch (IOException e)
+			{
+				logger.fine("Error writing to script: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Report the result of a test, unless it has already been reported
+	 * or given up on
+	 */
+	private void finishRequest(int id, boolean success)
+	{
+		Request request;
+
+		synchronized (pending)
+		{
+			request = (Request) pending.remove(Integer.valueOf(id));
+		}
+		if (request == null)
+		{
+			logger.fine("Ignoring answer for unknown or expired test " + id);
+			return;
+		}
+
+		request.result.finished(success);
+	}
 
-						if (result && ! target.isEnabled())
+	/*
+	 * Forget the tests which the scheduler has already given up on.  If
+	 * the script hasn't answered anything since one of them was sent,
+	 * it has hung, so kill it and let the reader thread start it again.
+	 */
+	private void expireRequests()
+	{
+		long now = System.currentTimeMillis();
+		Iterator iter;
+		Request request;
+		long lastExpiredTime = 0;
+		Process proc;
+
+		synchronized (pending)
+		{
+			// The oldest are first
+			iter = pending.values().iterator();
+			while (iter.hasNext())
+			{
+				request = (Request) iter.next();
+				if (now - request.startTime <= timeout)
+				{
+					break;
+				}
+				iter.remove();
+				lastExpiredTime = request.startTime;
+			}
+		}
+
+		if (lastAnswerTime < lastExpiredTime)
+		{
+			synchronized (this)
+			{
+				proc = process;
+			}
+			if (proc != null)
+			{
+				logger.warning("Script is not answering, killing it");
+				lastAnswerTime = now;
+				proc.destroyForcibly();
+			}
+		}
+	}
+
+	/*
+	 * Hands the tests to the persistent script
+	 */
+	class RequestWriter implements Runnable
+	{
+		public void run()
+		{
+			List drained = new ArrayList();
+			Iterator iter;
+			Request request;
+			boolean failed;
+			boolean resend;
+
+			while (true)
+			{
+				synchronized (ScriptServiceTest.this)
+				{
+					resend = resendNeeded;
+					resendNeeded = false;
+				}
+				if (resend)
+				{
+					resendPending();
+				}
+
+				newRequests.drain(drained);
+				iter = drained.iterator();
+				while (iter.hasNext())
+				{
+					request = (Request) iter.next();
+					request.startTime = System.currentTimeMillis();
+					synchronized (pending)
+					{
+						pending.put(Integer.valueOf(request.id), request);
+					}
+					if (! send(request))
+					{
+						synchronized (ScriptServiceTest.this)
 						{
-							// I was tempted to log this at info but
-							// if someone has their log level set to
-							// warning then they'd only see the disable
-							// messages and not the enable messages.
-							logger.warning("Enabling: " + target);
-							target.enable();
+							failed = startFailed;
 						}
-						else if (! result && target.isEnabled())
+						// Otherwise it will be sent once the script has
+						// been restarted
+						if (failed)
 						{
-							logger.warning("Disabling: " + target);
-							target.disable();
+							finishRequest(request.id, true);
 						}
 					}
-					catch (InterruptedException e)
-					{
-						logger.warning("Service test interrupted");
-					}
 				}
+				drained.clear();
+				flush();
+
+				LockSupport.park();
 			}
+		}
 
-			try
+		/*
+		 * Send the tests which haven't been answered to a newly started
+		 * script
+		 */
+		private void resendPending()
+		{
+			List requests;
+			Iterator iter;
+
+			synchronized (pending)
 			{
-				Thread.sleep(frequency);
-			} catch (InterruptedException e) {}
+				requests = new ArrayList(pending.values());
+			}
+			iter = requests.iterator();
+			while (iter.hasNext())
+			{
+				send((Request) iter.next());
+			}
+			flush();
 		}
 	}
 
-	class ScriptBackgroundTest extends BackgroundTest
+	/*
+	 * Runs the persistent script, reads its answers, and starts it again
+	 * if it exits
+	 */
+	class AnswerReader implements Runnable
 	{
-		protected ScriptBackgroundTest(Target target)
+		public void run()
 		{
-			super(target);
-		}
+			Process proc;
+			BufferedReader reader;
+			String line;
+			long started;
 
-		public void test()
-		{
-			String server = target.getInetAddress().getHostName();
-			int port = target.getPort();
-
-			try
+			while (true)
 			{
-				String[] cmdarray = new String[3];
-				cmdarray[0] = script;
-				cmdarray[1] = server;
-				cmdarray[2] = Integer.toString(port);
+				try
+				{
+					logger.fine("Starting script");
+					started = System.currentTimeMillis();
+					proc = new ProcessBuilder(new String[] { script })
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start();
+				}
+				catch (IOException e)
+				{
+					logger.warning("Error when executing script: " +
+						e.getMessage());
+					scriptFailedToStart();
+					sleep();
+					continue;
+				}
 
-				logger.fine("Executing script");
-				Process proc = Runtime.getRuntime().exec(cmdarray);
+				lastAnswerTime = System.currentTimeMillis();
+				synchronized (ScriptServiceTest.this)
+				{
+					process = proc;
+					processInput = new OutputStreamWriter(
+						proc.getOutputStream());
+					startFailed = false;
+					resendNeeded = true;
+				}
+				LockSupport.unpark(writerThread);
 
-				boolean procDone = false;
-				while (!procDone)
+				reader = new BufferedReader(
+					new InputStreamReader(proc.getInputStream()));
+				try
 				{
-					try
+					while ((line = reader.readLine()) != null)
 					{
-						proc.waitFor();
-						procDone = true;
+						processAnswer(line);
 					}
-					catch (InterruptedException e) {}
+				}
+				catch (IOException e)
+				{
+					logger.warning("Error reading from script: " +
+						e.getMessage());
 				}
 
-				if (proc.exitValue() == 0)
+				synchronized (ScriptServiceTest.this)
 				{
-					logger.fine("Script returned zero, server fine");
-					success = true;
+					process = null;
+					processInput = null;
 				}
-				else
+				proc.destroy();
+				try
 				{
-					logger.warning(
-						"Script returned non-zero, server has failed");
-					success = false;
+					proc.getOutputStream().close();
+					reader.close();
 				}
-
-				finished = true;
-				synchronized (this)
+				catch (IOException e) {}
+				logger.warning("Script exited, restarting it");
+				if (System.currentTimeMillis() - started < RESTART_DELAY)
 				{
-					notify();
+					sleep();
 				}
 			}
-			catch (IOException e)
+		}
+
+		/*
+		 * The most likely causes are that the admin supplied a
+		 * non-existent script or we don't have permission to execute
+		 * it.  We don't want the servers to get disabled when this
+		 * happens, so the waiting tests pass.
+		 */
+		private void scriptFailedToStart()
+		{
+			List ids;
+			Iterator iter;
+
+			synchronized (ScriptServiceTest.this)
+			{
+				startFailed = true;
+			}
+			synchronized (pending)
 			{
-				logger.warning("Error when executing script: " +
-					e.getMessage());
+				ids = new ArrayList(pending.keySet());
+			}
+			iter = ids.iterator();
+			while (iter.hasNext())
+			{
+				finishRequest(((Integer) iter.next()).intValue(), true);
+			}
+		}
 
-				// The most likely causes of an IOException are that
-				// the admin supplied a non-existent script or we don't
-				// have permission to execute it.
-				// We don't want the server to get disabled when this happens
-				finished = true;
-				success = true;
+		/*
+		 * Lines are "<id> <status> [message]"
+		 */
+		private void processAnswer(String line)
+		{
+			String[] fields = line.trim().split("\\s+", 3);
+			int id;
+			int status;
 
+			try
+			{
+				id = Integer.parseInt(fields[0]);
+				status = Integer.parseInt(fields[1]);
+			}
+			catch (RuntimeException e)
+			{
+				// NumberFormatException or too few fields
+				logger.warning("Unexpected output from script: " + line);
 				return;
 			}
+			lastAnswerTime = System.currentTimeMillis();
+
+			if (status == 0)
+			{
+				logger.fine("Script returned zero, server fine");
+			}
+			else
+			{
+				logger.warning(
+					"Script returned non-zero, server has failed" +
+					(fields.length > 2 ? ": " + fields[2] : ""));
+			}
+			finishRequest(id, status == 0);
+		}
+
+		private void sleep()
+		{
+			try
+			{
+				Thread.sleep(RESTART_DELAY);
+			}
+			catch (InterruptedException e) {}
 		}
 	}
-}
 
+	/*
+	 * One test sent to the persistent script
+	 */
+	static class Request
+	{
+		int id;
+		Target target;
+		HealthCheckScheduler.CheckResult result;
+		// When it was sent, from System.currentTimeMillis()
+		long startTime;
+
+		Request(int id, Target target,
+			HealthCheckScheduler.CheckResult result)
+		{
+			this.id = id;
+			this.target = target;
+			this.result = result;
+		}
+	}
+}
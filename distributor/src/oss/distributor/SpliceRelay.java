@@ -0,0 +1,156 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Moves data between sockets with the Linux splice(2) system call, so
+ * that a DataMover can relay a connection without the data ever being
+ * copied into the JVM.  Data read from one socket goes into a kernel
+ * pipe and from there to the other socket.
+ * 
+ * The system calls are made by ForeignSpliceRelay, through the
+ * incubating foreign function API that comes with Java 17.  That class
+ * is only compiled when building with Java 17 and needs the JVM to be
+ * started with:
+ * 
+ *   --add-modules jdk.incubator.foreign
+ *   --enable-native-access=ALL-UNNAMED
+ *   --add-exports java.base/sun.nio.ch=ALL-UNNAMED
+ * 
+ * (the last so that we can get at the file descriptors behind the
+ * SocketChannels), so it is loaded by name and everything else only
+ * deals with this class.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+abstract class SpliceRelay
+{
+	static final String IMPLEMENTATION = "oss.distributor.ForeignSpliceRelay";
+
+	// SelChImpl.getFDVal(), implemented by the JDK's SocketChannels
+	Method getFDVal;
+
+	protected SpliceRelay() throws Exception
+	{
+		getFDVal = Class.forName("sun.nio.ch.SelChImpl").getMethod("getFDVal");
+	}
+
+	/*
+	 * Load the splice implementation and check that it works.  Returns
+	 * null, having logged why, if it can't be used in this JVM.
+	 */
+	static SpliceRelay load(LazyLogger logger)
+	{
+		SpliceRelay spliceRelay;
+		SocketChannel channel;
+		int[] pipe;
+
+		try
+		{
+			spliceRelay = (SpliceRelay) Class.forName(IMPLEMENTATION).
+				getDeclaredConstructor().newInstance();
+
+			channel = SocketChannel.open();
+			try
+			{
+				spliceRelay.getFD(channel);
+			}
+			finally
+			{
+				channel.close();
+			}
+
+			pipe = spliceRelay.openPipe();
+			spliceRelay.close(pipe[0]);
+			spliceRelay.close(pipe[1]);
+		}
+		catch (Throwable e)
+		{
+			// Anything from the class not having been built to the
+			// JVM not having been given the options it needs
+			if (e instanceof InvocationTargetException)
+			{
+				e = e.getCause();
+			}
+			logger.warning(
+				"splice relay is not available, data will be copied:  " + e);
+			return null;
+		}
+
+		return spliceRelay;
+	}
+
+	/*
+	 * The file descriptor behind the given channel
+	 */
+	int getFD(SocketChannel channel) throws IOException
+	{
+		try
+		{
+			return ((Integer) getFDVal.invoke(channel)).intValue();
+		}
+		catch (Exception e)
+		{
+			throw new IOException(
+				"Unable to get file descriptor for " + channel + ":  " + e);
+		}
+	}
+
+	/*
+	 * Create a non-blocking pipe, returns {read end, write end}
+	 */
+	abstract int[] openPipe() throws IOException;
+
+	/*
+	 * Move up to len bytes from the file descriptor in to out without
+	 * blocking.  Like SocketChannel.read(), returns the number of bytes
+	 * moved, zero if none could be moved without blocking, or -1 if in
+	 * is at end of stream.  Throws SpliceFailedException if the
+	 * splice fails for any other reason, including ones we can't be
+	 * sure of (see ForeignSpliceRelay), in which case the caller should
+	 * stop splicing and copy the data instead.
+	 */
+	abstract int splice(int in, int out, int len) throws IOException;
+
+	/*
+	 * Read as much as buffer has room for from fd, which must have
+	 * that much data waiting.  Used to get data back out of a pipe
+	 * when we have to stop splicing.
+	 */
+	abstract int read(int fd, ByteBuffer buffer) throws IOException;
+
+	abstract void close(int fd);
+
+	static class SpliceFailedException extends IOException
+	{
+		SpliceFailedException(String message)
+		{
+			super(message);
+		}
+	}
+}
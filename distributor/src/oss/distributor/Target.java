@@ -30,36 +30,69 @@
 package oss.distributor;
 
 import java.net.*;
+import java.util.Set;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /*
  * This class is public to allow 3rd party distribution algorithms and
  * service tests.
  */
-public class Target implements Runnable
+public class Target
 {
 	Distributor distributor;
 	InetAddress addr;  // Address of server
 	int port;  // Port on server
 	boolean enabled;  // Is this channel enabled?
 	boolean terminateOnDisable;
-	List connections;  // List of Connection's
+	Set connections;  // Set of Connection's
 	long totalConnectionCount;
+	// Connections which are established or in the process of being
+	// established, for algorithms that balance by load.  Kept
+	// separately from connections so that it can be read without
+	// locking.
+	AtomicInteger activeConnectionCount;
+	// Exponentially weighted moving average of how long connections to
+	// this target take to complete, in nanoseconds.  Failed connections
+	// count as taking the whole connection timeout.  Zero until the
+	// first connection completes or fails.
+	AtomicLong connectTime;
+	// Updated by whichever DataMovers are carrying our connections
+	AtomicLong clientToServerByteCount;
+	AtomicLong serverToClientByteCount;
 	Logger logger;
-	DataMover dataMover;
-	Thread thread;
 	// Number of consecutive failures to connect to this target
 	int failureCount;
 	// How many consecutive connection failures are allowed before this
 	// target is disabled
 	int failureCountLimit;
+	// This target's share of the connections relative to the other
+	// targets in its group, for algorithms that honor weights.
+	// Volatile so that it can be changed while the distribution
+	// algorithms are reading it without any locking.
+	volatile int weight;
+	// How often the service test should test this target, or zero to
+	// use the service test's frequency
+	int testFrequency;
+	// The outcomes of recent connections, for outlier detection.  Null
+	// if outlier detection is disabled.
+	ErrorRateWindow outcomes;
+	// Set while outlier detection has taken this target out of service.
+	// Kept separate from enabled so that the service test and the
+	// controller don't undo it and it doesn't undo them.
+	boolean ejected;
+
+	static final int CONNECT_TIME_WEIGHT = 8;
 
 	protected Target(Distributor distributor,
 		InetAddress addr, int port,
-		int failureCountLimit, boolean terminateOnDisable, boolean halfClose)
+		int failureCountLimit, boolean terminateOnDisable)
 	{
 		this.distributor = distributor;
 		this.addr = addr;
@@ -67,20 +100,28 @@ public class Target implements Runnable
 		this.failureCountLimit = failureCountLimit;
 		this.terminateOnDisable = terminateOnDisable;
 
-		// Use a linked list to speed up removing dead connections from
-		// the middle of the list.
-		connections = new LinkedList();
+		// Use a set to speed up removing dead connections, as
+		// DataMovers remove each connection as it is closed.  Linked
+		// so that the conns command lists them in the order they
+		// arrived.
+		connections = new LinkedHashSet();
 
 		logger = distributor.getLogger();
 
-		dataMover = new DataMover(distributor, this, halfClose);
-
 		failureCount = 0;
 		totalConnectionCount = 0;
+		activeConnectionCount = new AtomicInteger();
+		connectTime = new AtomicLong();
+		clientToServerByteCount = new AtomicLong();
+		serverToClientByteCount = new AtomicLong();
 		enabled = true;
-
-		thread = new Thread(this, toString());
-		thread.start();
+		weight = 1;
+		testFrequency = 0;
+		if (distributor.getOutlierErrorRate() > 0)
+		{
+			outcomes = new ErrorRateWindow(distributor.getOutlierWindow());
+		}
+		ejected = false;
 	}
 
 	public InetAddress getInetAddress()
@@ -93,24 +134,176 @@ public class Target implements Runnable
 		return port;
 	}
 
-	protected DataMover getDataMover()
+	/*
+	 * Hand a completed connection to one of the shared DataMovers,
+	 * which will carry its traffic for the life of the connection.
+	 */
+	protected void addConnection(Connection conn)
 	{
-		return dataMover;
+		DataMover dataMover =
+			distributor.getDataMoverPool().getNextDataMover();
+
+		registerConnection(conn, dataMover);
+		dataMover.addConnection(conn);
 	}
 
-	protected void addConnection(Connection conn)
+	/*
+	 * Record a completed connection which is carried by the given
+	 * DataMover.  Used by addConnection(), and directly by a DataMover
+	 * which made the connection to us itself.
+	 */
+	protected void registerConnection(Connection conn, DataMover dataMover)
 	{
 		synchronized (connections)
 		{
 			connections.add(conn);
+			totalConnectionCount++;
 		}
-		dataMover.addConnection(conn);
-		totalConnectionCount++;
+		conn.setDataMover(dataMover);
+		conn.distributor = distributor;
+		conn.clientToServerReviewers =
+			distributor.getClientToServerReviewers();
+		conn.serverToClientReviewers =
+			distributor.getServerToClientReviewers();
+	}
+
+	/*
+	 * Called by a DataMover when it has finished with one of our
+	 * connections.  The connection's byte counts are folded into our
+	 * totals.
+	 */
+	protected void removeConnection(Connection conn)
+	{
+		boolean removed;
+
+		synchronized (connections)
+		{
+			removed = connections.remove(conn);
+		}
+
+		// terminateAll() may already have removed it, make sure we
+		// only count its bytes once
+		if (removed)
+		{
+			logger.finer("Removing terminated connection");
+			activeConnectionCount.decrementAndGet();
+			clientToServerByteCount.addAndGet(conn.clientToServerByteCount);
+			serverToClientByteCount.addAndGet(conn.serverToClientByteCount);
+
+			// Connections we cut off ourselves say nothing about the
+			// target
+			if (! conn.terminated)
+			{
+				recordOutcome(conn.serverFailed);
+			}
+		}
+	}
+
+	/*
+	 * Called when a connection to this target is initiated.  Counted
+	 * as active until it fails (see connectionFailed()) or, if it
+	 * succeeds, until it is removed via removeConnection().
+	 */
+	protected void connectionStarted()
+	{
+		activeConnectionCount.incrementAndGet();
+	}
+
+	/*
+	 * Called when a connection to this target which was counted by
+	 * connectionStarted() fails or times out.
+	 */
+	protected void connectionFailed()
+	{
+		activeConnectionCount.decrementAndGet();
+		recordOutcome(true);
+
+		// Otherwise a target which refuses connections quickly would
+		// keep the average from its last good connection and look
+		// like the best choice to algorithms that go by connect time
+		recordConnectTime(distributor.getConnectionTimeout() * 1000000L);
+	}
+
+	/*
+	 * Called when a connection to this target completes, with how
+	 * long it took in nanoseconds.  Each new sample gets a weight of
+	 * 1/CONNECT_TIME_WEIGHT in the average.
+	 */
+	protected void recordConnectTime(long nanos)
+	{
+		long average;
+		long newAverage;
+
+		do
+		{
+			average = connectTime.get();
+			if (average == 0)
+			{
+				newAverage = Math.max(nanos, 1);
+			}
+			else
+			{
+				newAverage = average + (nanos - average) / CONNECT_TIME_WEIGHT;
+			}
+		} while (! connectTime.compareAndSet(average, newAverage));
+	}
+
+	/*
+	 * The average time connections to this target take to complete,
+	 * in nanoseconds, counting failed connections as taking the
+	 * connection timeout.  Zero if no connections have completed or
+	 * failed yet.
+	 */
+	public long getConnectTime()
+	{
+		return connectTime.get();
+	}
+
+	/*
+	 * The number of connections to this target which are established
+	 * or being established.
+	 */
+	public int getActiveConnectionCount()
+	{
+		return activeConnectionCount.get();
+	}
+
+	public int getWeight()
+	{
+		return weight;
+	}
+
+	/*
+	 * A weight of zero means the target gets no new connections from
+	 * algorithms that honor weights, but unlike disable() doesn't affect
+	 * existing connections.
+	 */
+	public void setWeight(int weight)
+	{
+		if (weight < 0)
+		{
+			throw new IllegalArgumentException("Weight must not be negative");
+		}
+		this.weight = weight;
+	}
+
+	public int getTestFrequency()
+	{
+		return testFrequency;
+	}
+
+	public void setTestFrequency(int testFrequency)
+	{
+		this.testFrequency = testFrequency;
 	}
 
 	public synchronized void enable()
 	{
-		enabled = true;
+		if (enabled == false)
+		{
+			enabled = true;
+			distributor.targetsChanged();
+		}
 		failureCount = 0;
 	}
 
@@ -119,6 +312,7 @@ public class Target implements Runnable
 		if (enabled == true)  // Don't do anything if already disabled
 		{
 			enabled = false;
+			distributor.targetsChanged();
 			if (terminateOnDisable)
 			{
 				terminateAll();
@@ -126,9 +320,132 @@ public class Target implements Runnable
 		}
 	}
 
+	/*
+	 * Whether new connections may be sent to this target, which they
+	 * can't be if it has been disabled or ejected
+	 */
 	public synchronized boolean isEnabled()
 	{
-		return enabled;
+		return enabled && ! ejected;
+	}
+
+	/*
+	 * Whether the target has been disabled, by the service test or the
+	 * controller.  Unlike isEnabled() this ignores ejection.
+	 */
+	public synchronized boolean isDisabled()
+	{
+		return ! enabled;
+	}
+
+	public synchronized boolean isEjected()
+	{
+		return ejected;
+	}
+
+	/*
+	 * Count the outcome of a connection to this target, which failed
+	 * if error is true, and eject the target if too many of its recent
+	 * connections have failed.  An ejected target gets no new
+	 * connections until the ejection time has passed.
+	 */
+	protected void recordOutcome(boolean error)
+	{
+		long now;
+		int requests;
+		int errors;
+
+		if (outcomes == null)
+		{
+			return;
+		}
+
+		now = System.currentTimeMillis();
+		outcomes.record(error, now);
+		if (! error)
+		{
+			return;
+		}
+
+		requests = outcomes.getRequestCount(now);
+		errors = outcomes.getErrorCount(now);
+		if (requests < distributor.getOutlierMinRequests() ||
+			errors * 100L < (long) requests * distributor.getOutlierErrorRate())
+		{
+			return;
+		}
+
+		eject(errors, requests);
+	}
+
+	private void eject(int errors, int requests)
+	{
+		List targets;
+		Iterator iter;
+		int ejectedCount;
+
+		synchronized (this)
+		{
+			if (ejected || ! enabled)
+			{
+				return;
+			}
+		}
+
+		// Don't take out so many targets that the rest are swamped.
+		// This is done without holding our lock, as getTargets() locks
+		// the target groups and the algorithms lock targets while
+		// holding their group's lock.
+		targets = distributor.getTargets();
+		ejectedCount = 0;
+		iter = targets.iterator();
+		while (iter.hasNext())
+		{
+			if (((Target) iter.next()).isEjected())
+			{
+				ejectedCount++;
+			}
+		}
+		if ((ejectedCount + 1) * 100L >
+			(long) targets.size() * distributor.getOutlierMaxEjectionPercent())
+		{
+			logger.fine("Not ejecting " + this +
+				", too many targets are already ejected");
+			return;
+		}
+
+		synchronized (this)
+		{
+			if (ejected)
+			{
+				return;
+			}
+			ejected = true;
+		}
+		outcomes.clear();
+		logger.warning("Ejecting: " + this + " (" + errors + " of " +
+			requests + " recent connections failed)");
+		distributor.targetsChanged();
+
+		distributor.getOutlierTimer().schedule(
+			new TimerTask()
+			{
+				public void run()
+				{
+					reinstate();
+				}
+			},
+			distributor.getOutlierEjectionTime());
+	}
+
+	private void reinstate()
+	{
+		synchronized (this)
+		{
+			ejected = false;
+		}
+		logger.warning("Reinstating: " + this);
+		distributor.targetsChanged();
 	}
 
 	public synchronized int incrementFailureCount()
@@ -151,51 +468,24 @@ public class Target implements Runnable
 
 	protected void terminateAll()
 	{
+		List conns;
 		Iterator iter;
 		Connection conn;
 
+		// Terminating a connection calls back into removeConnection(),
+		// so work from a copy of the set
 		synchronized (connections)
 		{
-			iter = connections.iterator();
-			while (iter.hasNext())
-			{
-				conn = (Connection) iter.next();
-				logger.fine("Terminating and removing connection " + conn);
-				conn.terminate();
-				iter.remove();
-			}
+			conns = new ArrayList(connections);
 		}
-	}
 
-	/*
-	 * Remove connections which have terminated.
-	 * Frees up memory and keeps our connection count accurate.
-	 */
-	public void run()
-	{
-		Iterator iter;
-		Connection conn;
-
-		while (true)
+		iter = conns.iterator();
+		while (iter.hasNext())
 		{
-			synchronized (connections)
-			{
-				iter = connections.iterator();
-				while (iter.hasNext())
-				{
-					conn = (Connection) iter.next();
-					if (conn.isTerminated())
-					{
-						logger.finer("Removing terminated connection");
-						iter.remove();
-					}
-				}
-			}
-
-			try
-			{
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {}
+			conn = (Connection) iter.next();
+			logger.fine("Terminating and removing connection " + conn);
+			conn.terminate();
+			removeConnection(conn);
 		}
 	}
 
@@ -207,20 +497,44 @@ public class Target implements Runnable
 	protected String getStats(String indent)
 	{
 		String stats;
+		long clientToServerBytes;
+		long serverToClientBytes;
+		Iterator iter;
+		Connection conn;
 
-		if (enabled)
+		// Closed connections have been folded into our totals, the
+		// connections that are still open carry their own counts
+		clientToServerBytes = clientToServerByteCount.get();
+		serverToClientBytes = serverToClientByteCount.get();
+		synchronized (connections)
 		{
-			stats = indent + connections.size() + " current connections\n";
+			iter = connections.iterator();
+			while (iter.hasNext())
+			{
+				conn = (Connection) iter.next();
+				clientToServerBytes += conn.clientToServerByteCount;
+				serverToClientBytes += conn.serverToClientByteCount;
+			}
 		}
-		else
+
+		if (! enabled)
 		{
 			stats = indent + "DISABLED\n";
 		}
+		else if (ejected)
+		{
+			stats = indent + "EJECTED\n";
+		}
+		else
+		{
+			stats = indent + connections.size() + " current connections\n";
+		}
 
 		stats += indent + totalConnectionCount + " total connections\n";
-		stats += indent + dataMover.getClientToServerByteCount() +
+		stats += indent + weight + " weight\n";
+		stats += indent + clientToServerBytes +
 			" client to server bytes\n";
-		stats += indent + dataMover.getServerToClientByteCount() +
+		stats += indent + serverToClientBytes +
 			" server to client bytes";
 
 		return stats;
@@ -231,9 +545,7 @@ public class Target implements Runnable
 		String stats;
 
 		stats = indent +
-			connections.size() + " entries in connections List\n";
-		stats += indent + "DataMover:\n";
-		stats += dataMover.getMemoryStats(indent);
+			connections.size() + " entries in connections Set";
 
 		return stats;
 	}
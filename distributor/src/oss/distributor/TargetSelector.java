@@ -6,6 +6,12 @@
  * algorithms pick a target for them, and then hand the completed
  * connections to the targets to perform the bulk data transfer for the
  * life of the connection.
+ * 
+ * When all of the algorithms can pick a target without help from their
+ * own threads (see DistributionAlgorithm.selectTarget()) new clients
+ * take a shortcut:  the target is picked on the accepting thread and
+ * the DataMover that will carry the connection connects to it.  Only
+ * clients for which that fails come through our thread.
  *****************************************************************************
  * Copyright 2003 Jason Heiss
  * 
@@ -30,22 +36,27 @@
 package oss.distributor;
 
 import java.util.List;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.logging.Logger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
 
 public class TargetSelector implements Runnable
 {
 	Distributor distributor;
-	Logger logger;
+	LazyLogger logger;
 	List distributionAlgorithms;
+	// The algorithms to ask for a target on the accepting thread, or
+	// null if the clients have to come through our thread, see
+	// addNewClient()
+	DistributionAlgorithm[] inlineAlgorithms;
 	Map currentAlgorithm;
-	List needsDistributing;
-	List finishedDistributing;
+	MpscQueue needsDistributing;
+	MpscQueue finishedDistributing;
 	Thread thread;
 
 	protected TargetSelector(Distributor distributor)
@@ -53,8 +64,8 @@ public class TargetSelector implements Runnable
 		this.distributor = distributor;
 
 		currentAlgorithm = new HashMap();
-		needsDistributing = new LinkedList();
-		finishedDistributing = new LinkedList();
+		needsDistributing = new MpscQueue();
+		finishedDistributing = new MpscQueue();
 
 		thread = new Thread(this, getClass().getName());
 	}
@@ -66,14 +77,50 @@ public class TargetSelector implements Runnable
 	 */
 	protected void finishInitialization()
 	{
-		logger = distributor.getLogger();
+		logger = distributor.getLazyLogger();
 		distributionAlgorithms = distributor.getDistributionAlgorithms();
 
+		// Target selection can only be done inline if all of the
+		// algorithms support it, otherwise the order in which the
+		// algorithms are tried would change
+		inlineAlgorithms = null;
+		if (distributor.getInlineTargetSelection())
+		{
+			DistributionAlgorithm[] algos =
+				new DistributionAlgorithm[distributionAlgorithms.size()];
+			boolean supported = true;
+			for (int i=0 ; i<algos.length ; i++)
+			{
+				algos[i] =
+					(DistributionAlgorithm) distributionAlgorithms.get(i);
+				if (! algos[i].supportsSelectTarget())
+				{
+					logger.config(
+						algos[i] + " doesn't support inline target " +
+						"selection");
+					supported = false;
+				}
+			}
+			if (supported)
+			{
+				inlineAlgorithms = algos;
+			}
+		}
+		logger.config(
+			"Selecting targets inline:  " + (inlineAlgorithms != null));
+
 		thread.start();
 	}
 
 	/*
-	 * Used by Distributor to give us a new client
+	 * Used by an Acceptor to give us a new client.  This is called on
+	 * the Acceptor's thread.
+	 *
+	 * If we can, we ask the algorithms for a target right here and have
+	 * a DataMover make the connection, which saves the client from
+	 * being passed between several threads before any of its data is
+	 * moved.  Otherwise, or if none of the algorithms come up with a
+	 * target, the client is queued up for our thread.
 	 */
 	protected void addNewClient(SocketChannel client)
 	{
@@ -81,6 +128,33 @@ public class TargetSelector implements Runnable
 		{
 			logger.finest("Setting client channel to non-blocking mode");
 			client.configureBlocking(false);
+
+			if (inlineAlgorithms != null)
+			{
+				Target target;
+				for (int i=0 ; i<inlineAlgorithms.length ; i++)
+				{
+					target = inlineAlgorithms[i].selectTarget(client);
+					if (target != null)
+					{
+						logger.log(Level.FINER,
+							"{0} selected {1} for {2}",
+							inlineAlgorithms[i], target, client);
+						// Count the connection against the target right
+						// away, so that the next client in a burst of
+						// accepts sees it when the algorithms compare
+						// loads.  The DataMover takes it off again if
+						// the connect fails.
+						target.connectionStarted();
+						Connection conn = new Connection(client, null, target);
+						conn.distributor = distributor;
+						distributor.getDataMoverPool().getNextDataMover().
+							connect(conn);
+						return;
+					}
+				}
+			}
+
 			addUnconnectedClient(client);
 		}
 		catch (IOException e)
@@ -105,37 +179,28 @@ public class TargetSelector implements Runnable
 	 * Used by addNewClient(), or by a DistributionAlgorithm to give us
 	 * a client which that algorithm was not able to connect to a
 	 * Target.
-	 *
-	 * See the note near the wait() call in run() as to why this method
-	 * is synchronized.
 	 */
-	public synchronized void addUnconnectedClient(SocketChannel client)
+	public void addUnconnectedClient(SocketChannel client)
 	{
-		synchronized (needsDistributing)
+		// Wake up this class' thread so it can process the client.  If
+		// the queue already had clients in it then the thread has
+		// already been woken.
+		if (needsDistributing.offer(client))
 		{
-			needsDistributing.add(client);
+			LockSupport.unpark(thread);
 		}
-
-		// Wake up this class' thread so it can process the client
-		notify();
 	}
 
 	/*
 	 * Used by a DistributionAlgorithm to give us a completed
 	 * connection.
-	 *
-	 * See the note near the wait() call in run() as to why this method
-	 * is synchronized.
 	 */
-	public synchronized void addFinishedClient(Connection conn)
+	public void addFinishedClient(Connection conn)
 	{
-		synchronized (finishedDistributing)
+		if (finishedDistributing.offer(conn))
 		{
-			finishedDistributing.add(conn);
+			LockSupport.unpark(thread);
 		}
-
-		// Wake up this class' thread so it can process the client
-		notify();
 	}
 
 	public void run()
@@ -149,124 +214,122 @@ public class TargetSelector implements Runnable
 		DistributionAlgorithm algo;
 		int i;
 
+		needsDistProcessQueue = new ArrayList();
+		finishedDistProcessQueue = new ArrayList();
+
 		while (true)
 		{
-			// If the queues are empty, give up our synchronization lock
-			// on 'this' and wait for addUnconnectedClient or
-			// addFinishedClient to notify us that there is a client to
-			// process.  Synchronization on 'this' is to prevent the
-			// addUnconnectedClient() and addFinishedClient() methods
-			// from sneaking another entry into the queue while we're
-			// checking the sizes.
-			synchronized (this)
+			// Take everything that is waiting in the queues.  If they
+			// are empty, wait for addUnconnectedClient() or
+			// addFinishedClient() to unpark us.  They only do so when a
+			// queue goes from empty to non-empty, which is guaranteed
+			// to be after we drained it, and an unpark that happens
+			// before we park makes the park return immediately, so we
+			// can't miss a client.
+			needsDistributing.drain(needsDistProcessQueue);
+			finishedDistributing.drain(finishedDistProcessQueue);
+			if (needsDistProcessQueue.size() == 0 &&
+				finishedDistProcessQueue.size() == 0)
 			{
-				if (needsDistributing.size() == 0 &&
-					finishedDistributing.size() == 0)
-				{
-					try { wait(); } catch (InterruptedException e) {}
-				}
+				LockSupport.park();
+				continue;
 			}
 
 			//
 			// Handle clients which need to be distributed
 			//
 
-			synchronized (needsDistributing)
+			iter = needsDistProcessQueue.iterator();
+			NEEDSDIST: while (iter.hasNext())
 			{
-				iter = needsDistributing.iterator();
-				NEEDSDIST: while (iter.hasNext())
-				{
-					client = (SocketChannel) iter.next();
-					iter.remove();
+				client = (SocketChannel) iter.next();
 
-					//
-					// Figure out which algorithm to use for this client
-					//
+				//
+				// Figure out which algorithm to use for this client
+				//
 
-					// Get the last algorithm used
-					algo = (DistributionAlgorithm) currentAlgorithm.get(client);
+				// Get the last algorithm used
+				algo = (DistributionAlgorithm) currentAlgorithm.get(client);
 
-					// New clients won't be in the map and thus we'll
-					// get null.  Start them off with the first algorithm.
-					if (algo == null)
+				// New clients won't be in the map and thus we'll
+				// get null.  Start them off with the first algorithm.
+				if (algo == null)
+				{
+					algo =
+						(DistributionAlgorithm)
+							distributionAlgorithms.get(0);
+				}
+				// Otherwise advance to the next algorithm
+				else
+				{
+					i = distributionAlgorithms.indexOf(algo);
+					if (i < (distributionAlgorithms.size() - 1))
 					{
 						algo =
 							(DistributionAlgorithm)
-								distributionAlgorithms.get(0);
+								distributionAlgorithms.get(i + 1);
 					}
-					// Otherwise advance to the next algorithm
 					else
 					{
-						i = distributionAlgorithms.indexOf(algo);
-						if (i < (distributionAlgorithms.size() - 1))
-						{
-							algo =
-								(DistributionAlgorithm)
-									distributionAlgorithms.get(i + 1);
-						}
-						else
-						{
-							// No more algorithms available, disconnect
-							// and continue on to the next client.
-							logger.warning(
-								"Unable to find a working target for client " +
-								client);
-							currentAlgorithm.remove(client);
-							try { client.close(); } catch (IOException e) {}
-							continue NEEDSDIST;
-						}
+						// No more algorithms available, disconnect
+						// and continue on to the next client.
+						logger.warning(
+							"Unable to find a working target for client " +
+							client);
+						currentAlgorithm.remove(client);
+						try { client.close(); } catch (IOException e) {}
+						continue NEEDSDIST;
 					}
-
-					// Record the current algorithm in case it fails to
-					// find a working target and the client needs
-					// another trip through this section
-					currentAlgorithm.put(client, algo);
-
-					//
-					// Ask the algorithm to attempt to find a Target for
-					// this client
-					//
-					logger.finer("Asking " + algo +
-						" to try to find a target for " + client);
-					algo.tryToConnect(client);
 				}
+
+				// Record the current algorithm in case it fails to
+				// find a working target and the client needs
+				// another trip through this section
+				currentAlgorithm.put(client, algo);
+
+				//
+				// Ask the algorithm to attempt to find a Target for
+				// this client
+				//
+				logger.log(Level.FINER,
+					"Asking {0} to try to find a target for {1}",
+					algo, client);
+				algo.tryToConnect(client);
 			}
+			needsDistProcessQueue.clear();
 
 			//
 			// Handle clients that distribution algorithms have
 			// finished distributing
 			//
 
-			synchronized (finishedDistributing)
+			iter = finishedDistProcessQueue.iterator();
+			while (iter.hasNext())
 			{
-				iter = finishedDistributing.iterator();
-				while (iter.hasNext())
+				conn = (Connection) iter.next();
+
+				// Let each distribution algorithm know that a
+				// successful connection has occurred.  Some
+				// algorithms want to record that information.
+				logger.log(Level.FINER,
+					"Notifying distribution algorithms of successful " +
+					"connection {0}", conn);
+				algoIter = distributionAlgorithms.iterator();
+				while (algoIter.hasNext())
 				{
-					conn = (Connection) iter.next();
-					iter.remove();
-
-					// Let each distribution algorithm know that a
-					// successful connection has occurred.  Some
-					// algorithms want to record that information.
-					logger.finer(
-						"Notifying distribution algorithms of successful " +
-						"connection " + conn);
-					algoIter = distributionAlgorithms.iterator();
-					while (algoIter.hasNext())
-					{
-						algo = (DistributionAlgorithm) algoIter.next();
-						algo.connectionNotify(conn);
-					}
+					algo = (DistributionAlgorithm) algoIter.next();
+					algo.connectionNotify(conn);
+				}
 
-					// Yank them from currentAlgorithm
-					currentAlgorithm.remove(conn.getClient());
+				// Yank them from currentAlgorithm
+				currentAlgorithm.remove(conn.getClient());
 
-					// Register them with the Target
-					logger.finer(
-						"Registering connection " + conn + "with target");
-					conn.getTarget().addConnection(conn);
-				}
+				// Register them with the Target
+				logger.log(Level.FINER,
+					"Registering connection {0} with target", conn);
+				conn.getTarget().addConnection(conn);
 			}
+			finishedDistProcessQueue.clear();
 		}
 	}
 
@@ -277,10 +340,10 @@ public class TargetSelector implements Runnable
 		stats = indent +
 			currentAlgorithm.size() + " entries in currentAlgorithm Map\n";
 		stats += indent +
-			needsDistributing.size() + " entries in needsDistributing List\n";
+			needsDistributing.size() + " entries in needsDistributing queue\n";
 		stats += indent +
 			finishedDistributing.size() +
-			" entries in finishedDistributing List";
+			" entries in finishedDistributing queue";
 
 		return stats;
 	}
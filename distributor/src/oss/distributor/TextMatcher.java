@@ -0,0 +1,192 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Finds any number of strings in a stream of bytes in one pass, using
+ * the Aho-Corasick algorithm.  The strings are compiled into a state
+ * machine once, then text is fed through it a byte at a time.  All the
+ * caller has to keep between pieces of text is the current state, so
+ * a string which is split across two reads is still found, and the
+ * cost per byte doesn't depend on how many strings there are.
+ * 
+ * Used by the HTTP service test to look for the required document text
+ * in response bodies without having to keep the body around.  Strings
+ * are matched as their UTF-8 bytes.  Up to 64 strings are supported,
+ * as which strings have been found is tracked as the bits of a long.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+
+class TextMatcher
+{
+	static final int MAX_STRINGS = 64;
+
+	// The state machine, with 256 entries for each state giving the
+	// state to move to on each byte value.  State 0 is the start.
+	int[] transitions;
+	// For each state, the strings which have been found once that
+	// state is reached, as a bit mask
+	long[] matches;
+	int stringCount;
+	long allFound;
+
+	/*
+	 * Build a matcher for the given list of Strings.  Throws
+	 * IllegalArgumentException if there are more than MAX_STRINGS.
+	 */
+	TextMatcher(List strings)
+	{
+		byte[] bytes;
+		int stateCount;
+		int[] failure;
+		List queue;
+		int state;
+		int next;
+
+		stringCount = strings.size();
+		if (stringCount > MAX_STRINGS)
+		{
+			throw new IllegalArgumentException(
+				"At most " + MAX_STRINGS + " strings can be matched");
+		}
+		allFound = stringCount == MAX_STRINGS ? -1L : (1L << stringCount) - 1;
+
+		// Enough states for the worst case, where no strings share a
+		// prefix
+		stateCount = 1;
+		for (int i=0 ; i<stringCount ; i++)
+		{
+			stateCount += ((String) strings.get(i)).getBytes(
+				StandardCharsets.UTF_8).length;
+		}
+		transitions = new int[stateCount * 256];
+		matches = new long[stateCount];
+
+		// Build the trie of the strings.  -1 marks a missing edge until
+		// they are filled in below.
+		Arrays.fill(transitions, -1);
+		stateCount = 1;
+		for (int i=0 ; i<stringCount ; i++)
+		{
+			bytes = ((String) strings.get(i)).getBytes(StandardCharsets.UTF_8);
+			state = 0;
+			for (int j=0 ; j<bytes.length ; j++)
+			{
+				next = transitions[state * 256 + (bytes[j] & 0xff)];
+				if (next == -1)
+				{
+					next = stateCount++;
+					transitions[state * 256 + (bytes[j] & 0xff)] = next;
+				}
+				state = next;
+			}
+			matches[state] |= 1L << i;
+		}
+
+		// Work through the trie breadth first, so each state's failure
+		// state (the state for the longest proper suffix of its text
+		// which is also in the trie) is done before the states below
+		// it.  Missing edges are pointed at wherever the failure state
+		// goes on that byte, which turns the trie into a state machine
+		// that never has to back up.
+		failure = new int[stateCount];
+		queue = new ArrayList();
+		for (int b=0 ; b<256 ; b++)
+		{
+			next = transitions[b];
+			if (next == -1)
+			{
+				transitions[b] = 0;
+			}
+			else
+			{
+				failure[next] = 0;
+				queue.add(Integer.valueOf(next));
+			}
+		}
+		for (int q=0 ; q<queue.size() ; q++)
+		{
+			state = ((Integer) queue.get(q)).intValue();
+			matches[state] |= matches[failure[state]];
+			for (int b=0 ; b<256 ; b++)
+			{
+				next = transitions[state * 256 + b];
+				if (next == -1)
+				{
+					transitions[state * 256 + b] =
+						transitions[failure[state] * 256 + b];
+				}
+				else
+				{
+					failure[next] = transitions[failure[state] * 256 + b];
+					queue.add(Integer.valueOf(next));
+				}
+			}
+		}
+
+		// Don't hold on to space for states we didn't need
+		if (transitions.length > stateCount * 256)
+		{
+			int[] trimmed = new int[stateCount * 256];
+			System.arraycopy(transitions, 0, trimmed, 0, trimmed.length);
+			transitions = trimmed;
+			long[] trimmedMatches = new long[stateCount];
+			System.arraycopy(matches, 0, trimmedMatches, 0, stateCount);
+			matches = trimmedMatches;
+		}
+	}
+
+	/*
+	 * The state to move to from the given state on the given byte
+	 */
+	int next(int state, byte b)
+	{
+		return transitions[state * 256 + (b & 0xff)];
+	}
+
+	/*
+	 * The strings found on reaching the given state, as a bit mask with
+	 * bit i set for the i'th string
+	 */
+	long matches(int state)
+	{
+		return matches[state];
+	}
+
+	/*
+	 * The bit mask for all of the strings being found
+	 */
+	long allFound()
+	{
+		return allFound;
+	}
+
+	int getStringCount()
+	{
+		return stringCount;
+	}
+}
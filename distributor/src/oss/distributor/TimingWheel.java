@@ -0,0 +1,278 @@
+/*
+ *****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * A hashed timing wheel, for keeping track of large numbers of timeouts
+ * cheaply.  Time is divided into ticks and the wheel has a ring of
+ * slots, each holding a list of the timeouts which expire on a tick
+ * that maps to that slot.  Scheduling and canceling a timeout are
+ * constant time operations, and expiring timeouts only requires looking
+ * at the slots for the ticks that have passed.  Timeouts further in the
+ * future than one trip around the wheel simply stay in their slot until
+ * the wheel comes around to their tick.
+ * 
+ * Timeouts never fire early, and fire at most a couple of ticks late.
+ * 
+ * The wheel is not thread safe, it is intended to be used from a single
+ * selector thread, which can use getSelectTimeout() as the timeout to
+ * its select() calls and then call expireTimeouts() each time around
+ * its loop.  getSelectTimeout() returns the time until the earliest
+ * timeout, so an idle thread sleeps until there is something to do.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+
+class TimingWheel
+{
+	long tickDuration;  // In nanoseconds
+	Timeout[] slots;  // The head of the list of timeouts for each slot
+	int mask;
+	long startTime;
+	long currentTick;  // The last tick that has been expired
+	int size;  // The number of timeouts scheduled
+	long nextDeadline;  // The earliest deadline, or -1 if not known
+
+	/*
+	 * tickMillis is the resolution of the wheel.  slotCount is rounded
+	 * up to a power of two, and ideally slotCount * tickMillis should
+	 * cover the typical timeout.
+	 */
+	protected TimingWheel(long tickMillis, int slotCount)
+	{
+		tickDuration = tickMillis * 1000000;
+
+		int count = 1;
+		while (count < slotCount)
+		{
+			count <<= 1;
+		}
+		slots = new Timeout[count];
+		mask = count - 1;
+
+		startTime = System.nanoTime();
+		currentTick = 0;
+		size = 0;
+		nextDeadline = -1;
+	}
+
+	private long getTick()
+	{
+		return (System.nanoTime() - startTime) / tickDuration;
+	}
+
+	/*
+	 * Arrange for attachment to be handed back by expireTimeouts()
+	 * once timeoutMillis milliseconds have passed, unless the returned
+	 * Timeout is canceled first.
+	 */
+	protected Timeout schedule(Object attachment, long timeoutMillis)
+	{
+		// Round up so that we never fire early.  getTick() rounds
+		// down, so a timeout scheduled part way through a tick needs
+		// one extra tick.
+		long ticks = (timeoutMillis * 1000000 + tickDuration - 1) /
+			tickDuration;
+		Timeout timeout = new Timeout(attachment, getTick() + ticks + 1);
+
+		int slot = (int) timeout.deadline & mask;
+		timeout.next = slots[slot];
+		if (slots[slot] != null)
+		{
+			slots[slot].prev = timeout;
+		}
+		slots[slot] = timeout;
+		timeout.slot = slot;
+		size++;
+
+		if (size == 1 ||
+			(nextDeadline != -1 && timeout.deadline < nextDeadline))
+		{
+			nextDeadline = timeout.deadline;
+		}
+
+		return timeout;
+	}
+
+	/*
+	 * Remove the timeout from the wheel.  It is safe to cancel a
+	 * timeout which has already expired or been canceled.
+	 */
+	protected void cancel(Timeout timeout)
+	{
+		if (timeout.slot == -1)
+		{
+			return;
+		}
+
+		if (timeout.prev != null)
+		{
+			timeout.prev.next = timeout.next;
+		}
+		else
+		{
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null)
+		{
+			timeout.next.prev = timeout.prev;
+		}
+
+		timeout.next = null;
+		timeout.prev = null;
+		timeout.slot = -1;
+		size--;
+
+		if (timeout.deadline == nextDeadline)
+		{
+			// Worked out again by getSelectTimeout() when needed
+			nextDeadline = -1;
+		}
+	}
+
+	/*
+	 * Add the attachments of all of the timeouts which have expired to
+	 * the expired list, and remove those timeouts from the wheel.
+	 */
+	protected void expireTimeouts(List expired)
+	{
+		long tick = getTick();
+		Timeout timeout;
+		Timeout next;
+
+		if (size == 0)
+		{
+			// Nothing to do, just catch up
+			currentTick = tick;
+			return;
+		}
+
+		// Visiting the same slot more than once in a pass gains nothing
+		if (tick - currentTick > slots.length)
+		{
+			currentTick = tick - slots.length;
+		}
+
+		while (currentTick < tick)
+		{
+			currentTick++;
+			timeout = slots[(int) currentTick & mask];
+			while (timeout != null)
+			{
+				next = timeout.next;
+				if (timeout.deadline <= tick)
+				{
+					cancel(timeout);
+					expired.add(timeout.attachment);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/*
+	 * How long the owning thread can block in select() before it needs
+	 * to call expireTimeouts() again, suitable for passing to
+	 * Selector.select(long).  This is the time until the earliest
+	 * timeout expires, so a thread whose timeouts are all a long way
+	 * off doesn't wake up every tick.  Zero means there are no timeouts
+	 * scheduled and the thread can block indefinitely.
+	 */
+	protected long getSelectTimeout()
+	{
+		if (size == 0)
+		{
+			return 0;
+		}
+
+		if (nextDeadline == -1)
+		{
+			nextDeadline = findNextDeadline();
+		}
+
+		// Round up, waking just before the deadline's tick starts
+		// would only mean going round again
+		long untilDeadline = (nextDeadline * tickDuration -
+			(System.nanoTime() - startTime) + 999999) / 1000000;
+		// select(0) would block forever
+		return Math.max(untilDeadline, 1);
+	}
+
+	/*
+	 * Find the earliest deadline by walking the slots in the order the
+	 * wheel will reach them.  Every deadline is after currentTick, so
+	 * the first slot holding a timeout for this trip around the wheel
+	 * has the earliest one, and we only have to look at every slot if
+	 * all of the timeouts are more than one trip away.
+	 */
+	private long findNextDeadline()
+	{
+		long earliest = Long.MAX_VALUE;
+		long tick;
+		Timeout timeout;
+
+		for (int i=1 ; i<=slots.length ; i++)
+		{
+			tick = currentTick + i;
+			timeout = slots[(int) tick & mask];
+			while (timeout != null)
+			{
+				if (timeout.deadline < earliest)
+				{
+					earliest = timeout.deadline;
+				}
+				timeout = timeout.next;
+			}
+
+			if (earliest <= tick)
+			{
+				break;
+			}
+		}
+
+		return earliest;
+	}
+
+	protected int size()
+	{
+		return size;
+	}
+
+	protected static class Timeout
+	{
+		Object attachment;
+		long deadline;  // The tick on which this timeout expires
+		int slot;  // -1 once expired or canceled
+		Timeout next;
+		Timeout prev;
+
+		Timeout(Object attachment, long deadline)
+		{
+			this.attachment = attachment;
+			this.deadline = deadline;
+			slot = -1;
+		}
+
+		Object getAttachment() { return attachment; }
+	}
+}
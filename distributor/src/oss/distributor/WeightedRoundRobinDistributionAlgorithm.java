@@ -0,0 +1,220 @@
+/*****************************************************************************
+ * $Id$
+ *****************************************************************************
+ * Distribution algorithm which spreads clients across the targets in
+ * proportion to their weights, so a big server can be given a bigger
+ * share of the clients than a small server in the same group.
+ * 
+ * This is the "smooth" weighted round robin used by nginx.  Each target
+ * has a current weight, which starts at zero.  To pick a target, every
+ * candidate's current weight is increased by its weight, the candidate
+ * with the highest current weight is picked, and the picked target's
+ * current weight is reduced by the total of the candidates' weights.
+ * With weights of 5, 1 and 1 that gives the sequence a a b a c a a,
+ * rather than sending five clients in a row to the first target as a
+ * simple weighted round robin would.
+ * 
+ * The weights are read fresh from the targets on every pick, so
+ * changing a weight (i.e. with the 'weight' control command) takes
+ * effect immediately.  The current weights are kept per target group
+ * and guarded by the group's lock, which a pick already holds, so picks
+ * from different groups don't contend.  Targets with a weight of zero
+ * are skipped.
+ * 
+ * As with round robin, the targets in the first target group are used
+ * as long as any of them are available, then the second group, etc.
+ *****************************************************************************
+ * Copyright 2003 Jason Heiss
+ * 
+ * This file is part of Distributor.
+ * 
+ * Distributor is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * Distributor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Distributor; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+ *****************************************************************************
+ */
+
+package oss.distributor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.Iterator;
+import org.w3c.dom.Element;
+
+class WeightedRoundRobinDistributionAlgorithm
+	extends RetryingDistributionAlgorithm
+{
+	// Map of target group (by identity) to the GroupState for that
+	// group.  Guarded by the targetGroups lock.
+	Map groupStates;
+	// The target generation when groupStates was last cleaned out
+	int groupStatesGeneration;
+
+	/*
+	 * Because the distribution algorithms are instantiated via
+	 * Class.forName(), they must have public constructors.
+	 */
+	public WeightedRoundRobinDistributionAlgorithm(
+		Distributor distributor, Element configElement)
+	{
+		super(distributor);
+
+		groupStates = new IdentityHashMap();
+		groupStatesGeneration = -1;
+	}
+
+	/*
+	 * Pick a target from the first target group that has any enabled
+	 * targets with a non-zero weight, skipping the targets in exclude
+	 * (which may be null).  Returns null if there are no such targets.
+	 */
+	Target chooseTarget(Set exclude)
+	{
+		int generation = distributor.getTargetGeneration();
+		List group;
+		GroupState state;
+		Target target;
+
+		for (int g=0 ; ; g++)
+		{
+			synchronized (targetGroups)
+			{
+				if (g >= targetGroups.size())
+				{
+					return null;
+				}
+				group = (List) targetGroups.get(g);
+
+				if (generation != groupStatesGeneration)
+				{
+					// Drop the state for groups which have been removed
+					Map oldStates = groupStates;
+					groupStates = new IdentityHashMap();
+					for (int i=0 ; i<targetGroups.size() ; i++)
+					{
+						state = (GroupState) oldStates.get(
+							targetGroups.get(i));
+						if (state != null)
+						{
+							groupStates.put(targetGroups.get(i), state);
+						}
+					}
+					groupStatesGeneration = generation;
+				}
+
+				state = (GroupState) groupStates.get(group);
+				if (state == null)
+				{
+					state = new GroupState();
+					groupStates.put(group, state);
+				}
+			}
+
+			synchronized (group)
+			{
+				target = state.choose(group, exclude, generation);
+			}
+
+			if (target != null)
+			{
+				return target;
+			}
+		}
+	}
+
+	/*
+	 * The current weights of the targets in one target group.  Only
+	 * touched while holding the lock on the group.
+	 */
+	static class GroupState
+	{
+		// Map of Target to int[1] holding the target's current weight
+		Map currentWeights;
+		// The target generation when currentWeights was last cleaned out
+		int generation;
+
+		GroupState()
+		{
+			currentWeights = new HashMap();
+			generation = -1;
+		}
+
+		Target choose(List group, Set exclude, int targetGeneration)
+		{
+			Iterator iter;
+			Target target;
+			Target best = null;
+			int[] current;
+			int[] bestCurrent = null;
+			int weight;
+			int totalWeight = 0;
+
+			if (targetGeneration != generation)
+			{
+				// Drop the targets which have been removed from the
+				// group, keeping the current weights of the rest so
+				// that the sequence stays smooth
+				Map oldWeights = currentWeights;
+				currentWeights = new HashMap();
+				iter = group.iterator();
+				while (iter.hasNext())
+				{
+					target = (Target) iter.next();
+					current = (int[]) oldWeights.get(target);
+					if (current != null)
+					{
+						currentWeights.put(target, current);
+					}
+				}
+				generation = targetGeneration;
+			}
+
+			iter = group.iterator();
+			while (iter.hasNext())
+			{
+				target = (Target) iter.next();
+				// Read the weight once, it may be changed under us
+				weight = target.getWeight();
+				if (weight == 0 || ! target.isEnabled() ||
+					(exclude != null && exclude.contains(target)))
+				{
+					continue;
+				}
+
+				current = (int[]) currentWeights.get(target);
+				if (current == null)
+				{
+					current = new int[1];
+					currentWeights.put(target, current);
+				}
+
+				current[0] += weight;
+				totalWeight += weight;
+				if (best == null || current[0] > bestCurrent[0])
+				{
+					best = target;
+					bestCurrent = current;
+				}
+			}
+
+			if (best != null)
+			{
+				bestCurrent[0] -= totalWeight;
+			}
+			return best;
+		}
+	}
+}